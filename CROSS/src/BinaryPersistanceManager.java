@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Classe per la gestione della persistenza degli ordini evasi in un file binario a record di dimensione fissa.
+ * Il file inizia con un'intestazione (MAGIC, versione, dimensione dei record) seguita dai record, uno per ordine:
+ * id (int), lato (byte), tipo (byte), dimensione (int), prezzo (int), timestamp in nanosecondi (long),
+ * sequenza (long) e simbolo (UTF-8, al più SYMBOL_SIZE byte, completato con zeri). Un simbolo più lungo non può
+ * essere memorizzato: la scrittura fallisce invece di troncarlo, perché riletto sarebbe un simbolo diverso.
+ * La posizione di ogni record è calcolabile dal suo indice, e la lettura avviene mappando il file in memoria
+ * (FileChannel.map), quindi all'avvio i record vengono decodificati direttamente dalla page cache, senza parsing.
+ * Un record incompleto in coda al file (scrittura interrotta) viene scartato.
+ * Gli utenti restano memorizzati in json tramite JsonPersistanceManager.
+ */
+public class BinaryPersistanceManager implements PersistanceManager {
+    private static final int MAGIC = 0x43525452; // "CRTR"
+    private static final int VERSION = 1; // versione del formato del file
+    private static final int HEADER_SIZE = 16; // MAGIC, versione, dimensione dei record, riservato
+    static final int SYMBOL_SIZE = 16; // byte riservati al simbolo (lunghezza massima in UTF-8 di un simbolo quotato)
+    public static final int RECORD_SIZE = 48; // 4 + 1 + 1 + 4 + 4 + 8 + 8 + SYMBOL_SIZE = 46 byte di campi, allineati a 48
+    private static final long MAP_SIZE = (Integer.MAX_VALUE / RECORD_SIZE) * (long) RECORD_SIZE; // byte mappati per volta
+
+    private final Path file; // file binario degli ordini evasi
+    private final JsonPersistanceManager json; // persistenza degli utenti (e lettura dello storico json precedente)
+    private final String legacyOrdersInput; // storico json da importare se il file binario non esiste
+    private FileChannel channel; // file aperto in scrittura
+    private ByteBuffer buffer; // buffer riusato per codificare i record di una scrittura
+    private final ReentrantLock lock; // lock del file binario
+
+    public BinaryPersistanceManager(String file, String ordersInput, String usersInput, String usersLog) {
+        this.file = Paths.get(file);
+        this.json = new JsonPersistanceManager(ordersInput, ordersInput, usersInput, usersLog);
+        this.legacyOrdersInput = ordersInput;
+        this.channel = null;
+        this.buffer = ByteBuffer.allocate(RECORD_SIZE * 64);
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Metodo per aggiungere in coda al file gli ordini evasi specificati, con una sola scrittura.
+     * Se la scrittura fallisce, il file viene chiuso e i record scritti in parte vengono scartati alla riapertura.
+     * @param issuedOrders nuovi ordini evasi
+     * @return future completato, o completato con l'eccezione se la scrittura fallisce
+     */
+    @Override
+    public CompletableFuture<Void> appendIssuedOrders(Collection<Order> issuedOrders) {
+        lock.lock();
+        try {
+            try {
+                if (channel == null) {
+                    channel = open(file);
+                }
+                write(channel, issuedOrders);
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while appending issued orders to " + file + ": " + e.getMessage());
+                if (channel != null) {
+                    discard();
+                }
+                return CompletableFuture.failedFuture(e);
+            }
+            return CompletableFuture.completedFuture(null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per la memorizzazione dell'intero storico: scrive i soli ordini specificati in un file temporaneo,
+     * che sostituisce quello attuale solo dopo essere stato forzato su disco. Se la scrittura fallisce, il file
+     * attuale resta intatto.
+     * @param issuedOrders collezione che contiene gli ordini da memorizzare
+     * @throws UncheckedIOException se il file non può essere riscritto
+     */
+    @Override
+    public void storeIssuedOrders(Collection<Order> issuedOrders) {
+        lock.lock();
+        try {
+            rewrite(issuedOrders::forEach);
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while rewriting " + file + ": " + e.getMessage());
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per sostituire il file con un nuovo storico: gli ordini vengono codificati nel buffer riusato e scritti
+     * a blocchi in un file temporaneo, che sostituisce quello attuale solo dopo essere stato forzato su disco
+     * @param orders funzione che passa in ordine al consumer ricevuto gli ordini del nuovo storico
+     */
+    private void rewrite(Consumer<Consumer<Order>> orders) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Path temporary = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        Files.deleteIfExists(temporary);
+        try (FileChannel rewritten = open(temporary)) {
+            buffer.clear();
+            try {
+                orders.accept(order -> {
+                    try {
+                        if (buffer.remaining() < RECORD_SIZE) {
+                            drain(rewritten);
+                        }
+                        encode(order, buffer);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            drain(rewritten);
+            rewritten.force(false); // il nuovo storico deve essere su disco prima di sostituire quello vecchio
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public CompletableFuture<Void> storeUsers(Collection<User> users) {
+        return json.storeUsers(users);
+    }
+
+    @Override
+    public CompletableFuture<Void> appendUsers(Collection<User> users) {
+        return json.appendUsers(users);
+    }
+
+    @Override
+    public void sync() {
+        lock.lock();
+        try {
+            try {
+                if (channel != null) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while syncing " + file + ": " + e.getMessage());
+                throw new UncheckedIOException(e);
+            }
+            json.sync();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per il caricamento degli ordini dal file binario, letto tramite mappatura in memoria: ogni record viene
+     * decodificato e passato al reader, senza tenere lo storico in memoria. Se il file non esiste ancora, viene prima
+     * importato lo storico json precedente (se presente), letto in streaming con la riscrittura atomica di
+     * storeIssuedOrders(): un'importazione fallita non lascia un file parziale, e viene ripetuta al prossimo avvio.
+     * @param reader funzione chiamata con ogni ordine letto
+     * @throws UncheckedIOException se l'importazione dello storico json fallisce (l'avvio va interrotto)
+     */
+    @Override
+    public void readOrders(Consumer<Order> reader) {
+        lock.lock();
+        try {
+            if (!Files.exists(file)) {
+                if (!Files.exists(Paths.get(legacyOrdersInput))) {
+                    return;
+                }
+                System.out.println("[INFO] Importing issued orders from " + legacyOrdersInput + " into " + file + ".");
+                try {
+                    rewrite(json::readOrders);
+                } catch (IOException e) {
+                    System.err.println("[ERR] Error while importing " + legacyOrdersInput + ": " + e.getMessage());
+                    throw new UncheckedIOException(e);
+                }
+            }
+            try (FileChannel input = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long length = input.size();
+                if (length < HEADER_SIZE || !checkHeader(input.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE))) {
+                    System.err.println("[ERR] " + file + " is not a trade history file.");
+                    return;
+                }
+                long records = (length - HEADER_SIZE) / RECORD_SIZE;
+                long valid = HEADER_SIZE + records * RECORD_SIZE;
+                // mappo il file a blocchi di record interi (una singola mappatura è limitata a 2 GB)
+                for (long position = HEADER_SIZE; position < valid; position += MAP_SIZE) {
+                    MappedByteBuffer mapped = input.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, valid - position));
+                    while (mapped.hasRemaining()) {
+                        reader.accept(decode(mapped));
+                    }
+                }
+                if (valid < length) {
+                    // scarto il record incompleto, così i nuovi record restano allineati
+                    System.err.println("[ERR] Discarding " + (length - valid) + " bytes of an incomplete record at the end of " + file);
+                    input.truncate(valid);
+                }
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while reading " + file + ": " + e.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ConcurrentLinkedQueue<User> readUsers() {
+        return json.readUsers();
+    }
+
+    /**
+     * Metodo per aprire un file in scrittura (in coda), creando l'intestazione se il file è nuovo e scartando
+     * un eventuale record incompleto, così i nuovi record restano allineati
+     * @param path file da aprire
+     * @return canale aperto in scrittura
+     */
+    private static FileChannel open(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        FileChannel opened = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            long length = opened.size();
+            if (length < HEADER_SIZE) {
+                opened.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+                header.flip();
+                while (header.hasRemaining()) {
+                    opened.write(header);
+                }
+            } else if ((length - HEADER_SIZE) % RECORD_SIZE != 0) {
+                opened.truncate(length - (length - HEADER_SIZE) % RECORD_SIZE);
+            }
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        return opened;
+    }
+
+    /**
+     * Metodo per scrivere in coda al canale il contenuto del buffer riusato, svuotandolo
+     * @param out canale in cui scrivere
+     */
+    private void drain(FileChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Metodo per codificare gli ordini nel buffer riusato e scriverli in coda al canale
+     * @param out canale in cui scrivere
+     * @param issuedOrders ordini da scrivere
+     */
+    private void write(FileChannel out, Collection<Order> issuedOrders) throws IOException {
+        buffer.clear();
+        for (Order order : issuedOrders) {
+            if (buffer.remaining() < RECORD_SIZE) {
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            encode(order, buffer);
+        }
+        drain(out);
+    }
+
+    /**
+     * Metodo per chiudere il canale dopo un'aggiunta fallita: alla riapertura i record scritti in parte vengono scartati
+     */
+    private void discard() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while closing " + file + ": " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    private boolean checkHeader(ByteBuffer header) {
+        return header.getInt() == MAGIC && header.getInt() == VERSION && header.getInt() == RECORD_SIZE;
+    }
+
+    /**
+     * Metodo per verificare che un simbolo possa essere memorizzato in un record
+     * @param symbol simbolo da verificare
+     * @return true se la sua codifica UTF-8 non supera SYMBOL_SIZE byte
+     */
+    static boolean fits(String symbol) {
+        return symbol.getBytes(StandardCharsets.UTF_8).length <= SYMBOL_SIZE;
+    }
+
+    /**
+     * Metodo per codificare un ordine come record di dimensione fissa (usato anche dalle partizioni di TradeHistory)
+     * @param order ordine da codificare
+     * @param out buffer in cui scrivere il record
+     * @throws IOException se il simbolo dell'ordine è più lungo di SYMBOL_SIZE byte (nulla viene scritto)
+     */
+    static void encode(Order order, ByteBuffer out) throws IOException {
+        byte[] symbol = order.getSymbol().getBytes(StandardCharsets.UTF_8);
+        if (symbol.length > SYMBOL_SIZE) {
+            throw new IOException("symbol " + order.getSymbol() + " of order " + order.getId() + " is longer than " + SYMBOL_SIZE + " bytes");
+        }
+        int start = out.position();
+        out.putInt(order.getId());
+        out.put((byte) OrderStore.side(order.getType()));
+        out.put((byte) OrderStore.orderType(order.getOrderType()));
+        out.putInt(order.getInitialSize());
+        out.putInt(order.getPrice());
+        out.putLong(order.getTimestamp());
+        out.putLong(order.getSequence());
+        out.put(symbol);
+        while (out.position() < start + RECORD_SIZE) {
+            out.put((byte) 0);
+        }
+    }
+
+    /**
+     * Metodo per decodificare il record alla posizione corrente del buffer
+     * @param in buffer posizionato all'inizio di un record
+     * @return ordine memorizzato nel record
+     */
+    static Order decode(ByteBuffer in) {
+        int start = in.position();
+        int id = in.getInt();
+        int side = in.get();
+        int orderType = in.get();
+        int size = in.getInt();
+        int price = in.getInt();
+        long timestamp = in.getLong();
+        long sequence = in.getLong();
+        int symbolStart = in.position();
+        int symbolLength = 0;
+        while (symbolLength < SYMBOL_SIZE && in.get(symbolStart + symbolLength) != 0) {
+            symbolLength++;
+        }
+        byte[] symbol = new byte[symbolLength];
+        in.get(symbol);
+        in.position(start + RECORD_SIZE);
+        return new Order(id, OrderStore.sideName(side), OrderStore.orderTypeName(orderType), size, price, timestamp, sequence,
+                new String(symbol, StandardCharsets.UTF_8));
+    }
+}
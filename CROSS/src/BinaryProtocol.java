@@ -0,0 +1,169 @@
+import com.google.gson.JsonObject;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Classe che definisce il protocollo binario, alternativo alle righe json, e la codifica dei suoi messaggi.
+ * Il client lo richiede subito dopo la connessione con l'azione "binary" (senza richiesta json) e, dopo la risposta
+ * json di conferma, entrambi i lati scambiano solo frame: lunghezza (int, numero di byte successivi), tipo (byte) e
+ * contenuto a layout fisso, in big endian. Inserimento degli ordini, cancellazioni e relativi esiti hanno un layout
+ * dedicato di pochi byte, senza testo da costruire o da analizzare; le altre azioni viaggiano in frame JSON che
+ * contengono l'azione e la richiesta (o la risposta) del protocollo testuale.
+ * Un frame CORRELATED contiene un id di correlazione scelto dal client seguito da un frame di richiesta (senza
+ * lunghezza): la risposta arriva in un frame CORRELATED con lo stesso id, anche dopo quelle di richieste successive,
+ * come le righe json con id (vedi ServerTask).
+ * Le stringhe (simbolo, azione, json) sono codificate come lunghezza (int) seguita dai byte UTF-8; un simbolo vuoto
+ * indica il simbolo predefinito.
+ */
+public class BinaryProtocol {
+    public static final String ACTION = "binary"; // azione con cui il client richiede il protocollo binario
+    public static final int VERSION = 1; // versione del protocollo
+    public static final int MAX_FRAME_SIZE = 1024 * 1024; // dimensione massima del contenuto di un frame
+
+    // tipi delle richieste
+    public static final byte NEW_ORDER = 1; // tipo d'ordine (byte), lato (byte), dimensione (int), prezzo (int), simbolo
+    public static final byte CANCEL = 2; // id dell'ordine (int), simbolo
+    public static final byte JSON = 3; // azione, richiesta json (vuota se l'azione non la prevede)
+    // tipi delle risposte
+    public static final byte EXECUTION_REPORT = 4; // id dell'ordine (int, -1 se non eseguito), esito (byte)
+    public static final byte CANCEL_REPORT = 5; // esito (byte)
+    public static final byte JSON_RESPONSE = 6; // risposta json
+    // tipo delle richieste e delle risposte con id di correlazione
+    public static final byte CORRELATED = 7; // id di correlazione (long), frame di richiesta o di risposta senza lunghezza
+    // esiti
+    public static final byte OK = 0;
+    public static final byte REJECTED = 1; // cancellazione non eseguita
+    public static final byte UNKNOWN_SYMBOL = 2; // simbolo non quotato
+    public static final byte INVALID_ORDER = 3; // tipo d'ordine o lato non validi
+    public static final byte ERROR = 4; // errore del server: comando non eseguito, o ordine eseguito ma non memorizzato
+
+    private static final String[] ORDER_ACTIONS = {"insertLimitOrder", "insertMarketOrder", "insertStopOrder"}; // per OrderStore.LIMIT, MARKET e STOP
+
+    private BinaryProtocol() {
+    }
+
+    public static byte[] newOrder(int orderType, int side, int size, int price, String symbol) {
+        byte[] symbolBytes = symbol.getBytes(StandardCharsets.UTF_8);
+        return frame(NEW_ORDER, 1 + 1 + 4 + 4 + 4 + symbolBytes.length)
+                .put((byte) orderType).put((byte) side).putInt(size).putInt(price)
+                .putInt(symbolBytes.length).put(symbolBytes).array();
+    }
+
+    public static byte[] cancel(int orderId, String symbol) {
+        byte[] symbolBytes = symbol.getBytes(StandardCharsets.UTF_8);
+        return frame(CANCEL, 4 + 4 + symbolBytes.length).putInt(orderId).putInt(symbolBytes.length).put(symbolBytes).array();
+    }
+
+    public static byte[] json(String action, String request) {
+        byte[] actionBytes = action.getBytes(StandardCharsets.UTF_8);
+        byte[] requestBytes = (request == null ? new byte[0] : request.getBytes(StandardCharsets.UTF_8));
+        return frame(JSON, 4 + actionBytes.length + 4 + requestBytes.length)
+                .putInt(actionBytes.length).put(actionBytes).putInt(requestBytes.length).put(requestBytes).array();
+    }
+
+    public static byte[] executionReport(int orderId, byte status) {
+        return frame(EXECUTION_REPORT, 4 + 1).putInt(orderId).put(status).array();
+    }
+
+    public static byte[] cancelReport(byte status) {
+        return frame(CANCEL_REPORT, 1).put(status).array();
+    }
+
+    /**
+     * Metodo per aggiungere un id di correlazione ad un frame
+     * @param id id di correlazione
+     * @param frame frame con il prefisso di lunghezza
+     * @return frame CORRELATED
+     */
+    public static byte[] correlated(long id, byte[] frame) {
+        return frame(CORRELATED, 8 + frame.length - 4).putLong(id).put(frame, 4, frame.length - 4).array();
+    }
+
+    /**
+     * Metodo per costruire il frame di una risposta json
+     * @param response risposta json (senza il terminatore di riga)
+     * @param length numero di byte della risposta da usare
+     * @return frame
+     */
+    public static byte[] jsonResponse(byte[] response, int length) {
+        return frame(JSON_RESPONSE, length).put(response, 0, length).array();
+    }
+
+    private static ByteBuffer frame(byte type, int length) {
+        return ByteBuffer.allocate(4 + 1 + length).putInt(1 + length).put(type);
+    }
+
+    /**
+     * Metodo per leggere una stringa dal contenuto di un frame
+     * @param in contenuto del frame, posizionato sulla lunghezza della stringa
+     * @return stringa letta
+     */
+    public static String getString(ByteBuffer in) {
+        int length = in.getInt();
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * Metodo per ottenere l'azione del protocollo testuale corrispondente ad un tipo d'ordine
+     * @param orderType OrderStore.LIMIT, MARKET o STOP
+     * @return azione (e.g. insertLimitOrder), null se il tipo non è valido
+     */
+    public static String orderAction(int orderType) {
+        return (orderType >= 0 && orderType < ORDER_ACTIONS.length ? ORDER_ACTIONS[orderType] : null);
+    }
+
+    /**
+     * Metodo per leggere il prossimo frame da uno stream
+     * @param in stream di input
+     * @return contenuto del frame (tipo e dati), null se lo stream è terminato
+     * @throws IOException se la lettura fallisce o il frame non è valido
+     */
+    public static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    /**
+     * Metodo per convertire un esito di esecuzione nella risposta del protocollo testuale
+     * @param frame contenuto di un frame EXECUTION_REPORT, posizionato dopo il tipo
+     * @param symbol simbolo della richiesta
+     * @return risposta json equivalente
+     */
+    public static JsonObject toJson(ByteBuffer frame, String symbol) {
+        JsonObject response = new JsonObject();
+        if (frame.get(0) == EXECUTION_REPORT) {
+            int orderId = frame.getInt();
+            response.addProperty("orderId", orderId);
+            byte status = frame.get();
+            if (status == UNKNOWN_SYMBOL) {
+                response.addProperty("errorMessage", "Unknown symbol " + symbol + ".");
+            } else if (status == INVALID_ORDER) {
+                response.addProperty("errorMessage", "Invalid order type or side.");
+            } else if (status == ERROR) {
+                response.addProperty("errorMessage", orderId >= 0 ? "Order executed, but it could not be stored." : "Order could not be executed.");
+            }
+        } else {
+            byte status = frame.get();
+            response.addProperty("response", status == OK ? "100" : "101");
+            response.addProperty("errorMessage", status == OK ? "OK." : status == UNKNOWN_SYMBOL ? "Unknown symbol " + symbol + "."
+                    : status == ERROR ? "Order could not be cancelled."
+                    : "Order does not exist or belongs to different user or has already been finalized.");
+        }
+        return response;
+    }
+}
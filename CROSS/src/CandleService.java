@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Classe per il calcolo delle candele (apertura, massimo, minimo, chiusura e volume) di ogni simbolo a più
+ * risoluzioni (1m, 5m, 1h, 1d), alimentata dal flusso degli ordini evasi.
+ * Ogni ordine evaso aggiorna solo la candela in corso della risoluzione più fine; quando questa si chiude viene
+ * aggiunta alla candela in corso della risoluzione successiva, e così via: le risoluzioni più grossolane sono quindi
+ * aggregate in modo incrementale dalle candele più fini e mai ricalcolate dagli ordini.
+ * Le candele chiuse di ogni risoluzione sono conservate in un buffer circolare di capacità pari alla ritenzione
+ * configurata (numero di candele), quindi la memoria occupata non cresce con la durata dell'esecuzione.
+ * Le candele sono allineate all'epoch (in UTC), usano l'istante di esecuzione degli ordini e non sono persistenti:
+ * dopo un riavvio vengono ricostruite dai nuovi ordini evasi.
+ */
+public class CandleService {
+    public static final String[] RESOLUTIONS = {"1m", "5m", "1h", "1d"}; // risoluzioni, dalla più fine
+    private static final long[] DURATIONS = {60_000L, 300_000L, 3_600_000L, 86_400_000L}; // durata (in ms) di ogni risoluzione
+
+    private final int[] retention; // numero di candele chiuse conservate per ogni risoluzione
+    private final ConcurrentHashMap<String, CandleSeries> series; // candele di ogni simbolo
+
+    /**
+     * @param retention numero di candele da conservare per ogni risoluzione (per nome, e.g. "1m")
+     */
+    public CandleService(Map<String, Integer> retention) {
+        this.retention = new int[RESOLUTIONS.length];
+        for (int i = 0; i < RESOLUTIONS.length; i++) {
+            this.retention[i] = Math.max(1, retention.getOrDefault(RESOLUTIONS[i], 1));
+        }
+        this.series = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Metodo per ottenere l'indice di una risoluzione
+     * @param name nome della risoluzione (e.g. "5m")
+     * @return indice della risoluzione, -1 se non esiste
+     */
+    public static int resolution(String name) {
+        for (int i = 0; i < RESOLUTIONS.length; i++) {
+            if (RESOLUTIONS[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static long duration(int resolution) {
+        return DURATIONS[resolution];
+    }
+
+    /**
+     * Metodo per aggiornare le candele con gli ordini evasi da un comando
+     * @param orders ordini evasi
+     * @param time istante di esecuzione, in ms dall'epoch
+     */
+    public void onTrades(Collection<Order> orders, long time) {
+        for (Order order : orders) {
+            series.computeIfAbsent(order.getSymbol(), symbol -> new CandleSeries(retention))
+                    .add(order.getPrice(), order.getSize(), time);
+        }
+    }
+
+    /**
+     * Metodo per ottenere le candele di un simbolo in un intervallo di tempo
+     * @param symbol simbolo richiesto
+     * @param resolution indice della risoluzione
+     * @param from istante iniziale (incluso), in ms dall'epoch
+     * @param to istante finale (escluso), in ms dall'epoch
+     * @return candele con almeno un ordine evaso, in ordine di tempo (comprese quelle in corso)
+     */
+    public List<Candle> get(String symbol, int resolution, long from, long to) {
+        CandleSeries candles = series.get(symbol);
+        return candles == null ? new ArrayList<>() : candles.get(resolution, Math.floorDiv(from, DURATIONS[resolution]),
+                Math.floorDiv(to - 1, DURATIONS[resolution]) + 1);
+    }
+
+    /**
+     * Classe che rappresenta le candele di un simbolo: per ogni risoluzione, la candela in corso e il buffer
+     * circolare delle candele chiuse (una per intervallo, indicizzate per numero di intervallo modulo la capacità).
+     * Le candele vengono aggiornate dal solo thread del motore del simbolo e lette dai ServerTask.
+     */
+    private static class CandleSeries {
+        private final Candle[] current; // candela in corso di ogni risoluzione (null se non ancora iniziata)
+        private final Candle[][] closed; // candele chiuse di ogni risoluzione
+        private final long[] lastClosed; // intervallo dell'ultima candela chiusa di ogni risoluzione
+        private final ReentrantLock lock; // lock delle candele del simbolo
+
+        CandleSeries(int[] retention) {
+            this.current = new Candle[RESOLUTIONS.length];
+            this.closed = new Candle[RESOLUTIONS.length][];
+            this.lastClosed = new long[RESOLUTIONS.length];
+            for (int i = 0; i < RESOLUTIONS.length; i++) {
+                this.closed[i] = new Candle[retention[i]];
+                this.lastClosed[i] = Long.MIN_VALUE;
+            }
+            this.lock = new ReentrantLock();
+        }
+
+        void add(int price, int size, long time) {
+            lock.lock();
+            try {
+                merge(0, new Candle(Math.floorDiv(time, DURATIONS[0]) * DURATIONS[0], price, price, price, price, size));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Metodo per aggiungere una candela (o un ordine) alla candela in corso di una risoluzione; se appartiene
+         * ad un intervallo successivo, la candela in corso viene chiusa e aggiunta alla risoluzione successiva
+         * @param level indice della risoluzione
+         * @param candle candela da aggiungere, successiva a quelle già aggiunte
+         */
+        private void merge(int level, Candle candle) {
+            long bucket = Math.floorDiv(candle.time, DURATIONS[level]);
+            Candle open = current[level];
+            if (open != null && open.time / DURATIONS[level] == bucket) {
+                open.merge(candle);
+                return;
+            }
+            if (open != null) {
+                long closedBucket = open.time / DURATIONS[level];
+                closed[level][(int) Math.floorMod(closedBucket, (long) closed[level].length)] = open;
+                lastClosed[level] = closedBucket;
+                if (level + 1 < RESOLUTIONS.length) {
+                    merge(level + 1, open.copy());
+                }
+            }
+            current[level] = new Candle(bucket * DURATIONS[level], candle.open, candle.high, candle.low, candle.close, candle.volume);
+        }
+
+        /**
+         * Metodo per ottenere le candele di una risoluzione negli intervalli [fromBucket, toBucket)
+         * @param level indice della risoluzione
+         * @param fromBucket primo intervallo (incluso)
+         * @param toBucket ultimo intervallo (escluso)
+         * @return copia delle candele trovate, in ordine di tempo
+         */
+        List<Candle> get(int level, long fromBucket, long toBucket) {
+            lock.lock();
+            try {
+                List<Candle> result = new ArrayList<>();
+                Candle[] ring = closed[level];
+                if (lastClosed[level] != Long.MIN_VALUE) {
+                    // solo gli ultimi ring.length intervalli possono essere ancora nel buffer
+                    long first = Math.max(fromBucket, lastClosed[level] - ring.length + 1);
+                    long last = Math.min(toBucket - 1, lastClosed[level]);
+                    for (long bucket = first; bucket <= last; bucket++) {
+                        Candle candle = ring[(int) Math.floorMod(bucket, (long) ring.length)];
+                        if (candle != null && candle.time / DURATIONS[level] == bucket) {
+                            result.add(candle.copy());
+                        }
+                    }
+                }
+                // la candela in corso di questa risoluzione non comprende ancora le candele in corso delle risoluzioni più
+                // fini (più recenti): le aggiungo in ordine di tempo, raggruppandole per intervallo di questa risoluzione
+                Candle pending = null;
+                for (int i = level; i >= 0; i--) {
+                    if (current[i] == null) {
+                        continue;
+                    }
+                    long bucket = current[i].time / DURATIONS[level];
+                    if (pending != null && pending.time / DURATIONS[level] == bucket) {
+                        pending.merge(current[i]);
+                    } else {
+                        addPending(result, pending, fromBucket, toBucket, level);
+                        pending = new Candle(bucket * DURATIONS[level], current[i].open, current[i].high, current[i].low,
+                                current[i].close, current[i].volume);
+                    }
+                }
+                addPending(result, pending, fromBucket, toBucket, level);
+                return result;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void addPending(List<Candle> result, Candle pending, long fromBucket, long toBucket, int level) {
+            if (pending != null && pending.time / DURATIONS[level] >= fromBucket && pending.time / DURATIONS[level] < toBucket) {
+                result.add(pending);
+            }
+        }
+    }
+
+    /**
+     * Classe che rappresenta una candela: prezzi di apertura, massimo, minimo e chiusura e volume di un intervallo.
+     */
+    static class Candle {
+        final long time; // inizio dell'intervallo, in ms dall'epoch
+        int open;
+        int high;
+        int low;
+        int close;
+        long volume; // somma delle dimensioni degli ordini evasi
+
+        Candle(long time, int open, int high, int low, int close, long volume) {
+            this.time = time;
+            this.open = open;
+            this.high = high;
+            this.low = low;
+            this.close = close;
+            this.volume = volume;
+        }
+
+        /**
+         * Metodo per aggiungere alla candela una candela successiva
+         * @param next candela successiva
+         */
+        void merge(Candle next) {
+            high = Math.max(high, next.high);
+            low = Math.min(low, next.low);
+            close = next.close;
+            volume += next.volume;
+        }
+
+        Candle copy() {
+            return new Candle(time, open, high, low, close, volume);
+        }
+    }
+}
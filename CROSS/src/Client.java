@@ -2,8 +2,15 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
@@ -18,10 +25,18 @@ public class Client {
     private int serverUdpPort; // porta UDP del server
     private int timeout; // timeout (in ms) della connessione
     private int soTimeout; // timeout (in ms) delle operazioni nella connessione
+    private String protocol; // protocollo della connessione (json o binary)
+    private boolean binary; // true se il server ha accettato il protocollo binario
     private Socket tcpSocket; // socket TCP per la comunicazione col server
     private BufferedWriter writer; // stream di scrittura della connessione
     private BufferedReader reader; // stream di lettura della connessione
+    private DataOutputStream frameOutput; // stream di scrittura dei frame (protocollo binario)
+    private DataInputStream frameInput; // stream di lettura dei frame (protocollo binario)
     private ClientUDP udp; // thread per la gestione dell'ascolto delle notifiche UDP
+    private String symbol = "BTC/USD"; // simbolo su cui vengono inviati ordini, cancellazioni e richieste di storico
+    private final Map<Long, CompletableFuture<JsonObject>> pending = new ConcurrentHashMap<>(); // richieste asincrone in attesa di risposta, per id di correlazione
+    private final AtomicLong nextRequestId = new AtomicLong(); // prossimo id di correlazione
+    private Thread responseReader; // thread che legge le risposte delle richieste asincrone (avviato alla prima)
 
     public Client() {
         loadConfiguration(CONFIG_DIR + "/userConfig.json"); // configuro le impostazioni del client dal file di configurazione
@@ -44,15 +59,41 @@ public class Client {
          } catch (IOException e) {
              System.err.println("[ERR] Error while opening input stream: " + e.getMessage());
          }
+         if (protocol.equals(BinaryProtocol.ACTION)) {
+             negotiateBinary();
+         }
          this.udp = new ClientUDP(serverAddress, serverUdpPort); // inizializzo il ClientUDP
          new Thread(this.udp).start(); // avvio un thread per il ClientUDP (le notifiche vengono gestite in modo asincrono rispetto alla connessione TCP)
     }
 
+    /**
+     * Metodo per richiedere il protocollo binario: se il server lo accetta, le richieste successive vengono inviate
+     * come frame, altrimenti la connessione continua con le righe json
+     */
+    private void negotiateBinary() {
+        try {
+            writer.write(BinaryProtocol.ACTION);
+            writer.newLine();
+            writer.flush();
+            JsonObject response = JsonParser.parseString(reader.readLine()).getAsJsonObject();
+            if (response.get("response").getAsInt() == 100) {
+                // il server non invia nulla oltre alla conferma, quindi il reader non ha letto byte dei frame
+                this.frameOutput = new DataOutputStream(new BufferedOutputStream(tcpSocket.getOutputStream()));
+                this.frameInput = new DataInputStream(new BufferedInputStream(tcpSocket.getInputStream()));
+                this.binary = true;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[ERR] Error while negotiating binary protocol: " + e.getMessage());
+        }
+    }
+
     // #############################################
-    // Ogni metodo è composto da 3 fasi:
+    // Ogni metodo è composto da 3 fasi (vedi request):
     // 1. Scrittura dell'operazione da svolgere e in seguito della richiesta json sullo stream di output,
     // 2. Ricezione della risposta come stringa (formattata json),
     // 3. Conversione della stringa in JsonObject.
+    // Con il protocollo binario ordini e cancellazioni usano frame dedicati (vedi BinaryProtocol), le altre
+    // operazioni viaggiano in frame JSON con le stesse richieste e risposte.
     // #############################################
 
     /**
@@ -62,33 +103,11 @@ public class Client {
      * @return risposta del server
      */
     public JsonObject register (String username, String password) {
-        try {
-            writer.write("register");
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
-        }
         JsonObject query = new JsonObject();
         query.addProperty("username", username);
         query.addProperty("password", password);
         query.addProperty("UDPport", this.udp.getDs().getLocalPort()); // porta udp su cui il client rimane in ascolto per i messaggi di notifica
-        try {
-            writer.write(query.toString());
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while writing on the output stream: " + e.getMessage());
-        }
-
-        String response = "";
-        try {
-            response = reader.readLine();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while reading input stream: " + e.getMessage());
-        }
-        JsonObject result = JsonParser.parseString(response).getAsJsonObject();
-        return result;
+        return request("register", query);
     }
 
     /**
@@ -98,34 +117,11 @@ public class Client {
      * @return risposta del server
      */
     public JsonObject login (String username, String password) {
-        try {
-            writer.write("login");
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
-        }
         JsonObject query = new JsonObject();
         query.addProperty("username", username);
         query.addProperty("password", password);
         query.addProperty("UDPport", this.udp.getDs().getLocalPort()); // come per la registrazione, per indicare la porta su cui il client rimane in ascolto per le notifiche
-        try {
-            writer.write(query.toString());
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while writing on the output stream: " + e.getMessage());
-        }
-
-        String response = "";
-        try {
-            response = reader.readLine();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while reading input stream: " + e.getMessage());
-        }
-        JsonObject result = JsonParser.parseString(response).getAsJsonObject();
-
-        return result;
+        return request("login", query);
     }
 
     /**
@@ -136,33 +132,11 @@ public class Client {
      * @return risposta del server
      */
     public JsonObject updateCredentials (String username, String currentPassword, String newPassword) {
-        try {
-            writer.write("updateCredentials");
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
-        }
         JsonObject query = new JsonObject();
         query.addProperty("username", username);
         query.addProperty("old_password", currentPassword);
         query.addProperty("new_password", newPassword);
-        try {
-            writer.write(query.toString());
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while writing on the output stream: " + e.getMessage());
-        }
-
-        String result = "";
-        try {
-            result = reader.readLine();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while reading input stream: " + e.getMessage());
-        }
-        JsonObject response = JsonParser.parseString(result).getAsJsonObject();
-        return response;
+        return request("updateCredentials", query);
     }
 
     /**
@@ -171,21 +145,7 @@ public class Client {
      * @return risposta del server
      */
     public JsonObject logout (String username) {
-        try {
-            writer.write("logout");
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
-        }
-        String result = "";
-        try {
-            result = reader.readLine();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while reading input stream: " + e.getMessage());
-        }
-        JsonObject response = JsonParser.parseString(result).getAsJsonObject();
-        return response;
+        return request("logout", null);
     }
 
     /**
@@ -196,33 +156,24 @@ public class Client {
      * @return risposta del server
      */
     public JsonObject insertLimitOrder (String tipo, int dimensione, int prezzoLimite) {
-        try {
-            writer.write("insertLimitOrder");
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
-        }
-        JsonObject query = new JsonObject();
-        query.addProperty("type", tipo);
-        query.addProperty("size", dimensione);
-        query.addProperty("price", prezzoLimite);
-        try {
-            writer.write(query.toString());
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while writing on the output stream: " + e.getMessage());
+        if (binary) {
+            return order(OrderStore.LIMIT, tipo, dimensione, prezzoLimite);
         }
+        return request("insertLimitOrder", orderQuery(tipo, dimensione, prezzoLimite));
+    }
 
-        String result = "";
-        try {
-            result = reader.readLine();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while reading input stream: " + e.getMessage());
+    /**
+     * Metodo per inserire un limit order senza attenderne l'esito (vedi requestAsync)
+     * @param tipo tipo dell'ordine (ask o bid)
+     * @param dimensione dimensione dell'ordine
+     * @param prezzoLimite prezzo limite da pagare/ricevere
+     * @return risposta del server, completata alla sua ricezione
+     */
+    public CompletableFuture<JsonObject> insertLimitOrderAsync (String tipo, int dimensione, int prezzoLimite) {
+        if (binary) {
+            return frameRequestAsync(BinaryProtocol.newOrder(OrderStore.LIMIT, OrderStore.side(tipo), dimensione, prezzoLimite, this.symbol));
         }
-        JsonObject response = JsonParser.parseString(result).getAsJsonObject();
-        return response;
+        return requestAsync("insertLimitOrder", orderQuery(tipo, dimensione, prezzoLimite));
     }
 
     /**
@@ -232,32 +183,23 @@ public class Client {
      * @return risposta del server
      */
     public JsonObject insertMarketOrder (String tipo, int dimensione) {
-        try {
-            writer.write("insertMarketOrder");
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
-        }
-        JsonObject query = new JsonObject();
-        query.addProperty("type", tipo);
-        query.addProperty("size", dimensione);
-        try {
-            writer.write(query.toString());
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while writing on the output stream: " + e.getMessage());
+        if (binary) {
+            return order(OrderStore.MARKET, tipo, dimensione, 0);
         }
+        return request("insertMarketOrder", orderQuery(tipo, dimensione, null));
+    }
 
-        String result = "";
-        try {
-            result = reader.readLine();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while reading input stream: " + e.getMessage());
+    /**
+     * Metodo per inserire un market order senza attenderne l'esito (vedi requestAsync)
+     * @param tipo tipo dell'ordine (ask o bid)
+     * @param dimensione dimensione dell'ordine
+     * @return risposta del server, completata alla sua ricezione
+     */
+    public CompletableFuture<JsonObject> insertMarketOrderAsync (String tipo, int dimensione) {
+        if (binary) {
+            return frameRequestAsync(BinaryProtocol.newOrder(OrderStore.MARKET, OrderStore.side(tipo), dimensione, 0, this.symbol));
         }
-        JsonObject response = JsonParser.parseString(result).getAsJsonObject();
-        return response;
+        return requestAsync("insertMarketOrder", orderQuery(tipo, dimensione, null));
     }
 
     /**
@@ -268,33 +210,35 @@ public class Client {
      * @return risposta del server
      */
     public JsonObject insertStopOrder (String tipo, int dimensione, int stopPrice) {
-        try {
-            writer.write("insertStopOrder");
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
+        if (binary) {
+            return order(OrderStore.STOP, tipo, dimensione, stopPrice);
+        }
+        return request("insertStopOrder", orderQuery(tipo, dimensione, stopPrice));
+    }
+
+    /**
+     * Metodo per inserire uno stop order senza attenderne l'esito (vedi requestAsync)
+     * @param tipo tipo dell'ordine (ask o bid)
+     * @param dimensione dimensione dell'ordine
+     * @param stopPrice prezzo soglia da pagare/ricevere
+     * @return risposta del server, completata alla sua ricezione
+     */
+    public CompletableFuture<JsonObject> insertStopOrderAsync (String tipo, int dimensione, int stopPrice) {
+        if (binary) {
+            return frameRequestAsync(BinaryProtocol.newOrder(OrderStore.STOP, OrderStore.side(tipo), dimensione, stopPrice, this.symbol));
         }
+        return requestAsync("insertStopOrder", orderQuery(tipo, dimensione, stopPrice));
+    }
+
+    private JsonObject orderQuery(String tipo, int dimensione, Integer prezzo) {
         JsonObject query = new JsonObject();
         query.addProperty("type", tipo);
+        query.addProperty("symbol", this.symbol);
         query.addProperty("size", dimensione);
-        query.addProperty("price", stopPrice);
-        try {
-            writer.write(query.toString());
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while writing on the output stream: " + e.getMessage());
+        if (prezzo != null) {
+            query.addProperty("price", prezzo);
         }
-
-        String result = "";
-        try {
-            result = reader.readLine();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while reading input stream: " + e.getMessage());
-        }
-        JsonObject response = JsonParser.parseString(result).getAsJsonObject();
-        return response;
+        return query;
     }
 
     /**
@@ -303,81 +247,328 @@ public class Client {
      * @return risposta del server
      */
     public JsonObject cancelOrder (int orderID) {
-        try {
-            writer.write("cancelOrder");
-            writer.newLine();
-            writer.flush();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
+        if (binary) {
+            return frameRequest(BinaryProtocol.cancel(orderID, this.symbol));
         }
+        return request("cancelOrder", cancelQuery(orderID));
+    }
+
+    /**
+     * Metodo per cancellare un ordine senza attenderne l'esito (vedi requestAsync)
+     * @param orderID id dell'ordine da cancellare
+     * @return risposta del server, completata alla sua ricezione
+     */
+    public CompletableFuture<JsonObject> cancelOrderAsync (int orderID) {
+        if (binary) {
+            return frameRequestAsync(BinaryProtocol.cancel(orderID, this.symbol));
+        }
+        return requestAsync("cancelOrder", cancelQuery(orderID));
+    }
+
+    /**
+     * Metodo per la gestione dell'invio e ricezione dei messaggi per l'inserimento di più ordini e cancellazioni sul
+     * simbolo corrente, eseguiti dal server in un unico comando
+     * @param orders elementi del batch, ognuno con l'azione (insertLimitOrder, insertMarketOrder, insertStopOrder o
+     *               cancelOrder) e i campi della richiesta singola corrispondente
+     * @return risposta del server, con l'esito di ogni elemento in "results"
+     */
+    public JsonObject insertBatch (JsonArray orders) {
+        return request("insertBatch", batchQuery(orders));
+    }
+
+    /**
+     * Metodo per inserire un batch di ordini e cancellazioni senza attenderne l'esito (vedi requestAsync)
+     * @param orders elementi del batch (vedi insertBatch)
+     * @return risposta del server, completata alla sua ricezione
+     */
+    public CompletableFuture<JsonObject> insertBatchAsync (JsonArray orders) {
+        return requestAsync("insertBatch", batchQuery(orders));
+    }
+
+    private JsonObject batchQuery(JsonArray orders) {
+        JsonObject query = new JsonObject();
+        query.addProperty("symbol", this.symbol);
+        query.add("orders", orders);
+        return query;
+    }
+
+    private JsonObject cancelQuery(int orderID) {
         JsonObject query = new JsonObject();
         query.addProperty("orderId", orderID);
+        query.addProperty("symbol", this.symbol);
+        return query;
+    }
+
+    /**
+     * Metodo per la gestione dell'invio e ricezione dei messaggi per ottenere lo storico dei dati degli ordini evasi
+     * @param mese mese di cui ricevere i dati
+     * @return risposta del server
+     */
+    public JsonObject getPriceHistory (String mese) {
+        JsonObject query = new JsonObject();
+        query.addProperty("month", mese);
+        query.addProperty("symbol", this.symbol);
+        return request("getPriceHistory", query);
+    }
+
+    /**
+     * Metodo per la gestione dell'invio e ricezione dei messaggi per ottenere le candele del simbolo corrente
+     * @param resolution risoluzione delle candele (1m, 5m, 1h o 1d)
+     * @param from istante iniziale, in ms dall'epoch (le candele arrivano fino all'istante attuale)
+     * @return risposta del server
+     */
+    public JsonObject getCandles (String resolution, long from) {
+        JsonObject query = new JsonObject();
+        query.addProperty("resolution", resolution);
+        query.addProperty("from", from);
+        query.addProperty("symbol", this.symbol);
+        return request("getCandles", query);
+    }
+
+    /**
+     * Metodo per la gestione dell'invio e ricezione dei messaggi per ottenere una pagina degli ordini evasi del simbolo
+     * corrente in un intervallo di tempo
+     * @param from istante iniziale (incluso), in ms dall'epoch
+     * @param to istante finale (escluso), in ms dall'epoch
+     * @param cursor cursore della pagina restituito dalla richiesta precedente, null per la prima pagina
+     * @return risposta del server: ordini evasi della pagina e, se ce ne sono altri, cursore della pagina successiva
+     */
+    public JsonObject getTrades (long from, long to, String cursor) {
+        JsonObject query = new JsonObject();
+        query.addProperty("from", from);
+        query.addProperty("to", to);
+        if (cursor != null) {
+            query.addProperty("cursor", cursor);
+        }
+        query.addProperty("symbol", this.symbol);
+        return request("getTrades", query);
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public void setSymbol(String symbol) {
+        this.symbol = symbol;
+    }
+
+    /**
+     * Metodo per la gestione dell'invio e ricezione dei messaggi per disconnettersi dal server
+     */
+    public void exit() {
         try {
-            writer.write(query.toString());
-            writer.newLine();
-            writer.flush();
+            if (binary) {
+                sendFrame(BinaryProtocol.json("exit", null));
+            } else {
+                send("exit", null);
+            }
         } catch (IOException e) {
-            System.err.println("[ERR] Error while writing on the output stream: " + e.getMessage());
+            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
         }
+    }
 
-        String result = "";
+    /**
+     * Metodo per inviare un'operazione e ricevere la risposta del server
+     * @param action operazione da svolgere
+     * @param query richiesta json, null se l'operazione non la prevede
+     * @return risposta del server, null se la comunicazione non è andata a buon fine
+     */
+    private JsonObject request(String action, JsonObject query) {
+        if (binary) {
+            return frameRequest(BinaryProtocol.json(action, query == null ? null : query.toString()));
+        }
+        if (responseReader != null) {
+            // le risposte vengono lette dal thread delle richieste asincrone: la richiesta deve avere un id
+            return requestAsync(action, query).exceptionally(e -> null).join();
+        }
+        // invio l'operazione da svolgere e, se prevista, la richiesta
         try {
-            result = reader.readLine();
+            send(action, query);
         } catch (IOException e) {
-            System.err.println("[ERR] Error while reading input stream: " + e.getMessage());
+            System.err.println("[ERR] Error while sending " + action + " request: " + e.getMessage());
+            return null;
+        }
+        // ricevo la risposta e la converto in JsonObject
+        try {
+            String response = reader.readLine();
+            return (response == null ? null : JsonParser.parseString(response).getAsJsonObject());
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while receiving " + action + " response: " + e.getMessage());
+            return null;
         }
-        JsonObject response = JsonParser.parseString(result).getAsJsonObject();
-        return response;
     }
 
     /**
-     * Metodo per la gestione dell'invio e ricezione dei messaggi per ottenere lo storico dei dati degli ordini evasi
-     * @param mese mese di cui ricevere i dati
-     * @return risposta del server
+     * Metodo per inviare un'operazione senza attenderne la risposta: la riga dell'azione contiene un id di
+     * correlazione, con cui la risposta (che può arrivare dopo quelle di richieste successive) viene associata alla
+     * richiesta. Alla prima richiesta asincrona viene avviato il thread che legge tutte le risposte successive.
+     * Con il protocollo binario la richiesta viaggia in un frame JSON con id di correlazione (vedi frameRequestAsync).
+     * @param action operazione da svolgere
+     * @param query richiesta json, null se l'operazione non la prevede
+     * @return risposta del server (senza il campo "id"), completata alla sua ricezione
      */
-    public JsonObject getPriceHistory (String mese) {
+    private CompletableFuture<JsonObject> requestAsync(String action, JsonObject query) {
+        if (binary) {
+            return frameRequestAsync(BinaryProtocol.json(action, query == null ? null : query.toString()));
+        }
+        startResponseReader();
+        long id = nextRequestId.getAndIncrement();
+        CompletableFuture<JsonObject> response = new CompletableFuture<>();
+        pending.put(id, response);
         try {
-            writer.write("getPriceHistory");
-            writer.newLine();
-            writer.flush();
+            send(action + " " + id, query);
         } catch (IOException e) {
-            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
+            System.err.println("[ERR] Error while sending " + action + " request: " + e.getMessage());
+            pending.remove(id);
+            response.completeExceptionally(e);
         }
-        JsonObject query = new JsonObject();
-        query.addProperty("month", mese);
-        try {
+        return response;
+    }
+
+    private synchronized void send(String action, JsonObject query) throws IOException {
+        writer.write(action);
+        writer.newLine();
+        if (query != null) {
             writer.write(query.toString());
             writer.newLine();
-            writer.flush();
+        }
+        writer.flush();
+    }
+
+    private synchronized void startResponseReader() {
+        if (responseReader != null) {
+            return;
+        }
+        try {
+            tcpSocket.setSoTimeout(0); // il thread attende le risposte anche quando non ci sono richieste in corso
         } catch (IOException e) {
-            System.err.println("[ERR] Error while writing on the output stream: " + e.getMessage());
+            System.err.println("[ERR] Error while setting socket timeout: " + e.getMessage());
         }
-        String result = "";
+        responseReader = new Thread(binary ? this::readFrames : this::readResponses, "ResponseReader");
+        responseReader.setDaemon(true);
+        responseReader.start();
+    }
+
+    /**
+     * Metodo eseguito dal thread delle risposte: completa la richiesta asincrona con l'id di ogni risposta ricevuta,
+     * e alla chiusura della connessione fa fallire quelle ancora in attesa
+     */
+    private void readResponses() {
         try {
-            result = reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonObject response = JsonParser.parseString(line).getAsJsonObject();
+                JsonElement id = response.remove("id");
+                CompletableFuture<JsonObject> request = (id == null ? null : pending.remove(id.getAsLong()));
+                if (request == null) {
+                    System.err.println("[ERR] Received response without pending request: " + line);
+                } else {
+                    request.complete(response);
+                }
+            }
         } catch (IOException e) {
-            System.err.println("[ERR] Error while reading input stream: " + e.getMessage());
+            System.err.println("[ERR] Error while receiving responses: " + e.getMessage());
+        }
+        failPending();
+    }
+
+    /**
+     * Metodo eseguito dal thread delle risposte con il protocollo binario: come readResponses, ma legge frame
+     * CORRELATED e li converte nella risposta json equivalente
+     */
+    private void readFrames() {
+        try {
+            ByteBuffer frame;
+            while ((frame = BinaryProtocol.readFrame(frameInput)) != null) {
+                if (frame.get() != BinaryProtocol.CORRELATED) {
+                    System.err.println("[ERR] Received frame of type " + frame.get(0) + " without pending request.");
+                    continue;
+                }
+                long id = frame.getLong();
+                CompletableFuture<JsonObject> request = pending.remove(id);
+                if (request == null) {
+                    System.err.println("[ERR] Received frame without pending request: " + id);
+                } else {
+                    request.complete(responseOf(frame.slice()));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[ERR] Error while receiving frames: " + e.getMessage());
         }
+        failPending();
+    }
 
+    private void failPending() {
+        for (Long id : pending.keySet()) {
+            CompletableFuture<JsonObject> request = pending.remove(id);
+            if (request != null) {
+                request.completeExceptionally(new IOException("Connection closed"));
+            }
+        }
+    }
 
-        JsonObject response = JsonParser.parseString(result).getAsJsonObject();
-        return response;
+    private JsonObject order(int orderType, String tipo, int dimensione, int prezzo) {
+        return frameRequest(BinaryProtocol.newOrder(orderType, OrderStore.side(tipo), dimensione, prezzo, this.symbol));
     }
 
     /**
-     * Metodo per la gestione dell'invio e ricezione dei messaggi per disconnettersi dal server
+     * Metodo per inviare un frame e convertire il frame di risposta nella risposta json equivalente
+     * @param frame frame da inviare
+     * @return risposta del server, null se la comunicazione non è andata a buon fine
      */
-    public void exit() {
+    private JsonObject frameRequest(byte[] frame) {
+        if (responseReader != null) {
+            // le risposte vengono lette dal thread delle richieste asincrone: la richiesta deve avere un id
+            return frameRequestAsync(frame).exceptionally(e -> null).join();
+        }
         try {
-            writer.write("exit");
-            writer.newLine();
-            writer.flush();
+            sendFrame(frame);
+            ByteBuffer response = BinaryProtocol.readFrame(frameInput);
+            return (response == null ? null : responseOf(response));
         } catch (IOException e) {
-            System.err.println("[ERR] Error while sending action code: " + e.getMessage());
+            System.err.println("[ERR] Error while exchanging frames with server: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Metodo per inviare un frame senza attenderne la risposta, racchiuso in un frame CORRELATED con un nuovo id
+     * (vedi requestAsync)
+     * @param frame frame da inviare
+     * @return risposta del server convertita in json, completata alla sua ricezione
+     */
+    private CompletableFuture<JsonObject> frameRequestAsync(byte[] frame) {
+        startResponseReader();
+        long id = nextRequestId.getAndIncrement();
+        CompletableFuture<JsonObject> response = new CompletableFuture<>();
+        pending.put(id, response);
+        try {
+            sendFrame(BinaryProtocol.correlated(id, frame));
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while sending frame: " + e.getMessage());
+            pending.remove(id);
+            response.completeExceptionally(e);
         }
+        return response;
     }
 
+    private synchronized void sendFrame(byte[] frame) throws IOException {
+        frameOutput.write(frame);
+        frameOutput.flush();
+    }
 
+    /**
+     * Metodo per convertire un frame di risposta nella risposta json equivalente
+     * @param response contenuto del frame, a partire dal tipo
+     * @return risposta json
+     */
+    private JsonObject responseOf(ByteBuffer response) {
+        if (response.get() == BinaryProtocol.JSON_RESPONSE) {
+            return JsonParser.parseString(new String(response.array(), response.arrayOffset() + response.position(), response.remaining(),
+                    StandardCharsets.UTF_8)).getAsJsonObject();
+        }
+        return BinaryProtocol.toJson(response, this.symbol);
+    }
 
 
     /**
@@ -403,6 +594,11 @@ public class Client {
             this.timeout = configReader.nextInt();
             configReader.nextName();
             this.soTimeout = configReader.nextInt();
+            this.protocol = "json";
+            if (configReader.hasNext()) {
+                configReader.nextName();
+                this.protocol = configReader.nextString();
+            }
             configReader.endObject();
             configReader.endObject();
         } catch (IOException e) {
@@ -1,6 +1,7 @@
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+import java.time.Instant;
 import java.util.Scanner;
 
 /**
@@ -61,6 +62,9 @@ public class ClientMain {
         System.out.println("4. Cancel order");
         System.out.println("5. Get price history");
         System.out.println("6. Logout");
+        System.out.println("7. Change symbol (current: " + client.getSymbol() + ")");
+        System.out.println("8. Get candles");
+        System.out.println("9. Get trades");
         System.out.println();
         int choice = in.nextInt();
         System.out.println();
@@ -181,6 +185,49 @@ public class ClientMain {
                 System.out.println("[RESPONSE]: " + response.get("errorMessage").getAsString());
                 loggedOut = true; // l'utente ha fatto logout
                 break;
+            case 7: // cambio del simbolo su cui operare (e.g. BTC/USD)
+                System.out.println("Insert symbol (e.g. BTC/USD):");
+                client.setSymbol(in.next());
+                System.out.println("[RESPONSE]: Symbol set to " + client.getSymbol());
+                break;
+            case 8: // ottenere le ultime candele del simbolo ad una risoluzione
+                System.out.println("Insert resolution (1m, 5m, 1h or 1d) and number of hours to show:");
+                String resolution = in.next();
+                long hours = in.nextLong();
+                response = client.getCandles(resolution, System.currentTimeMillis() - hours * 3_600_000L);
+                System.out.println("[RESPONSE]: " + response.get("errorMessage").getAsString());
+                if (response.has("candles")) {
+                    // per ogni candela, stampa inizio dell'intervallo, prezzi e volume
+                    for (JsonElement candle : response.get("candles").getAsJsonArray()) {
+                        JsonObject candleObject = candle.getAsJsonObject();
+                        System.out.println("\t" + Instant.ofEpochMilli(candleObject.get("time").getAsLong())
+                                + " open " + candleObject.get("open").getAsInt() + " high " + candleObject.get("high").getAsInt()
+                                + " low " + candleObject.get("low").getAsInt() + " close " + candleObject.get("close").getAsInt()
+                                + " volume " + candleObject.get("volume").getAsLong());
+                    }
+                }
+                break;
+            case 9: // ottenere gli ordini evasi del simbolo negli ultimi minuti, una pagina alla volta
+                System.out.println("Insert number of minutes to show:");
+                long minutes = in.nextLong();
+                long to = System.currentTimeMillis() + 1;
+                String cursor = null;
+                do {
+                    response = client.getTrades(to - minutes * 60_000L, to, cursor);
+                    System.out.println("[RESPONSE]: " + response.get("errorMessage").getAsString());
+                    if (response.has("trades")) {
+                        // per ogni ordine evaso, stampa istante, id, tipo, dimensione e prezzo
+                        for (JsonElement trade : response.get("trades").getAsJsonArray()) {
+                            JsonObject tradeObject = trade.getAsJsonObject();
+                            System.out.println("\t" + Instant.ofEpochSecond(0, tradeObject.get("timestamp").getAsLong())
+                                    + " order " + tradeObject.get("orderId").getAsInt() + " " + tradeObject.get("type").getAsString()
+                                    + " " + tradeObject.get("orderType").getAsString() + " size " + tradeObject.get("size").getAsInt()
+                                    + " price " + tradeObject.get("price").getAsInt());
+                        }
+                    }
+                    cursor = response.has("cursor") ? response.get("cursor").getAsString() : null;
+                } while (cursor != null);
+                break;
             default: // nessuna azione associata
                 System.out.println("No action associated with this choice.");
                 choice = 0;
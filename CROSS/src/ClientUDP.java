@@ -61,6 +61,9 @@ public class ClientUDP implements Runnable {
             JsonObject trade = element.getAsJsonObject();
             // aggiungo alla stringa formattata le informazioni passate del trade
             formattedData.append("\tOrderId: ").append(trade.get("orderId").getAsInt()).append("\n");
+            if (trade.has("symbol")) {
+                formattedData.append("\tSymbol: ").append(trade.get("symbol").getAsString()).append("\n");
+            }
             formattedData.append("\tType: ").append(trade.get("type").getAsString()).append("\n");
             formattedData.append("\tOrder Type: ").append(trade.get("orderType").getAsString()).append("\n");
             formattedData.append("\tSize: ").append(trade.get("size").getAsInt()).append("\n");
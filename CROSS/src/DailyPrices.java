@@ -0,0 +1,146 @@
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Classe per il mantenimento incrementale dei prezzi giornalieri (apertura, chiusura, minimo, massimo e volume) di
+ * ogni simbolo. Ogni ordine evaso aggiorna, al momento dell'esecuzione, solo l'aggregato del proprio giorno, quindi
+ * lo storico dei prezzi di un mese si ottiene leggendo al più 31 aggregati già calcolati, senza scorrere gli ordini.
+ * Come in getPriceHistory, un ordine appartiene al giorno (nel fuso orario del sistema) del proprio istante di
+ * esecuzione; apertura e chiusura sono gli ordini con istante (e sequenza) minimo e massimo del giorno.
+ * Ogni aggregato è protetto dal proprio ReentrantLock: una lettura blocca al più l'aggiornamento di un singolo giorno.
+ * Per ogni simbolo e mese è mantenuta una versione, incrementata da ogni ordine evaso nel mese, che permette di
+ * riconoscere se una risposta già calcolata (vedi PriceHistoryCache) è ancora valida.
+ */
+public class DailyPrices {
+    private final ZoneId zone; // fuso orario che definisce i giorni
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Long, DayPrices>> symbols; // aggregati per simbolo e giorno (epoch day)
+    private final ConcurrentHashMap<String, AtomicLong> versions; // versione di ogni simbolo e mese
+
+    public DailyPrices(ZoneId zone) {
+        this.zone = zone;
+        this.symbols = new ConcurrentHashMap<>();
+        this.versions = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Metodo per aggiornare l'aggregato del giorno di un ordine evaso
+     * @param order ordine evaso
+     */
+    public void add(Order order) {
+        long day = Instant.ofEpochSecond(0, order.getTimestamp()).atZone(zone).toLocalDate().toEpochDay();
+        symbols.computeIfAbsent(order.getSymbol(), symbol -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(day, d -> new DayPrices(d, versions.computeIfAbsent(
+                        versionKey(order.getSymbol(), YearMonth.from(LocalDate.ofEpochDay(d))), key -> new AtomicLong())))
+                .add(order.getPrice(), order.getSize(), order.getTimestamp(), order.getSequence());
+    }
+
+    /**
+     * Metodo per ottenere la versione di un mese, da leggere prima degli aggregati: se non cambia, nessun ordine
+     * del mese è stato evaso nel frattempo
+     * @param symbol simbolo richiesto
+     * @param month mese richiesto
+     * @return versione del mese, 0 se non ci sono ordini evasi
+     */
+    public long version(String symbol, YearMonth month) {
+        AtomicLong version = versions.get(versionKey(symbol, month));
+        return version == null ? 0 : version.get();
+    }
+
+    private static String versionKey(String symbol, YearMonth month) {
+        return symbol + " " + month;
+    }
+
+    /**
+     * Metodo per ottenere gli aggregati dei giorni di un intervallo
+     * @param symbol simbolo richiesto
+     * @param first primo giorno (incluso)
+     * @param days numero di giorni
+     * @return copia dell'aggregato di ogni giorno dell'intervallo, null per i giorni senza ordini evasi
+     */
+    public DayPrices[] get(String symbol, LocalDate first, int days) {
+        DayPrices[] result = new DayPrices[days];
+        ConcurrentSkipListMap<Long, DayPrices> prices = symbols.get(symbol);
+        if (prices == null) {
+            return result;
+        }
+        long firstDay = first.toEpochDay();
+        for (DayPrices day : prices.subMap(firstDay, firstDay + days).values()) {
+            result[(int) (day.day - firstDay)] = day.copy();
+        }
+        return result;
+    }
+
+    /**
+     * Classe che rappresenta l'aggregato dei prezzi di un giorno.
+     */
+    static class DayPrices {
+        final long day; // giorno (epoch day)
+        int open; // prezzo dell'ordine con istante minimo
+        long openTimestamp; // istante e sequenza dell'ordine di apertura
+        long openSequence;
+        int close; // prezzo dell'ordine con istante massimo
+        long closeTimestamp; // istante e sequenza dell'ordine di chiusura
+        long closeSequence;
+        int min; // prezzo minimo
+        int max; // prezzo massimo
+        long volume; // somma delle dimensioni degli ordini evasi
+        int trades; // numero di ordini evasi
+        private final AtomicLong monthVersion; // versione del mese del giorno (null per le copie)
+        private final ReentrantLock lock; // lock dell'aggregato, scritto dal motore e copiato dai ServerTask
+
+        DayPrices(long day, AtomicLong monthVersion) {
+            this.day = day;
+            this.monthVersion = monthVersion;
+            this.lock = new ReentrantLock();
+        }
+
+        void add(int price, int size, long timestamp, long sequence) {
+            lock.lock();
+            try {
+                if (trades == 0 || timestamp < openTimestamp || (timestamp == openTimestamp && sequence < openSequence)) {
+                    open = price;
+                    openTimestamp = timestamp;
+                    openSequence = sequence;
+                }
+                if (trades == 0 || closeTimestamp < timestamp || (closeTimestamp == timestamp && closeSequence < sequence)) {
+                    close = price;
+                    closeTimestamp = timestamp;
+                    closeSequence = sequence;
+                }
+                min = (trades == 0 ? price : Math.min(min, price));
+                max = (trades == 0 ? price : Math.max(max, price));
+                volume += size;
+                trades++;
+                monthVersion.incrementAndGet();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        DayPrices copy() {
+            lock.lock();
+            try {
+                DayPrices copy = new DayPrices(day, null);
+                copy.open = open;
+                copy.openTimestamp = openTimestamp;
+                copy.openSequence = openSequence;
+                copy.close = close;
+                copy.closeTimestamp = closeTimestamp;
+                copy.closeSequence = closeSequence;
+                copy.min = min;
+                copy.max = max;
+                copy.volume = volume;
+                copy.trades = trades;
+                return copy;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
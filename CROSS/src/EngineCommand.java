@@ -0,0 +1,84 @@
+import com.google.gson.JsonObject;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Slot del ring buffer: contiene un comando da eseguire sul motore di matching.
+ * Le istanze vengono pre-allocate dal RingBuffer e riscritte dai produttori ad ogni giro.
+ */
+public class EngineCommand {
+    private String action; // azione da eseguire (insertMarketOrder, insertLimitOrder, insertStopOrder, cancelOrder, batch)
+    private int side; // OrderStore.ASK o OrderStore.BID
+    private int size;
+    private int price;
+    private int orderId; // id dell'ordine da cancellare (solo per cancelOrder)
+    private User user; // utente che ha inviato la richiesta
+    private CompletableFuture<JsonObject> result; // risposta che il motore completa al termine dell'esecuzione
+    private List<EngineCommand> batch; // ordini e cancellazioni del comando (solo per batch)
+
+    /**
+     * Metodo per scrivere il comando nello slot (lato produttore)
+     */
+    public void set(String action, int side, int size, int price, int orderId, User user, CompletableFuture<JsonObject> result) {
+        this.action = action;
+        this.side = side;
+        this.size = size;
+        this.price = price;
+        this.orderId = orderId;
+        this.user = user;
+        this.result = result;
+        this.batch = null;
+    }
+
+    /**
+     * Metodo per scrivere nello slot un comando batch (lato produttore)
+     * @param batch ordini e cancellazioni da eseguire insieme, senza risposta propria
+     */
+    public void setBatch(List<EngineCommand> batch, User user, CompletableFuture<JsonObject> result) {
+        set("batch", OrderStore.BID, 0, 0, 0, user, result);
+        this.batch = batch;
+    }
+
+    /**
+     * Metodo per rilasciare i riferimenti dello slot dopo l'esecuzione, così che utente e risposta non restino
+     * raggiungibili dal buffer fino al giro successivo
+     */
+    public void clear() {
+        this.action = null;
+        this.user = null;
+        this.result = null;
+        this.batch = null;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public int getSide() {
+        return side;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getPrice() {
+        return price;
+    }
+
+    public int getOrderId() {
+        return orderId;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public CompletableFuture<JsonObject> getResult() {
+        return result;
+    }
+
+    public List<EngineCommand> getBatch() {
+        return batch;
+    }
+}
@@ -0,0 +1,233 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Gestore di persistenza asincrono con group commit: le richieste di memorizzazione (ordini evasi e utenti) vengono
+ * accodate e un thread scrittore dedicato le esegue a lotti sul gestore sottostante (json o journal), con una sola
+ * scrittura per lotto e, se la durabilità lo prevede, un solo fsync. Chi memorizza non attende il disco sul proprio
+ * thread: riceve un future completato in base alla durabilità configurata:
+ * - sync: dopo l'fsync del lotto che contiene la richiesta;
+ * - async: appena la richiesta è accodata (le scritture non vengono mai forzate su disco);
+ * - periodic: appena la richiesta è accodata, con un fsync ogni syncInterval ms se ci sono state scritture.
+ * Gli utenti nuovi o modificati del lotto vengono aggiunti con una sola scrittura; di più memorizzazioni complete
+ * degli utenti nello stesso lotto viene eseguita solo l'ultima.
+ * Il lotto è l'unità di fallimento: se una scrittura o l'fsync del lotto falliscono, falliscono i future di tutte le
+ * richieste del lotto, anche di quelle indipendenti e valide, perché non si può sapere quali dati abbiano raggiunto
+ * il disco (ripetere le scritture singolarmente potrebbe duplicare ordini già aggiunti).
+ */
+public class GroupCommitPersistanceManager implements PersistanceManager, Runnable {
+    private final PersistanceManager store; // gestore che esegue le scritture
+    private final String durability; // sync, async o periodic
+    private final int syncInterval; // intervallo (in ms) tra due fsync in modalità periodic
+    private final LinkedBlockingQueue<PendingWrite> queue; // richieste in attesa di essere scritte
+    private final ArrayList<PendingWrite> batch; // lotto in scrittura (usato solo dal thread scrittore)
+    private final ArrayList<Order> appended; // ordini evasi del lotto (usato solo dal thread scrittore)
+    private final ArrayList<User> appendedUsers; // utenti nuovi o modificati del lotto (usato solo dal thread scrittore)
+    private boolean unsynced; // true se ci sono scritture non ancora forzate su disco
+    private long lastSync; // istante (ms) dell'ultimo fsync
+
+    public GroupCommitPersistanceManager(PersistanceManager store, String durability, int syncInterval) {
+        this.store = store;
+        switch (durability) {
+            case "sync":
+            case "async":
+            case "periodic":
+                this.durability = durability;
+                break;
+            default:
+                System.err.println("[ERR] Unknown durability " + durability + ", using sync.");
+                this.durability = "sync";
+                break;
+        }
+        this.syncInterval = Math.max(1, syncInterval);
+        this.queue = new LinkedBlockingQueue<>();
+        this.batch = new ArrayList<>();
+        this.appended = new ArrayList<>();
+        this.appendedUsers = new ArrayList<>();
+        this.unsynced = false;
+        this.lastSync = System.currentTimeMillis();
+    }
+
+    public String getDurability() {
+        return durability;
+    }
+
+    /**
+     * Metodo per avviare il thread scrittore
+     */
+    public void start() {
+        Thread writerThread = new Thread(this, "PersistenceWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void storeIssuedOrders(Collection<Order> issuedOrders) {
+        enqueue(new PendingWrite(new ArrayList<>(issuedOrders), true, null));
+    }
+
+    @Override
+    public CompletableFuture<Void> appendIssuedOrders(Collection<Order> issuedOrders) {
+        return enqueue(new PendingWrite(issuedOrders, false, null));
+    }
+
+    @Override
+    public CompletableFuture<Void> storeUsers(Collection<User> users) {
+        return enqueue(new PendingWrite(null, true, users));
+    }
+
+    @Override
+    public CompletableFuture<Void> appendUsers(Collection<User> users) {
+        return enqueue(new PendingWrite(null, false, users));
+    }
+
+    /**
+     * Metodo per richiedere un fsync: in modalità sync ogni lotto viene già forzato su disco, altrimenti
+     * l'fsync viene eseguito dal thread scrittore insieme al prossimo lotto
+     */
+    @Override
+    public void sync() {
+        enqueue(new PendingWrite(null, false, null));
+    }
+
+    @Override
+    public void readOrders(Consumer<Order> reader) {
+        store.readOrders(reader);
+    }
+
+    @Override
+    public ConcurrentLinkedQueue<User> readUsers() {
+        return store.readUsers();
+    }
+
+    /**
+     * Ciclo del thread scrittore: attende una richiesta, prende tutte quelle accumulate nel frattempo e le scrive
+     * come un unico lotto
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                PendingWrite first;
+                if (durability.equals("periodic") && unsynced) {
+                    // attendo al più fino al prossimo fsync periodico
+                    first = queue.poll(Math.max(0, lastSync + syncInterval - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } else {
+                    first = queue.take();
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    write();
+                }
+                if (durability.equals("sync") || (durability.equals("periodic") && unsynced
+                        && System.currentTimeMillis() - lastSync >= syncInterval) || forced()) {
+                    store.sync();
+                    unsynced = false;
+                    lastSync = System.currentTimeMillis();
+                }
+                for (PendingWrite write : batch) {
+                    write.result.complete(null);
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                System.err.println("[ERR] Persistence writer interrupted: " + e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                // un errore su un lotto non deve fermare lo scrittore, né lasciare in attesa chi ha memorizzato
+                System.err.println("[ERR] Error while writing persistence batch: " + e.getMessage());
+                for (PendingWrite write : batch) {
+                    write.result.completeExceptionally(e);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Metodo per accodare una richiesta
+     * @param write richiesta da accodare
+     * @return future completato in base alla durabilità configurata
+     */
+    private CompletableFuture<Void> enqueue(PendingWrite write) {
+        queue.add(write);
+        return durability.equals("sync") ? write.result : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Metodo per scrivere il lotto corrente: gli ordini evasi e gli utenti modificati vengono aggiunti con una sola
+     * scrittura ciascuno, la memorizzazione completa degli utenti viene eseguita una sola volta (l'ultima richiesta
+     * contiene lo stato più recente)
+     */
+    private void write() {
+        Collection<User> users = null;
+        appended.clear();
+        appendedUsers.clear();
+        for (PendingWrite write : batch) {
+            if (write.users != null && write.replace) {
+                // gli utenti completi comprendono anche quelli aggiunti prima nello stesso lotto
+                users = write.users;
+                appendedUsers.clear();
+            } else if (write.users != null) {
+                appendedUsers.addAll(write.users);
+            } else if (write.replace) {
+                // lo storico completo sostituisce anche gli ordini aggiunti prima nello stesso lotto
+                appended.clear();
+                store.storeIssuedOrders(write.orders);
+                unsynced = true;
+            } else if (write.orders != null) {
+                appended.addAll(write.orders);
+            }
+        }
+        if (!appended.isEmpty()) {
+            store.appendIssuedOrders(appended).join();
+            appended.clear();
+            unsynced = true;
+        }
+        if (users != null) {
+            store.storeUsers(users).join();
+            unsynced = true;
+        }
+        if (!appendedUsers.isEmpty()) {
+            store.appendUsers(appendedUsers).join();
+            appendedUsers.clear();
+            unsynced = true;
+        }
+    }
+
+    /**
+     * Metodo per verificare se il lotto contiene una richiesta esplicita di fsync
+     * @return true se il lotto va forzato su disco
+     */
+    private boolean forced() {
+        for (PendingWrite write : batch) {
+            if (write.orders == null && write.users == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Classe che rappresenta una richiesta di memorizzazione in attesa del thread scrittore.
+     * Una richiesta senza ordini né utenti è una richiesta di fsync.
+     */
+    private static class PendingWrite {
+        final Collection<Order> orders; // ordini evasi da memorizzare (o null)
+        final boolean replace; // true se ordini o utenti sono l'intero insieme da sostituire
+        final Collection<User> users; // utenti da memorizzare (o null)
+        final CompletableFuture<Void> result; // completato quando la richiesta è stata eseguita
+
+        PendingWrite(Collection<Order> orders, boolean replace, Collection<User> users) {
+            this.orders = orders;
+            this.replace = replace;
+            this.users = users;
+            this.result = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.Arrays;
+
+/**
+ * Memorizzazione degli ordini in formato struct-of-arrays sullo heap: un array primitivo per ogni campo, indicizzato
+ * dallo slot. Gli slot liberati vengono riusati tramite una free list concatenata sull'array next, quindi a regime
+ * (quando la capacità è sufficiente) allocare e liberare ordini non crea oggetti.
+ * La classe non è thread-safe: è usata solo dal thread del MatchingEngine.
+ */
+public class HeapOrderStore implements OrderStore {
+    private int[] ids;
+    private int[] sides;
+    private int[] orderTypes;
+    private int[] sizes;
+    private int[] initialSizes;
+    private int[] prices;
+    private long[] timestamps;
+    private int[] owners;
+    private int[] prevs;
+    private int[] nexts; // per gli slot liberi, contiene il prossimo slot libero
+    private int freeHead; // primo slot libero
+    private int capacity; // numero di slot disponibili
+
+    public HeapOrderStore(int initialCapacity) {
+        this.capacity = 0;
+        this.freeHead = NIL;
+        this.ids = new int[0];
+        this.sides = new int[0];
+        this.orderTypes = new int[0];
+        this.sizes = new int[0];
+        this.initialSizes = new int[0];
+        this.prices = new int[0];
+        this.timestamps = new long[0];
+        this.owners = new int[0];
+        this.prevs = new int[0];
+        this.nexts = new int[0];
+        grow(Math.max(initialCapacity, 16));
+    }
+
+    @Override
+    public int allocate(int id, int side, int orderType, int size, int price, long timestamp, int owner) {
+        if (freeHead == NIL) {
+            grow(capacity * 2);
+        }
+        int slot = freeHead;
+        freeHead = nexts[slot];
+        ids[slot] = id;
+        sides[slot] = side;
+        orderTypes[slot] = orderType;
+        sizes[slot] = size;
+        initialSizes[slot] = size;
+        prices[slot] = price;
+        timestamps[slot] = timestamp;
+        owners[slot] = owner;
+        prevs[slot] = NIL;
+        nexts[slot] = NIL;
+        return slot;
+    }
+
+    @Override
+    public void free(int slot) {
+        nexts[slot] = freeHead;
+        prevs[slot] = NIL;
+        freeHead = slot;
+    }
+
+    /**
+     * Metodo per aumentare la capacità dello store, aggiungendo i nuovi slot alla free list
+     * @param newCapacity nuova capacità
+     */
+    private void grow(int newCapacity) {
+        ids = Arrays.copyOf(ids, newCapacity);
+        sides = Arrays.copyOf(sides, newCapacity);
+        orderTypes = Arrays.copyOf(orderTypes, newCapacity);
+        sizes = Arrays.copyOf(sizes, newCapacity);
+        initialSizes = Arrays.copyOf(initialSizes, newCapacity);
+        prices = Arrays.copyOf(prices, newCapacity);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        owners = Arrays.copyOf(owners, newCapacity);
+        prevs = Arrays.copyOf(prevs, newCapacity);
+        nexts = Arrays.copyOf(nexts, newCapacity);
+        // concateno i nuovi slot in ordine crescente davanti alla free list attuale
+        for (int slot = newCapacity - 1; slot >= capacity; slot--) {
+            nexts[slot] = freeHead;
+            freeHead = slot;
+        }
+        capacity = newCapacity;
+    }
+
+    @Override
+    public int getId(int slot) {
+        return ids[slot];
+    }
+
+    @Override
+    public int getSide(int slot) {
+        return sides[slot];
+    }
+
+    @Override
+    public int getOrderType(int slot) {
+        return orderTypes[slot];
+    }
+
+    @Override
+    public int getSize(int slot) {
+        return sizes[slot];
+    }
+
+    @Override
+    public void setSize(int slot, int size) {
+        sizes[slot] = size;
+    }
+
+    @Override
+    public int getInitialSize(int slot) {
+        return initialSizes[slot];
+    }
+
+    @Override
+    public int getPrice(int slot) {
+        return prices[slot];
+    }
+
+    @Override
+    public long getTimestamp(int slot) {
+        return timestamps[slot];
+    }
+
+    @Override
+    public int getOwner(int slot) {
+        return owners[slot];
+    }
+
+    @Override
+    public int getPrev(int slot) {
+        return prevs[slot];
+    }
+
+    @Override
+    public void setPrev(int slot, int prev) {
+        prevs[slot] = prev;
+    }
+
+    @Override
+    public int getNext(int slot) {
+        return nexts[slot];
+    }
+
+    @Override
+    public void setNext(int slot, int next) {
+        nexts[slot] = next;
+    }
+}
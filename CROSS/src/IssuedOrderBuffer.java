@@ -0,0 +1,96 @@
+import java.util.Arrays;
+
+/**
+ * Buffer riusabile degli ordini evasi durante un'esecuzione del motore di matching, in formato struct-of-arrays.
+ * Il matching vi registra solo valori primitivi; gli oggetti Order vengono creati dopo, ai bordi (storico,
+ * notifiche, persistenza). Il buffer viene svuotato ad ogni comando e cresce solo se un'esecuzione supera la
+ * capacità raggiunta fino a quel momento.
+ */
+public class IssuedOrderBuffer {
+    private int[] ids;
+    private int[] sides;
+    private int[] orderTypes;
+    private int[] sizes;
+    private int[] prices;
+    private long[] timestamps;
+    private int[] owners;
+    private int count; // numero di ordini evasi registrati
+
+    public IssuedOrderBuffer(int initialCapacity) {
+        this.ids = new int[initialCapacity];
+        this.sides = new int[initialCapacity];
+        this.orderTypes = new int[initialCapacity];
+        this.sizes = new int[initialCapacity];
+        this.prices = new int[initialCapacity];
+        this.timestamps = new long[initialCapacity];
+        this.owners = new int[initialCapacity];
+        this.count = 0;
+    }
+
+    /**
+     * Metodo per registrare un ordine evaso
+     */
+    public void add(int id, int side, int orderType, int size, int price, long timestamp, int owner) {
+        if (count == ids.length) {
+            grow(count * 2);
+        }
+        ids[count] = id;
+        sides[count] = side;
+        orderTypes[count] = orderType;
+        sizes[count] = size;
+        prices[count] = price;
+        timestamps[count] = timestamp;
+        owners[count] = owner;
+        count++;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    public int getSide(int i) {
+        return sides[i];
+    }
+
+    public int getOrderType(int i) {
+        return orderTypes[i];
+    }
+
+    public int getSize(int i) {
+        return sizes[i];
+    }
+
+    public int getPrice(int i) {
+        return prices[i];
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    public int getOwner(int i) {
+        return owners[i];
+    }
+
+    private void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        sides = Arrays.copyOf(sides, capacity);
+        orderTypes = Arrays.copyOf(orderTypes, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        owners = Arrays.copyOf(owners, capacity);
+    }
+}
@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Classe per la gestione della persistenza degli ordini evasi in un journal append-only.
+ * Ogni esecuzione aggiunge in coda solo i nuovi ordini evasi, quindi il costo di memorizzazione di un trade non dipende
+ * dalla dimensione dello storico. Il journal è diviso in segmenti (trades-000000000.log, trades-000000001.log, ...):
+ * quando un segmento raggiunge la dimensione massima configurata, i record successivi vanno in un nuovo segmento.
+ * I segmenti e il formato dei record (lunghezza, CRC32 e contenuto binario del trade) sono gestiti da RecordLog; in
+ * lettura i record incompleti o corrotti in coda all'ultimo segmento (scrittura interrotta) vengono scartati.
+ * La riscrittura completa dello storico (e l'importazione dello storico json) costruisce un nuovo journal in una
+ * cartella temporanea, che sostituisce quella attuale solo dopo essere stata forzata su disco: un arresto in qualsiasi
+ * momento lascia il journal precedente o quello nuovo, mai un journal vuoto o parziale.
+ * Gli utenti restano memorizzati in json tramite JsonPersistanceManager.
+ */
+public class JournalPersistanceManager implements PersistanceManager {
+    private static final int PAYLOAD_SIZE = 4 + 1 + 1 + 4 + 4 + 8 + 8 + 2; // contenuto del record, escluso il simbolo
+
+    private final Path directory; // cartella dei segmenti del journal
+    private final long segmentSize; // dimensione massima (in byte) di un segmento
+    private final RecordLog journal; // segmenti del journal dei trade
+    private final JsonPersistanceManager json; // persistenza degli utenti (e lettura dello storico json precedente)
+    private final String legacyOrdersInput; // storico json da importare se il journal è vuoto
+    private final ReentrantLock lock; // lock del journal
+
+    public JournalPersistanceManager(String directory, long segmentSize, String ordersInput, String usersInput, String usersLog) {
+        this.directory = Paths.get(directory).toAbsolutePath();
+        this.segmentSize = segmentSize;
+        this.journal = new RecordLog(this.directory, "trades", segmentSize);
+        this.json = new JsonPersistanceManager(ordersInput, ordersInput, usersInput, usersLog);
+        this.legacyOrdersInput = ordersInput;
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Metodo per aggiungere in coda al journal gli ordini evasi specificati.
+     * Tutti i record vengono codificati in un unico buffer e scritti con una sola operazione (per segmento).
+     * @param issuedOrders nuovi ordini evasi
+     * @return future completato, o completato con l'eccezione se la scrittura fallisce
+     */
+    @Override
+    public CompletableFuture<Void> appendIssuedOrders(Collection<Order> issuedOrders) {
+        lock.lock();
+        try {
+            try {
+                append(issuedOrders);
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while appending issued orders to the journal: " + e.getMessage());
+                return CompletableFuture.failedFuture(e);
+            }
+            return CompletableFuture.completedFuture(null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(Collection<Order> issuedOrders) throws IOException {
+        for (Order order : issuedOrders) {
+            encode(journal, order);
+        }
+        journal.flush();
+    }
+
+    /**
+     * Metodo per la memorizzazione dell'intero storico: scrive un nuovo journal con i soli ordini specificati in una
+     * cartella temporanea e, dopo averlo forzato su disco, lo scambia con quello attuale. Se la scrittura fallisce,
+     * il journal attuale resta intatto.
+     * @param issuedOrders collezione che contiene gli ordini da memorizzare
+     * @throws UncheckedIOException se il journal non può essere sostituito
+     */
+    @Override
+    public void storeIssuedOrders(Collection<Order> issuedOrders) {
+        lock.lock();
+        try {
+            rewrite(issuedOrders::forEach);
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while rewriting the journal: " + e.getMessage());
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per sostituire il journal: il nuovo journal viene scritto in una cartella temporanea e forzato su disco,
+     * poi le cartelle vengono scambiate
+     * @param orders funzione che passa in ordine al consumer ricevuto gli ordini del nuovo journal
+     */
+    private void rewrite(Consumer<Consumer<Order>> orders) throws IOException {
+        Path temporary = sibling(".tmp");
+        Path old = sibling(".old");
+        deleteDirectory(temporary);
+        Files.createDirectories(temporary);
+        RecordLog rewritten = new RecordLog(temporary, "trades", segmentSize);
+        try {
+            orders.accept(order -> {
+                try {
+                    encode(rewritten, order);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            rewritten.flush();
+            rewritten.sync(); // i segmenti precedenti all'ultimo sono forzati su disco quando vengono chiusi
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            rewritten.close();
+        }
+        // scambio delle cartelle: fino alla seconda rinomina il journal completo è ancora quello vecchio
+        if (Files.exists(directory)) {
+            Files.move(directory, old, StandardCopyOption.ATOMIC_MOVE);
+        }
+        Files.move(temporary, directory, StandardCopyOption.ATOMIC_MOVE);
+        deleteDirectory(old);
+        // le scritture successive proseguono in coda all'ultimo segmento del nuovo journal
+        journal.replay(0, payload -> { });
+    }
+
+    /**
+     * Metodo per completare o annullare uno scambio di cartelle interrotto da un arresto (vedi storeIssuedOrders()):
+     * se la cartella del journal manca, quella temporanea è già completa e la sostituisce; altrimenti la cartella
+     * temporanea è incompleta (o già sostituita) e viene eliminata insieme al journal precedente.
+     */
+    private void recoverRewrite() throws IOException {
+        Path temporary = sibling(".tmp");
+        if (!Files.exists(directory) && Files.exists(sibling(".old")) && Files.exists(temporary)) {
+            System.out.println("[INFO] Completing the interrupted rewrite of the journal.");
+            Files.move(temporary, directory, StandardCopyOption.ATOMIC_MOVE);
+        } else if (!Files.exists(directory) && Files.exists(sibling(".old"))) {
+            Files.move(sibling(".old"), directory, StandardCopyOption.ATOMIC_MOVE);
+        }
+        deleteDirectory(temporary);
+        deleteDirectory(sibling(".old"));
+    }
+
+    private Path sibling(String suffix) {
+        return directory.resolveSibling(directory.getFileName() + suffix);
+    }
+
+    private static void deleteDirectory(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(path)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(path);
+    }
+
+    @Override
+    public CompletableFuture<Void> storeUsers(Collection<User> users) {
+        return json.storeUsers(users);
+    }
+
+    @Override
+    public CompletableFuture<Void> appendUsers(Collection<User> users) {
+        return json.appendUsers(users);
+    }
+
+    /**
+     * Metodo per forzare su disco il journal e gli utenti
+     * @throws UncheckedIOException se l'fsync fallisce: le scritture non sono durevoli
+     */
+    @Override
+    public void sync() {
+        lock.lock();
+        try {
+            try {
+                journal.sync();
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while syncing the journal: " + e.getMessage());
+                throw new UncheckedIOException(e);
+            }
+            json.sync();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per il caricamento degli ordini dal journal: ogni record viene decodificato e passato al reader, senza
+     * tenere lo storico in memoria. Se il journal non esiste ancora, viene prima importato lo storico json precedente
+     * (se presente), letto in streaming con la stessa sostituzione atomica di storeIssuedOrders(): un'importazione
+     * interrotta o fallita non lascia un journal parziale, e viene ripetuta al prossimo avvio.
+     * @param reader funzione chiamata con ogni ordine letto
+     * @throws UncheckedIOException se l'importazione dello storico json fallisce (l'avvio va interrotto)
+     */
+    @Override
+    public void readOrders(Consumer<Order> reader) {
+        lock.lock();
+        try {
+            recoverRewrite();
+            if (!Files.exists(directory) && Files.exists(Paths.get(legacyOrdersInput))) {
+                System.out.println("[INFO] Importing issued orders from " + legacyOrdersInput + " into the journal.");
+                try {
+                    rewrite(json::readOrders);
+                } catch (IOException e) {
+                    System.err.println("[ERR] Error while importing " + legacyOrdersInput + ": " + e.getMessage());
+                    throw new UncheckedIOException(e);
+                }
+            }
+            journal.replay(0, payload -> reader.accept(decode(payload)));
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while opening the journal: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ConcurrentLinkedQueue<User> readUsers() {
+        return json.readUsers();
+    }
+
+    /**
+     * Metodo per codificare un ordine come record di un journal
+     * @param log journal in cui aggiungere il record
+     * @param order ordine da codificare
+     */
+    private static void encode(RecordLog log, Order order) throws IOException {
+        byte[] symbol = order.getSymbol().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = log.startRecord(PAYLOAD_SIZE + symbol.length);
+        buffer.putInt(order.getId());
+        buffer.put((byte) OrderStore.side(order.getType()));
+        buffer.put((byte) OrderStore.orderType(order.getOrderType()));
+        buffer.putInt(order.getInitialSize());
+        buffer.putInt(order.getPrice());
+        buffer.putLong(order.getTimestamp());
+        buffer.putLong(order.getSequence());
+        buffer.putShort((short) symbol.length);
+        buffer.put(symbol);
+        log.endRecord();
+    }
+
+    /**
+     * Metodo per decodificare il contenuto di un record
+     * @param payload contenuto del record
+     * @return ordine memorizzato nel record
+     */
+    private Order decode(ByteBuffer payload) {
+        int id = payload.getInt();
+        int side = payload.get();
+        int orderType = payload.get();
+        int size = payload.getInt();
+        int price = payload.getInt();
+        long timestamp = payload.getLong();
+        long sequence = payload.getLong();
+        byte[] symbol = new byte[payload.getShort()];
+        payload.get(symbol);
+        return new Order(id, OrderStore.sideName(side), OrderStore.orderTypeName(orderType), size, price, timestamp, sequence,
+                new String(symbol, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntFunction;
+
+/**
+ * OrderStore che registra in un RecordLog ogni modifica degli ordini in attesa (inserimento, riduzione della
+ * dimensione, rimozione), delegando la memorizzazione ad un altro store. Gli eventi registrati dopo uno snapshot sono
+ * la coda del journal del libro: riapplicandoli allo stato dello snapshot si ricostruisce il libro al momento
+ * dell'arresto, senza rieseguire il matching.
+ * Gli eventi vengono solo codificati nel buffer del log: il MatchingEngine li scrive al termine di ogni comando.
+ * Un errore di codifica non interrompe il matching: viene conservato e restituito al MatchingEngine da takeError(),
+ * così che la risposta del comando segnali che la modifica non è stata memorizzata.
+ * La classe non è thread-safe: è usata solo dal thread del MatchingEngine.
+ */
+public class JournaledOrderStore implements OrderStore {
+    public static final byte ADD = 0; // ordine inserito nel libro o tra gli stop order
+    public static final byte SIZE = 1; // nuova dimensione residua di un ordine
+    public static final byte REMOVE = 2; // ordine rimosso (evaso o cancellato)
+
+    private final OrderStore store; // store che memorizza effettivamente gli ordini
+    private final RecordLog log; // journal del libro
+    private final IntFunction<String> ownerName; // conversione dell'id del proprietario nel suo username
+    private boolean recording; // false durante il ripristino, per non registrare di nuovo gli eventi riapplicati
+    private IOException error; // primo errore di registrazione dall'ultima chiamata a takeError(), null se nessuno
+
+    public JournaledOrderStore(OrderStore store, RecordLog log, IntFunction<String> ownerName) {
+        this.store = store;
+        this.log = log;
+        this.ownerName = ownerName;
+        this.recording = false;
+        this.error = null;
+    }
+
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Metodo per ottenere e azzerare il primo errore di registrazione dall'ultima chiamata
+     * @return errore di registrazione, null se tutti gli eventi sono stati codificati
+     */
+    public IOException takeError() {
+        IOException taken = error;
+        error = null;
+        return taken;
+    }
+
+    @Override
+    public int allocate(int id, int side, int orderType, int size, int price, long timestamp, int owner) {
+        if (recording) {
+            // il proprietario è registrato per username, perché gli id degli utenti cambiano ad ogni avvio
+            byte[] username = ownerName.apply(owner).getBytes(StandardCharsets.UTF_8);
+            try {
+                ByteBuffer buffer = log.startRecord(1 + 4 + 1 + 1 + 4 + 4 + 8 + 2 + username.length);
+                buffer.put(ADD);
+                buffer.putInt(id);
+                buffer.put((byte) side);
+                buffer.put((byte) orderType);
+                buffer.putInt(size);
+                buffer.putInt(price);
+                buffer.putLong(timestamp);
+                buffer.putShort((short) username.length);
+                buffer.put(username);
+                log.endRecord();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+        return store.allocate(id, side, orderType, size, price, timestamp, owner);
+    }
+
+    @Override
+    public void free(int slot) {
+        if (recording) {
+            try {
+                ByteBuffer buffer = log.startRecord(1 + 4);
+                buffer.put(REMOVE);
+                buffer.putInt(store.getId(slot));
+                log.endRecord();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+        store.free(slot);
+    }
+
+    @Override
+    public void setSize(int slot, int size) {
+        if (recording) {
+            try {
+                ByteBuffer buffer = log.startRecord(1 + 4 + 4);
+                buffer.put(SIZE);
+                buffer.putInt(store.getId(slot));
+                buffer.putInt(size);
+                log.endRecord();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+        store.setSize(slot, size);
+    }
+
+    private void failed(IOException e) {
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    @Override
+    public int getId(int slot) {
+        return store.getId(slot);
+    }
+
+    @Override
+    public int getSide(int slot) {
+        return store.getSide(slot);
+    }
+
+    @Override
+    public int getOrderType(int slot) {
+        return store.getOrderType(slot);
+    }
+
+    @Override
+    public int getSize(int slot) {
+        return store.getSize(slot);
+    }
+
+    @Override
+    public int getInitialSize(int slot) {
+        return store.getInitialSize(slot);
+    }
+
+    @Override
+    public int getPrice(int slot) {
+        return store.getPrice(slot);
+    }
+
+    @Override
+    public long getTimestamp(int slot) {
+        return store.getTimestamp(slot);
+    }
+
+    @Override
+    public int getOwner(int slot) {
+        return store.getOwner(slot);
+    }
+
+    @Override
+    public int getPrev(int slot) {
+        return store.getPrev(slot);
+    }
+
+    @Override
+    public void setPrev(int slot, int prev) {
+        store.setPrev(slot, prev);
+    }
+
+    @Override
+    public int getNext(int slot) {
+        return store.getNext(slot);
+    }
+
+    @Override
+    public void setNext(int slot, int next) {
+        store.setNext(slot, next);
+    }
+}
@@ -2,96 +2,286 @@ import com.google.gson.*;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 import java.io.*;
-import java.time.ZoneId;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Classe per la gestione della persistenza dei dati in file json.
+ * Gli ordini evasi sono un unico documento {"trades":[...]}: i nuovi ordini vengono scritti al posto della chiusura
+ * finale "]}", seguiti da una nuova chiusura, quindi lo storico non viene tenuto in memoria né riscritto ad ogni aggiunta.
+ * Gli utenti sono memorizzati in modo incrementale in un log di righe json (UserLog): ogni registrazione o cambio
+ * di password scrive solo l'utente modificato. Al primo avvio gli utenti del file json precedente vengono importati nel log.
  */
 public class JsonPersistanceManager implements PersistanceManager {
+    private static final long SECONDS_THRESHOLD = 100_000_000_000L; // istanti minori sono in secondi (formato precedente)
     private String ordersFileOutput; // file di output dove memorizzare gli ordini evasi
     private String ordersFileInput; // file di input da cui  leggere gli ordini evasi
-    private String usersFileOutput; // file di output dove memorizzare gli utenti registrati
-    private String usersFileInput; // file di input da cui  leggere gli utenti registrati
+    private String usersFileInput; // file json degli utenti registrati (formato precedente), importato nel log al primo avvio
+    private final UserLog usersLog; // log incrementale degli utenti (null se gli utenti non vengono memorizzati)
+    private boolean ordersUnsynced; // true se il file degli ordini è stato scritto dopo l'ultima sync()
+    private final ReentrantLock lock; // lock dei file degli ordini e del log degli utenti
 
-    public JsonPersistanceManager(String ordersFileInput, String ordersFileOutput, String usersFileInput, String usersFileOutput) {
+    public JsonPersistanceManager(String ordersFileInput, String ordersFileOutput, String usersFileInput, String usersLog) {
         this.ordersFileInput = ordersFileInput;
         this.ordersFileOutput = ordersFileOutput;
         this.usersFileInput = usersFileInput;
-        this.usersFileOutput = usersFileOutput;
+        this.usersLog = (usersLog == null ? null : new UserLog(usersLog));
+        this.ordersUnsynced = false;
+        this.lock = new ReentrantLock();
     }
 
     /**
-     * Metodo per la memorizzazione degli ordini evasi nel file ordersFileOutput.
+     * Metodo per la memorizzazione dei nuovi ordini evasi. Gli ordini vengono scritti in coda all'array del file json,
+     * sovrascrivendo la chiusura "]}" che viene riscritta dopo di loro; se il file non esiste viene creato.
+     * @param issuedOrders nuovi ordini evasi
+     * @return future completato, o completato con l'eccezione se la scrittura fallisce
+     */
+    @Override
+    public CompletableFuture<Void> appendIssuedOrders(Collection<Order> issuedOrders) {
+        if (issuedOrders.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        lock.lock();
+        try (FileChannel channel = FileChannel.open(Paths.get(ordersFileOutput), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // codifico gli ordini come array json, di cui scrivo solo gli elementi
+            StringWriter encoded = new StringWriter();
+            try (JsonWriter ordersWriter = new JsonWriter(encoded)) {
+                ordersWriter.beginArray();
+                for (Order order : issuedOrders) {
+                    write(ordersWriter, order);
+                }
+                ordersWriter.endArray();
+            }
+            String elements = encoded.toString();
+            elements = elements.substring(1, elements.length() - 1);
+            long length = channel.size();
+            String tail;
+            if (length == 0) {
+                tail = "{\"trades\":[" + elements + "]}";
+            } else {
+                // controllo che il file termini con la chiusura dell'array e dell'oggetto, e se l'array è vuoto
+                ByteBuffer end = ByteBuffer.allocate(3);
+                channel.read(end, Math.max(0, length - 3));
+                String last = new String(end.array(), 0, end.position(), StandardCharsets.UTF_8);
+                if (!last.endsWith("]}")) {
+                    throw new IOException(ordersFileOutput + " does not end with the closing of the trades array");
+                }
+                tail = (last.startsWith("[") ? "" : ",") + elements + "]}";
+                length -= 2;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(tail.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                length += channel.write(buffer, length);
+            }
+            ordersUnsynced = true;
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while writing issued orders: " + e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per la memorizzazione degli ordini evasi nel file ordersFileOutput, che viene sostituito in modo atomico
+     * da un file temporaneo.
      * @param issuedOrders collezione che contiene gli ordini da memorizzare.
+     * @throws UncheckedIOException se il file non può essere scritto
      */
     @Override
-    public synchronized void storeIssuedOrders(Collection<Order> issuedOrders) {
-        Gson gson = new Gson();
-        try (JsonWriter ordersWriter = new JsonWriter(new FileWriter(this.ordersFileOutput))) {
-            ordersWriter.beginObject();
-            ordersWriter.name("trades");
-            ordersWriter.beginArray();
-            for (Order order: issuedOrders) {
+    public void storeIssuedOrders(Collection<Order> issuedOrders) {
+        lock.lock();
+        try {
+            Path output = Paths.get(this.ordersFileOutput).toAbsolutePath();
+            Path temporary = output.resolveSibling(output.getFileName() + ".tmp");
+            try (JsonWriter ordersWriter = new JsonWriter(Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))) {
                 ordersWriter.beginObject();
-                ordersWriter.name("orderId");
-                ordersWriter.value(order.getId());
-                ordersWriter.name("type");
-                ordersWriter.value(order.getType());
-                ordersWriter.name("orderType");
-                ordersWriter.value(order.getOrderType());
-                ordersWriter.name("size");
-                ordersWriter.value(order.getInitialSize());
-                ordersWriter.name("price");
-                ordersWriter.value(order.getPrice());
-                ordersWriter.name("timestamp");
-                ordersWriter.value(order.getDate().atZone(ZoneId.systemDefault()).toEpochSecond());
+                ordersWriter.name("trades");
+                ordersWriter.beginArray();
+                for (Order order: issuedOrders) {
+                    write(ordersWriter, order);
+                }
+                ordersWriter.endArray();
                 ordersWriter.endObject();
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while writing issued orders: " + e.getMessage());
+                throw new UncheckedIOException(e);
             }
-            ordersWriter.endArray();
-            ordersWriter.endObject();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while writing issued orders: " + e.getMessage());
+            try {
+                Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                ordersUnsynced = true;
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while replacing issued orders: " + e.getMessage());
+                throw new UncheckedIOException(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per scrivere un ordine evaso come oggetto json
+     * @param ordersWriter writer su cui scrivere
+     * @param order ordine da scrivere
+     */
+    private static void write(JsonWriter ordersWriter, Order order) throws IOException {
+        ordersWriter.beginObject();
+        ordersWriter.name("orderId");
+        ordersWriter.value(order.getId());
+        ordersWriter.name("type");
+        ordersWriter.value(order.getType());
+        ordersWriter.name("orderType");
+        ordersWriter.value(order.getOrderType());
+        ordersWriter.name("size");
+        ordersWriter.value(order.getInitialSize());
+        ordersWriter.name("price");
+        ordersWriter.value(order.getPrice());
+        ordersWriter.name("timestamp");
+        ordersWriter.value(order.getTimestamp());
+        ordersWriter.name("sequence");
+        ordersWriter.value(order.getSequence());
+        ordersWriter.name("symbol");
+        ordersWriter.value(order.getSymbol());
+        ordersWriter.endObject();
+    }
+
+    /**
+     * Metodo per la memorizzazione di tutti gli utenti registrati: il log degli utenti viene compattato
+     * con una riga per utente
+     * @param users utenti registrati
+     * @return future completato, o completato con l'eccezione se la scrittura fallisce
+     */
+    @Override
+    public CompletableFuture<Void> storeUsers(Collection<User> users) {
+        lock.lock();
+        try {
+            Map<String, String> passwords = new LinkedHashMap<>();
+            for (User user : users) {
+                passwords.put(user.getUsername(), user.getPassword());
+            }
+            try {
+                usersLog.compact(passwords);
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while writing users: " + e.getMessage());
+                return CompletableFuture.failedFuture(e);
+            }
+            return CompletableFuture.completedFuture(null);
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Metodo per la memorizzazione degli utenti registrati nel file usersFileOutput
-     * @param users
+     * Metodo per la memorizzazione dei soli utenti nuovi o modificati, aggiunti in coda al log degli utenti
+     * @param users utenti nuovi o modificati
+     * @return future completato, o completato con l'eccezione se la scrittura fallisce
      */
     @Override
-    public synchronized void storeUsers(Collection<User> users) {
-        Gson gson = new Gson();
-        try (JsonWriter usersWriter = new JsonWriter(new FileWriter(this.usersFileOutput))) {
-            usersWriter.beginObject();
-            usersWriter.name("users");
-            usersWriter.beginArray();
-            for (User user: users) {
-                usersWriter.beginObject();
-                usersWriter.name("username");
-                usersWriter.value(user.getUsername());
-                usersWriter.name("password");
-                usersWriter.value(user.getPassword());
-                usersWriter.endObject();
+    public CompletableFuture<Void> appendUsers(Collection<User> users) {
+        lock.lock();
+        try {
+            try {
+                usersLog.append(users);
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while writing users: " + e.getMessage());
+                return CompletableFuture.failedFuture(e);
             }
-            usersWriter.endArray();
-            usersWriter.endObject();
+            return CompletableFuture.completedFuture(null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per forzare su disco il file degli ordini e il log degli utenti scritti dopo l'ultima chiamata
+     * @throws UncheckedIOException se l'fsync fallisce: le scritture non sono durevoli
+     */
+    @Override
+    public void sync() {
+        lock.lock();
+        try {
+            if (ordersUnsynced) {
+                force(ordersFileOutput);
+                ordersUnsynced = false;
+            }
+            if (usersLog != null) {
+                try {
+                    usersLog.sync();
+                } catch (IOException e) {
+                    System.err.println("[ERR] Error while syncing users: " + e.getMessage());
+                    throw new UncheckedIOException(e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void force(String path) {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+            channel.force(true);
         } catch (IOException e) {
-            System.err.println("[ERR] Error while writing users: " + e.getMessage());
+            System.err.println("[ERR] Error while syncing " + path + ": " + e.getMessage());
+            throw new UncheckedIOException(e);
         }
     }
 
     /**
-     * Metodo per il caricamento degli ordini dal file ordersFileInput
-     * @return lista di ordini storici caricati dal file
+     * Metodo per il caricamento degli ordini dal file ordersFileInput, letto in streaming: ogni ordine viene passato
+     * al reader appena letto. Se il file di output è diverso da quello di input, al termine viene riscritto con lo
+     * storico letto; se il file è troncato (arresto durante una scrittura), viene riscritto con i soli ordini completi,
+     * così le aggiunte successive trovano un documento completo. Entrambe le riscritture rileggono il file di input
+     * in un secondo passaggio, senza tenere gli ordini in memoria.
+     * @param reader funzione chiamata con ogni ordine letto
      */
     @Override
-    public synchronized ConcurrentLinkedQueue<Order> readOrders() {
-        Gson gson = new Gson();
-        // memorizzo lo storico degli ordini in una ConcurrentLinkedQueue di ordini (Orders)
-        ConcurrentLinkedQueue<Order> issuedOrders = new ConcurrentLinkedQueue<>();
-        try(JsonReader ordersReader = new JsonReader(new FileReader(this.ordersFileInput))) {
+    public void readOrders(Consumer<Order> reader) {
+        lock.lock();
+        try {
+            long[] count = {0}; // ordini completi letti
+            try {
+                parse(order -> {
+                    count[0]++;
+                    reader.accept(order);
+                });
+                if (!ordersFileInput.equals(ordersFileOutput)) {
+                    // i nuovi ordini vengono aggiunti in coda al file di output, che deve contenere lo storico letto
+                    rewrite(count[0]);
+                }
+            } catch (FileNotFoundException e) {
+                System.err.println("[ERR] Error while opening orders' file: " + e.getMessage());
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while reading orders' file, keeping " + count[0] + " issued orders: " + e.getMessage());
+                rewrite(count[0]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per leggere in streaming gli ordini del file ordersFileInput
+     * @param reader funzione chiamata con ogni ordine completo, nell'ordine del file
+     * @throws IOException se il file non esiste o termina prima della chiusura del documento
+     */
+    private void parse(Consumer<Order> reader) throws IOException {
+        long position = 0; // posizione dell'ordine nel file
+        try (JsonReader ordersReader = new JsonReader(new FileReader(this.ordersFileInput))) {
             ordersReader.beginObject();
             ordersReader.nextName();
             ordersReader.beginArray();
@@ -109,25 +299,114 @@ public class JsonPersistanceManager implements PersistanceManager {
                 int price = ordersReader.nextInt();
                 ordersReader.nextName();
                 long timestamp = ordersReader.nextLong();
+                // gli storici più vecchi memorizzano l'istante in secondi e non hanno sequenza né simbolo (sono tutti
+                // BTC/USD): converto l'istante in nanosecondi e uso la posizione nel file come sequenza
+                if (timestamp < SECONDS_THRESHOLD) {
+                    timestamp *= 1_000_000_000L;
+                }
+                long sequence = position;
+                String symbol = MarketRegistry.DEFAULT_SYMBOL;
+                while (ordersReader.hasNext()) {
+                    String name = ordersReader.nextName();
+                    if (name.equals("sequence")) {
+                        sequence = ordersReader.nextLong();
+                    } else if (name.equals("symbol")) {
+                        symbol = ordersReader.nextString();
+                    } else {
+                        ordersReader.skipValue();
+                    }
+                }
+                position++;
                 ordersReader.endObject();
-                issuedOrders.add(new Order(orderId, type, orderType, size, price, timestamp));
+                reader.accept(new Order(orderId, type, orderType, size, price, timestamp, sequence, symbol));
             }
             ordersReader.endArray();
             ordersReader.endObject();
-        } catch (IOException e) {
-            System.err.println("[ERR] Error while opening orders' file: " + e.getMessage());
         }
+    }
 
-        return issuedOrders;
+    /**
+     * Metodo per riscrivere il file ordersFileOutput con i primi ordini di ordersFileInput, letti in un secondo
+     * passaggio e scritti su un file temporaneo che sostituisce l'output in modo atomico
+     * @param limit numero di ordini da copiare
+     * @throws UncheckedIOException se il file non può essere riscritto
+     */
+    private void rewrite(long limit) {
+        Path output = Paths.get(this.ordersFileOutput).toAbsolutePath();
+        Path temporary = output.resolveSibling(output.getFileName() + ".tmp");
+        long[] copied = {0};
+        try (JsonWriter ordersWriter = new JsonWriter(Files.newBufferedWriter(temporary, StandardCharsets.UTF_8))) {
+            ordersWriter.beginObject();
+            ordersWriter.name("trades");
+            ordersWriter.beginArray();
+            try {
+                parse(order -> {
+                    if (copied[0] < limit) {
+                        try {
+                            write(ordersWriter, order);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        copied[0]++;
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause(); // errore di scrittura
+            } catch (IOException e) {
+                // la coda troncata dopo gli ordini da copiare è attesa, altrimenti il file è cambiato dalla prima lettura
+                if (copied[0] < limit) {
+                    throw e;
+                }
+            }
+            ordersWriter.endArray();
+            ordersWriter.endObject();
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while writing issued orders: " + e.getMessage());
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            ordersUnsynced = true;
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while replacing issued orders: " + e.getMessage());
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
-     * Metodo per il caricamento degli utenti dal file usersFileInput
+     * Metodo per il caricamento degli utenti dal log degli utenti. Se il log non esiste ancora, gli utenti vengono
+     * letti dal file json usersFileInput e importati nel log.
      * @return lista degli utenti registrati caricati dal file
      */
     @Override
-    public synchronized ConcurrentLinkedQueue<User> readUsers() {
-        Gson gson = new Gson();
+    public ConcurrentLinkedQueue<User> readUsers() {
+        lock.lock();
+        try {
+            if (usersLog.exists()) {
+                ConcurrentLinkedQueue<User> users = new ConcurrentLinkedQueue<>();
+                try {
+                    for (Map.Entry<String, String> user : usersLog.read().entrySet()) {
+                        users.add(new User(user.getKey(), user.getValue()));
+                    }
+                } catch (IOException e) {
+                    System.err.println("[ERR] Error while reading users' log: " + e.getMessage());
+                }
+                return users;
+            }
+            ConcurrentLinkedQueue<User> users = readLegacyUsers();
+            System.out.println("[INFO] Importing " + users.size() + " users from " + usersFileInput + " into the users' log.");
+            storeUsers(users);
+            return users;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per il caricamento degli utenti dal file json usersFileInput (formato precedente al log)
+     * @return lista degli utenti registrati caricati dal file
+     */
+    private ConcurrentLinkedQueue<User> readLegacyUsers() {
         ConcurrentLinkedQueue<User> users = new ConcurrentLinkedQueue<>();
         try (JsonReader usersReader = new JsonReader(new FileReader(this.usersFileInput))) {
             usersReader.beginObject();
@@ -0,0 +1,99 @@
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registro dei mercati quotati: per ogni simbolo mantiene un MatchingEngine indipendente, con il proprio libro,
+ * il proprio ring buffer e il proprio thread. I mercati non condividono alcun lock, quindi ordini su simboli diversi
+ * vengono eseguiti in parallelo; i ServerTask instradano ogni richiesta al motore del simbolo indicato.
+ * La tabella dei simboli viene costruita all'avvio e poi solo letta, quindi può essere consultata senza sincronizzazione.
+ */
+public class MarketRegistry {
+    public static final String DEFAULT_SYMBOL = "BTC/USD"; // simbolo usato se la richiesta non lo specifica
+
+    private final Map<String, MatchingEngine> engines; // motore di matching di ogni simbolo
+    private final int auctionInterval; // intervallo (in ms) tra due aste, 0 per il matching continuo
+    private final int bookSyncInterval; // intervallo (in ms) tra due fsync dei journal dei libri, 0 se non periodici
+
+    /**
+     * @param snapshotDirectory cartella del journal dei libri, null se gli snapshot sono disabilitati
+     * @param bookSegmentSize dimensione massima (in byte) di un segmento del journal dei libri
+     * @param durability durabilità degli ordini evasi (sync, async o periodic), seguita anche dai journal dei libri
+     * @param syncInterval intervallo (in ms) tra due fsync nella durabilità periodic
+     * @throws IllegalArgumentException se un simbolo non può essere memorizzato nei record degli ordini evasi
+     */
+    public MarketRegistry(List<String> symbols, int ringBufferSize, String waitStrategy, String orderStore, int auctionInterval,
+                          String snapshotDirectory, long bookSegmentSize, String durability, int syncInterval,
+                          TradeHistory history, PersistanceManager persistenceManager, ServerUDP udp) {
+        this.engines = new LinkedHashMap<>();
+        this.auctionInterval = auctionInterval;
+        this.bookSyncInterval = (snapshotDirectory != null && durability.equals("periodic") ? Math.max(1, syncInterval) : 0);
+        for (String symbol : symbols) {
+            // gli ordini evasi vengono memorizzati in record binari (partizioni dello storico), con il simbolo a lunghezza fissa
+            if (!BinaryPersistanceManager.fits(symbol)) {
+                throw new IllegalArgumentException("Symbol " + symbol + " is longer than " + BinaryPersistanceManager.SYMBOL_SIZE + " bytes.");
+            }
+            // ogni motore ha la propria strategia di attesa, il proprio store e il proprio journal, perché hanno stato
+            RecordLog bookLog = (snapshotDirectory == null ? null
+                    : new RecordLog(Paths.get(snapshotDirectory), "book-" + symbol.replaceAll("[^A-Za-z0-9]", "_"), bookSegmentSize));
+            this.engines.put(symbol, new MatchingEngine(symbol, ringBufferSize, WaitStrategy.fromName(waitStrategy),
+                    OrderStore.fromName(orderStore, 1024), auctionInterval > 0, bookLog, durability.equals("sync"), history, persistenceManager, udp));
+        }
+    }
+
+    /**
+     * Metodo per avviare il thread di ogni motore di matching e, in modalità asta, il timer che avvia le aste
+     * e, nella durabilità periodic, il timer che forza su disco i journal dei libri
+     */
+    public void start() {
+        for (MatchingEngine engine : engines.values()) {
+            Thread engineThread = new Thread(engine, "MatchingEngine-" + engine.getSymbol());
+            engineThread.setDaemon(true);
+            engineThread.start();
+        }
+        if (auctionInterval > 0) {
+            ScheduledExecutorService auctionTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread timerThread = new Thread(runnable, "AuctionTimer");
+                timerThread.setDaemon(true);
+                return timerThread;
+            });
+            // il timer si limita a pubblicare il comando di asta: l'asta viene eseguita dal thread di ogni motore
+            auctionTimer.scheduleAtFixedRate(() -> {
+                for (MatchingEngine engine : engines.values()) {
+                    engine.triggerAuction();
+                }
+            }, auctionInterval, auctionInterval, TimeUnit.MILLISECONDS);
+        }
+        if (bookSyncInterval > 0) {
+            ScheduledExecutorService syncTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread timerThread = new Thread(runnable, "BookSyncTimer");
+                timerThread.setDaemon(true);
+                return timerThread;
+            });
+            // come per l'asta, il timer pubblica solo il comando: l'fsync viene eseguito dal thread di ogni motore
+            syncTimer.scheduleAtFixedRate(() -> {
+                for (MatchingEngine engine : engines.values()) {
+                    engine.syncBookLog();
+                }
+            }, bookSyncInterval, bookSyncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Metodo per ottenere il motore di matching di un simbolo
+     * @param symbol simbolo richiesto (null per il simbolo predefinito)
+     * @return motore del simbolo, null se il simbolo non è quotato
+     */
+    public MatchingEngine get(String symbol) {
+        return engines.get(symbol == null ? DEFAULT_SYMBOL : symbol);
+    }
+
+    public Collection<String> getSymbols() {
+        return engines.keySet();
+    }
+}
@@ -0,0 +1,920 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+/**
+ * Motore di matching a singolo scrittore. Un unico thread possiede il libro degli ordini (ask, bid e stop orders) di un simbolo
+ * ed esegue in ordine i comandi pubblicati dai ServerTask sul ring buffer, quindi non serve alcuna sincronizzazione
+ * sul libro: i ServerTask si limitano a decodificare le richieste, pubblicare i comandi e attendere la risposta.
+ * Il matching lavora solo su valori primitivi (slot dell'OrderStore e buffer degli ordini evasi) e non crea oggetti;
+ * gli Order e le risposte json vengono creati solo al termine di ogni comando.
+ * Se gli snapshot sono abilitati, ogni modifica degli ordini in attesa viene registrata nel journal del libro
+ * (JournaledOrderStore): al riavvio il libro viene ricostruito dall'ultimo snapshot più la coda del journal.
+ * Il journal del libro segue la durabilità degli ordini evasi: in modalità sync viene forzato su disco una volta per
+ * lotto di comandi e i client ricevono la risposta solo dopo l'fsync; in modalità periodic viene forzato dal comando
+ * di sync pubblicato periodicamente (vedi syncBookLog()).
+ */
+public class MatchingEngine implements Runnable {
+    private final String symbol; // coppia scambiata nel libro posseduto da questo motore
+    private final RingBuffer ringBuffer; // buffer dei comandi in ingresso
+    private final OrderStore store; // memorizzazione compatta di tutti gli ordini in attesa (nel libro e stop)
+    private final RecordLog bookLog; // journal delle modifiche del libro, null se gli snapshot sono disabilitati
+    private final JournaledOrderStore journaledStore; // store che registra le modifiche nel journal del libro (o null)
+    private IOException bookLogError; // errore che ha reso incompleto il journal del libro, null se il journal è integro
+    private final boolean syncBookLog; // true se il journal del libro va forzato su disco prima di rispondere (durabilità sync)
+    private CompletableFuture<Void> bookSynced; // completato dall'fsync del journal per il lotto di comandi in esecuzione (o null)
+    private int replayFrom; // primo segmento del journal del libro non coperto dallo snapshot ripristinato
+    private HashMap<Integer, Integer> recoveredStops; // indice id -> slot degli stop order, usato solo nel ripristino
+    private final ConcurrentLinkedQueue<CompletableFuture<byte[]>> snapshotRequests; // richieste di snapshot in attesa
+    private final OrderBookSide askOrders; // ordini ask attualmente in sospeso, per livelli di prezzo
+    private final OrderBookSide bidOrders; // ordini bid attualmente in sospeso, per livelli di prezzo
+    private final StopOrderBook askStopOrders; // stop ask orders in sospeso, per prezzo di attivazione
+    private final StopOrderBook bidStopOrders; // stop bid orders in sospeso, per prezzo di attivazione
+    private final OrderIndex orderIndex; // indice id -> slot degli ordini in attesa nel libro
+    private final IssuedOrderBuffer issued; // ordini evasi dal comando in esecuzione
+    private final IssuedOrderBuffer pieces; // pezzi dell'ordine entrante nell'esecuzione in corso
+    private final IntPredicate stopExecutor; // esecutore degli stop order attivati (creato una sola volta)
+    private long stopTimestamp; // istante del comando che ha attivato gli stop order
+    private User[] owners; // utenti proprietari degli ordini, indicizzati per id
+    private final TradeHistory history; // storico degli ordini evasi (condiviso con i ServerTask)
+    private final PersistanceManager persistenceManager; // gestore della persistenza
+    private final ServerUDP udp; // servizio UDP di comunicazione delle notifiche
+    private final boolean auction; // true se il motore lavora in modalità asta (matching a lotti periodici)
+    private final ArrayList<EngineCommand> deferred; // comandi rinviati alla prossima asta
+    private int deferredCount; // numero di comandi rinviati
+    private volatile boolean running; // stato del motore
+
+    public MatchingEngine(String symbol, int ringBufferSize, WaitStrategy waitStrategy, OrderStore store, boolean auction,
+                          RecordLog bookLog, boolean syncBookLog, TradeHistory history, PersistanceManager persistenceManager, ServerUDP udp) {
+        this.symbol = symbol;
+        this.ringBuffer = new RingBuffer(ringBufferSize, waitStrategy);
+        this.bookLog = bookLog;
+        this.journaledStore = (bookLog == null ? null : new JournaledOrderStore(store, bookLog, owner -> owners[owner].getUsername()));
+        this.store = (bookLog == null ? store : journaledStore);
+        this.bookLogError = null;
+        this.syncBookLog = syncBookLog;
+        this.bookSynced = null;
+        this.replayFrom = 0;
+        this.recoveredStops = new HashMap<>();
+        this.snapshotRequests = new ConcurrentLinkedQueue<>();
+        this.askOrders = new OrderBookSide(true, this.store);
+        this.bidOrders = new OrderBookSide(false, this.store);
+        this.askStopOrders = new StopOrderBook(true, this.store);
+        this.bidStopOrders = new StopOrderBook(false, this.store);
+        this.orderIndex = new OrderIndex(1024);
+        this.issued = new IssuedOrderBuffer(64);
+        this.pieces = new IssuedOrderBuffer(64);
+        this.stopExecutor = this::issueStopOrder;
+        this.owners = new User[64];
+        this.history = history;
+        this.persistenceManager = persistenceManager;
+        this.udp = udp;
+        this.auction = auction;
+        this.deferred = new ArrayList<>();
+        this.deferredCount = 0;
+        this.running = true;
+    }
+
+    /**
+     * Metodo per la pubblicazione di un comando sul ring buffer (chiamato dai ServerTask)
+     * @param action azione da eseguire
+     * @param type ask o bid
+     * @param size dimensione dell'ordine
+     * @param price prezzo (limite o di stop) dell'ordine
+     * @param orderId id dell'ordine da cancellare
+     * @param user utente che ha inviato la richiesta
+     * @return future completato dal motore con la risposta json da inviare al client
+     */
+    public CompletableFuture<JsonObject> submit(String action, String type, int size, int price, int orderId, User user) {
+        CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        long sequence = ringBuffer.next();
+        try {
+            ringBuffer.get(sequence).set(action, (type == null ? OrderStore.BID : OrderStore.side(type)), size, price, orderId, user, result);
+        } finally {
+            // la sequenza reclamata va sempre pubblicata, altrimenti il motore resterebbe bloccato su di essa
+            ringBuffer.publish(sequence);
+        }
+        return result;
+    }
+
+    /**
+     * Metodo per la pubblicazione di un comando batch sul ring buffer (chiamato dai ServerTask): gli ordini e le
+     * cancellazioni vengono eseguiti dal motore come un unico comando (vedi executeBatch)
+     * @param items ordini e cancellazioni, nell'ordine di esecuzione
+     * @param user utente che ha inviato la richiesta
+     * @return future completato dal motore con la risposta json, che contiene l'esito di ogni elemento
+     */
+    public CompletableFuture<JsonObject> submitBatch(List<EngineCommand> items, User user) {
+        CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        long sequence = ringBuffer.next();
+        try {
+            ringBuffer.get(sequence).setBatch(items, user, result);
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+        return result;
+    }
+
+    /**
+     * Ciclo del motore: consuma in ordine i comandi pubblicati, a lotti di sequenze contigue
+     */
+    @Override
+    public void run() {
+        if (journaledStore != null) {
+            // il ripristino è terminato: da qui in poi ogni modifica del libro va registrata
+            recoveredStops = null;
+            journaledStore.setRecording(true);
+        }
+        long nextSequence = 0;
+        while (running) {
+            long available;
+            try {
+                available = ringBuffer.waitFor(nextSequence);
+            } catch (InterruptedException e) {
+                System.err.println("MatchingEngine " + symbol + " [ERR] Interrupted while waiting for commands: " + e.getMessage());
+                running = false;
+                break;
+            }
+            while (nextSequence <= available) {
+                EngineCommand command = ringBuffer.get(nextSequence);
+                handle(command);
+                command.clear();
+                nextSequence++;
+            }
+            if (bookSynced != null) {
+                // un solo fsync del journal del libro per l'intero lotto di comandi
+                IOException error = forceBookLog();
+                if (error == null) {
+                    bookSynced.complete(null);
+                } else {
+                    bookSynced.completeExceptionally(error);
+                }
+                bookSynced = null;
+            }
+            ringBuffer.release(available);
+        }
+    }
+
+    public void stop() {
+        this.running = false;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * Metodo per avviare un'asta (chiamato periodicamente in modalità asta). L'asta viene pubblicata sul ring buffer
+     * come un qualsiasi comando, quindi è eseguita dal thread del motore in ordine rispetto agli altri comandi.
+     */
+    public void triggerAuction() {
+        submit("auction", null, 0, 0, 0, null);
+    }
+
+    /**
+     * Metodo per forzare su disco il journal del libro (chiamato periodicamente nella durabilità periodic). Come l'asta,
+     * il comando viene pubblicato sul ring buffer ed eseguito dal thread del motore, unico scrittore del journal.
+     */
+    public void syncBookLog() {
+        if (bookLog != null) {
+            submit("sync", null, 0, 0, 0, null);
+        }
+    }
+
+    /**
+     * Metodo per richiedere uno snapshot dello stato del motore. Come l'asta, lo snapshot viene pubblicato sul
+     * ring buffer ed eseguito dal thread del motore, quindi cattura il libro tra due comandi senza bloccarlo.
+     * @return future completato con lo stato serializzato del motore
+     */
+    public CompletableFuture<byte[]> snapshot() {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        snapshotRequests.add(result);
+        submit("snapshot", null, 0, 0, 0, null);
+        return result;
+    }
+
+    /**
+     * Metodo per l'esecuzione di un singolo comando
+     * @param command comando letto dal ring buffer
+     */
+    private void handle(EngineCommand command) {
+        if (command.getAction().equals("auction")) {
+            runAuction();
+            return;
+        }
+        if (command.getAction().equals("snapshot")) {
+            takeSnapshot();
+            command.getResult().complete(new JsonObject());
+            return;
+        }
+        if (command.getAction().equals("sync")) {
+            forceBookLog();
+            command.getResult().complete(new JsonObject());
+            return;
+        }
+        if (command.getAction().equals("batch")) {
+            executeBatch(command);
+            return;
+        }
+        if (auction && (command.getAction().equals("insertMarketOrder") || command.getAction().equals("insertStopOrder"))) {
+            // in modalità asta market e stop order vengono eseguiti solo nella prossima asta, insieme al resto del lotto
+            defer(command);
+            return;
+        }
+        issued.clear();
+        JsonObject response = execute(command, MonotonicClock.now(), true);
+        // rispondo al client quando gli ordini evasi sono memorizzati, senza fermare il motore nell'attesa
+        reply(storeIssuedOrders(), command.getResult(), response);
+    }
+
+    /**
+     * Metodo per scrivere il journal del libro e registrare gli ordini evasi dall'ultimo comando.
+     * Un errore su journal, storico, notifiche o persistenza non deve fermare il motore: viene restituito come future
+     * fallito, così che il client sappia che l'esito del comando non è stato memorizzato.
+     * @return future completato quando le modifiche del libro e gli ordini evasi sono memorizzati
+     */
+    private CompletableFuture<Void> storeIssuedOrders() {
+        UncheckedIOException bookError = null;
+        try {
+            flushBookLog();
+        } catch (UncheckedIOException e) {
+            System.err.println("MatchingEngine " + symbol + " [ERR] Error while writing the book journal: " + e.getCause().getMessage());
+            bookError = e;
+        }
+        CompletableFuture<Void> stored;
+        try {
+            // gli ordini evasi vengono convertiti in oggetti solo ora, fuori dal percorso di matching
+            // (anche se il journal del libro è fallito, perché gli scambi sono comunque avvenuti)
+            stored = (issued.isEmpty() ? CompletableFuture.completedFuture(null) : recordIssuedOrders());
+        } catch (RuntimeException e) {
+            System.err.println("MatchingEngine " + symbol + " [ERR] Error while recording issued orders: " + e);
+            stored = CompletableFuture.failedFuture(e);
+        }
+        if (bookError != null) {
+            return CompletableFuture.failedFuture(bookError);
+        }
+        if (bookLog != null && syncBookLog) {
+            // la risposta attende anche l'fsync del journal del libro, eseguito al termine del lotto di comandi
+            if (bookSynced == null) {
+                bookSynced = new CompletableFuture<>();
+            }
+            return CompletableFuture.allOf(stored, bookSynced);
+        }
+        return stored;
+    }
+
+    /**
+     * Metodo per completare la risposta al client quando la memorizzazione termina, anche se fallisce
+     * @param stored future della memorizzazione degli ordini evasi
+     * @param result future della risposta al client
+     * @param response risposta del comando
+     */
+    private static void reply(CompletableFuture<Void> stored, CompletableFuture<JsonObject> result, JsonObject response) {
+        stored.whenComplete((v, e) -> result.complete(e == null ? response : notStored(response)));
+    }
+
+    /**
+     * Metodo per segnalare nella risposta che l'ordine è stato eseguito ma gli ordini evasi non sono stati memorizzati
+     * @param response risposta del comando
+     * @return risposta con il messaggio di errore
+     */
+    private static JsonObject notStored(JsonObject response) {
+        response.addProperty("errorMessage", "Order executed, but it could not be stored.");
+        return response;
+    }
+
+    /**
+     * Metodo per eseguire un comando sul libro, registrando gli ordini evasi nel buffer
+     * @param command comando da eseguire
+     * @param timestamp istante del comando, in nanosecondi dall'epoch
+     * @param checkStops false se gli stop order attivati vengono controllati dal chiamante (batch)
+     * @return risposta json da inviare al client
+     */
+    private JsonObject execute(EngineCommand command, long timestamp, boolean checkStops) {
+        JsonObject response = new JsonObject();
+        try {
+            registerOwner(command.getUser());
+            switch (command.getAction()) {
+                case "insertMarketOrder":
+                    // controllo se posso eseguire il market order
+                    response.addProperty("orderId", marketIssue(command.getSide(), command.getSize(), OrderStore.MARKET, command.getUser().getId(), timestamp));
+                    // controllo se posso evadere degli stop order
+                    if (checkStops) {
+                        checkStopOrders(timestamp);
+                    }
+                    break;
+                case "insertLimitOrder":
+                    response.addProperty("orderId", insertLimitOrder(command.getSide(), command.getSize(), command.getPrice(), command.getUser().getId(), timestamp));
+                    if (checkStops && !auction) {
+                        checkStopOrders(timestamp); // controllo se, con l'aggiornamento degli ordini, posso eseguire qualche stop order
+                    }
+                    break;
+                case "insertStopOrder":
+                    response.addProperty("orderId", insertStopOrder(command.getSide(), command.getSize(), command.getPrice(), command.getUser().getId(), timestamp));
+                    break;
+                case "cancelOrder":
+                    if (cancelOrder(command.getOrderId(), command.getUser().getId())) {
+                        response.addProperty("response", "100");
+                        response.addProperty("errorMessage", "OK.");
+                    } else {
+                        response.addProperty("response", "101");
+                        response.addProperty("errorMessage", "Order does not exist or belongs to different user or has already been finalized.");
+                    }
+                    break;
+                default: // non dovrebbe mai andare qui
+                    System.err.println("MatchingEngine " + symbol + " [ERR] Unknown command: " + command.getAction());
+                    response.addProperty("orderId", -1);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            // un errore su un comando non deve fermare il motore: rispondo come ordine non eseguito
+            System.err.println("MatchingEngine " + symbol + " [ERR] Error while executing " + command.getAction() + ": " + e.getMessage());
+            response = new JsonObject();
+            response.addProperty("orderId", -1);
+        }
+        return response;
+    }
+
+    /**
+     * Metodo per l'esecuzione di un comando batch: gli elementi vengono eseguiti in sequenza, senza altri comandi in
+     * mezzo e con lo stesso istante, gli stop order attivati vengono controllati una sola volta alla fine e gli ordini
+     * evasi dall'intero batch vengono memorizzati e notificati insieme (una notifica per utente coinvolto).
+     * In modalità asta market e stop order non possono far parte di un batch, perché verrebbero rinviati all'asta.
+     * @param command comando batch letto dal ring buffer
+     */
+    private void executeBatch(EngineCommand command) {
+        long timestamp = MonotonicClock.now();
+        issued.clear();
+        JsonArray results = new JsonArray(command.getBatch().size());
+        for (EngineCommand item : command.getBatch()) {
+            if (auction && (item.getAction().equals("insertMarketOrder") || item.getAction().equals("insertStopOrder"))) {
+                JsonObject result = new JsonObject();
+                result.addProperty("orderId", -1);
+                result.addProperty("errorMessage", "Market and stop orders cannot be batched in auction mode.");
+                results.add(result);
+                continue;
+            }
+            results.add(execute(item, timestamp, false));
+        }
+        if (!auction) {
+            try {
+                checkStopOrders(timestamp);
+            } catch (RuntimeException e) {
+                System.err.println("MatchingEngine " + symbol + " [ERR] Error while checking stop orders: " + e.getMessage());
+            }
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("response", 100);
+        response.addProperty("errorMessage", "OK.");
+        response.add("results", results);
+        reply(storeIssuedOrders(), command.getResult(), response);
+    }
+
+    /**
+     * Metodo per rinviare un comando alla prossima asta. Il comando viene copiato, perché lo slot del ring buffer
+     * verrà riusato; le copie vengono riusate da un'asta all'altra.
+     * @param command comando da rinviare
+     */
+    private void defer(EngineCommand command) {
+        if (deferredCount == deferred.size()) {
+            deferred.add(new EngineCommand());
+        }
+        deferred.get(deferredCount++).set(command.getAction(), command.getSide(), command.getSize(), command.getPrice(),
+                command.getOrderId(), command.getUser(), command.getResult());
+    }
+
+    /**
+     * Metodo per l'esecuzione di un'asta: il libro viene incrociato in un unico passaggio al prezzo di equilibrio,
+     * poi vengono eseguiti gli stop order attivati e i comandi rinviati, in ordine di arrivo.
+     * Gli ordini evasi dall'intero lotto vengono memorizzati e notificati insieme.
+     */
+    private void runAuction() {
+        long timestamp = MonotonicClock.now();
+        issued.clear();
+        JsonObject[] responses = new JsonObject[deferredCount];
+        try {
+            uncross(timestamp);
+            checkStopOrders(timestamp);
+        } catch (RuntimeException e) {
+            System.err.println("MatchingEngine " + symbol + " [ERR] Error while running auction: " + e.getMessage());
+        }
+        for (int i = 0; i < deferredCount; i++) {
+            responses[i] = execute(deferred.get(i), timestamp, true);
+        }
+        CompletableFuture<Void> stored = storeIssuedOrders();
+        // rispondo ai client solo dopo aver memorizzato il lotto
+        for (int i = 0; i < deferredCount; i++) {
+            reply(stored, deferred.get(i).getResult(), responses[i]);
+            deferred.get(i).clear();
+        }
+        deferredCount = 0;
+    }
+
+    /**
+     * Metodo per incrociare il libro (che in modalità asta può essere incrociato) ad un unico prezzo di equilibrio.
+     * Il prezzo scelto è quello che massimizza la quantità scambiata; a parità di quantità quello che minimizza
+     * lo sbilanciamento tra domanda e offerta e, infine, il più basso. I prezzi candidati sono quelli dei livelli
+     * compresi tra il miglior ask e il miglior bid.
+     * @param timestamp istante dell'asta
+     */
+    private void uncross(long timestamp) {
+        if (askOrders.isEmpty() || bidOrders.isEmpty() || askOrders.getBestPrice() > bidOrders.getBestPrice()) {
+            return; // libro non incrociato, niente da scambiare
+        }
+        int bestAsk = askOrders.getBestPrice(), bestBid = bidOrders.getBestPrice();
+        int clearingPrice = bestAsk;
+        long volume = -1, imbalance = 0;
+        for (int side = 0; side < 2; side++) {
+            OrderBookSide candidates = (side == 0 ? askOrders : bidOrders);
+            for (int rank = 0; rank < candidates.getLevelCount(); rank++) {
+                int price = candidates.getLevel(rank).getPrice();
+                if (price < bestAsk || price > bestBid) {
+                    break;
+                }
+                // domanda: bid disposti a comprare ad almeno price; offerta: ask disposti a vendere ad al più price
+                long demand = bidOrders.availableSize(Long.MAX_VALUE, price, true);
+                long supply = askOrders.availableSize(Long.MAX_VALUE, price, true);
+                long candidateVolume = Math.min(demand, supply);
+                long candidateImbalance = Math.abs(demand - supply);
+                if (candidateVolume > volume || (candidateVolume == volume && (candidateImbalance < imbalance
+                        || (candidateImbalance == imbalance && price < clearingPrice)))) {
+                    clearingPrice = price;
+                    volume = candidateVolume;
+                    imbalance = candidateImbalance;
+                }
+            }
+        }
+        fillAt(bidOrders, volume, clearingPrice, timestamp);
+        fillAt(askOrders, volume, clearingPrice, timestamp);
+    }
+
+    /**
+     * Metodo per evadere una quantità degli ordini di un lato del libro ad un unico prezzo, in ordine di priorità
+     * (prezzo, poi arrivo). Gli ordini evasi completamente vengono registrati al prezzo di equilibrio, quelli evasi
+     * in parte rimangono nel libro con la dimensione residua.
+     * @param bookSide lato del libro
+     * @param volume quantità da evadere
+     * @param price prezzo di equilibrio
+     * @param timestamp istante dell'asta
+     */
+    private void fillAt(OrderBookSide bookSide, long volume, int price, long timestamp) {
+        long remaining = volume;
+        while (remaining > 0) {
+            PriceLevel level = bookSide.getBest();
+            int slot = level.getHead();
+            int min = (int) Math.min(remaining, store.getSize(slot));
+            remaining -= min;
+            level.reduce(slot, min);
+            if (store.getSize(slot) == 0) {
+                level.remove(slot);
+                issueRestingOrder(slot, price, timestamp);
+                if (level.isEmpty()) {
+                    bookSide.removeBest();
+                }
+            }
+        }
+    }
+
+    /**
+     * Metodo per registrare l'utente nella tabella dei proprietari, così che l'id usato nello store
+     * possa essere riconvertito nell'utente da notificare
+     * @param user utente che ha inviato il comando
+     */
+    private void registerOwner(User user) {
+        if (user == null) {
+            return;
+        }
+        int id = user.getId();
+        if (id >= owners.length) {
+            owners = Arrays.copyOf(owners, Math.max(id + 1, owners.length * 2));
+        }
+        owners[id] = user;
+    }
+
+    /**
+     * Metodo di inserimento di uno stop order
+     * @return id dell'ordine evaso, -1 se è scattato ma non è stato evaso, -2 se è in attesa di attivazione
+     */
+    private int insertStopOrder(int side, int size, int price, int owner, long timestamp) {
+        boolean stopCondition = false;
+        if (side == OrderStore.ASK) {
+            // verifico se posso eseguire lo stop order inserito
+            if (!this.bidOrders.isEmpty())
+                stopCondition = this.bidOrders.getBestPrice() <= price;
+        } else {
+            // altrimenti, se è un bid, controllo negli ask orders se posso eseguirlo
+            if (!this.askOrders.isEmpty())
+                stopCondition = this.askOrders.getBestPrice() >= price;
+        }
+        if (stopCondition) {
+            // se posso, lo tratto come market issue
+            return marketIssue(side, size, OrderStore.STOP, owner, timestamp);
+        }
+        // altrimenti lo inserisco tra gli stop order in attesa di evasione
+        int slot = store.allocate(Order.nextId.getAndIncrement(), side, OrderStore.STOP, size, price, timestamp, owner);
+        (side == OrderStore.ASK ? askStopOrders : bidStopOrders).add(slot);
+        return -2;
+    }
+
+    /**
+     * Metodo di inserimento di un limit order
+     * @return id dell'ordine (dell'ultimo pezzo evaso, oppure dell'ordine inserito nel libro)
+     */
+    private int insertLimitOrder(int side, int size, int price, int owner, long timestamp) {
+        // lato del libro in cui devo andare a cercare per evadere l'ordine
+        OrderBookSide searchSide = (side == OrderStore.ASK ? bidOrders : askOrders);
+        // lato del libro in cui devo inserire il limit order se non posso evaderlo
+        OrderBookSide insertSide = (side == OrderStore.ASK ? askOrders : bidOrders);
+
+        // se i livelli con prezzo accettabile coprono l'intera dimensione, evado il limit order
+        // (in modalità asta il limit order viene sempre inserito nel libro e partecipa alla prossima asta)
+        if (!auction && searchSide.availableSize(size, price, true) >= size) {
+            return executeAgainst(searchSide, side, size, OrderStore.LIMIT, owner, timestamp);
+        }
+        // se invece non posso evadere l'ordine, lo inserisco in coda al suo livello di prezzo
+        int id = Order.nextId.getAndIncrement();
+        int slot = store.allocate(id, side, OrderStore.LIMIT, size, price, timestamp, owner);
+        insertSide.add(slot);
+        orderIndex.put(id, slot);
+        return id;
+    }
+
+    /**
+     * Metodo di cancellazione di un ordine
+     * @return true se l'ordine è stato cancellato
+     */
+    private boolean cancelOrder(int orderId, int owner) {
+        // l'ordine si trova con una sola lookup nell'indice; lo rimuovo solo se appartiene all'utente che lo cancella
+        int slot = orderIndex.get(orderId);
+        if (slot == OrderStore.NIL || store.getOwner(slot) != owner) {
+            return false;
+        }
+        orderIndex.remove(orderId);
+        (store.getSide(slot) == OrderStore.ASK ? askOrders : bidOrders).remove(slot);
+        store.free(slot);
+        return true;
+    }
+
+    /**
+     * Metodo per controllare si possono far evadere degli stop order in coda
+     */
+    private void checkStopOrders(long timestamp) {
+        stopTimestamp = timestamp;
+        // gli stop ask si attivano sul miglior bid, gli stop bid sul miglior ask; ogni stop attivato
+        // viene evaso come se fosse un market order, per conto dell'utente che lo ha inserito
+        askStopOrders.trigger(bidOrders, stopExecutor);
+        bidStopOrders.trigger(askOrders, stopExecutor);
+    }
+
+    /**
+     * Metodo per evadere uno stop order attivato
+     * @param slot slot dello stop order da evadere
+     * @return true se è stato evaso, false se deve rimanere in attesa
+     */
+    private boolean issueStopOrder(int slot) {
+        return marketIssue(store.getSide(slot), store.getSize(slot), OrderStore.STOP, store.getOwner(slot), stopTimestamp) != -1;
+    }
+
+    /**
+     * Metodo per evadere un market order (/stop order con condizione di esecuzione)
+     * @param side lato dell'ordine
+     * @param size dimensione dell'ordine
+     * @param orderType MARKET o STOP
+     * @param owner id dell'utente proprietario dell'ordine
+     * @return id dell'ultimo pezzo evaso, -1 se l'ordine non può essere evaso
+     */
+    private int marketIssue(int side, int size, int orderType, int owner, long timestamp) {
+        // prendo il lato del libro da controllare in base al tipo del market order eseguito
+        OrderBookSide bookSide = (side == OrderStore.ASK ? this.bidOrders : this.askOrders);
+
+        // il market order viene evaso solo se il lato può coprirne l'intera dimensione
+        if (bookSide.availableSize(size, 0, false) < size) {
+            return -1;
+        }
+        return executeAgainst(bookSide, side, size, orderType, owner, timestamp);
+    }
+
+    /**
+     * Metodo per evadere un ordine entrante contro un lato del libro, a partire dal livello migliore.
+     * Il chiamante deve aver già verificato che il lato copra l'intera dimensione dell'ordine.
+     * Gli ordini del libro evasi completamente e i pezzi dell'ordine entrante vengono registrati nel buffer degli
+     * ordini evasi, senza creare oggetti.
+     * @param bookSide lato del libro contro cui evadere l'ordine
+     * @param side lato dell'ordine entrante
+     * @param size dimensione dell'ordine entrante
+     * @param orderType MARKET, LIMIT o STOP
+     * @param owner id dell'utente proprietario dell'ordine entrante
+     * @param timestamp istante di esecuzione
+     * @return id dell'ultimo pezzo evaso
+     */
+    private int executeAgainst(OrderBookSide bookSide, int side, int size, int orderType, int owner, long timestamp) {
+        pieces.clear();
+        int remaining = size;
+        while (remaining > 0) {
+            PriceLevel level = bookSide.getBest();
+            if (level.getTotalSize() <= remaining) {
+                // il livello viene consumato per intero: tutti i suoi ordini sono evasi e il livello viene eliminato in blocco
+                remaining -= level.getTotalSize();
+                int slot = level.getHead();
+                while (slot != OrderStore.NIL) {
+                    int next = store.getNext(slot);
+                    pieces.add(Order.nextId.getAndIncrement(), side, orderType, store.getSize(slot), level.getPrice(), timestamp, owner);
+                    issueRestingOrder(slot, level.getPrice(), timestamp);
+                    slot = next;
+                }
+                bookSide.removeBest();
+            } else {
+                // il livello viene consumato in parte: evado i suoi ordini in ordine di arrivo
+                while (remaining > 0) {
+                    int slot = level.getHead();
+                    int min = Math.min(remaining, store.getSize(slot));
+                    remaining -= min;
+                    pieces.add(Order.nextId.getAndIncrement(), side, orderType, min, level.getPrice(), timestamp, owner);
+                    level.reduce(slot, min);
+                    // se la dimensione dell'ordine è 0, lo rimuovo dal livello (perché è evaso)
+                    if (store.getSize(slot) == 0) {
+                        level.remove(slot);
+                        issueRestingOrder(slot, level.getPrice(), timestamp);
+                    }
+                }
+            }
+        }
+
+        // i pezzi dell'ordine entrante seguono gli ordini del libro evasi
+        for (int i = 0; i < pieces.size(); i++) {
+            issued.add(pieces.getId(i), pieces.getSide(i), pieces.getOrderType(i), pieces.getSize(i),
+                    pieces.getPrice(i), pieces.getTimestamp(i), pieces.getOwner(i));
+        }
+        return pieces.getId(pieces.size() - 1);
+    }
+
+    /**
+     * Metodo per registrare un ordine del libro evaso completamente e liberarne lo slot. L'ordine evaso porta
+     * l'istante di esecuzione e non quello di inserimento nel libro: lo storico è ordinato per istante, e un ordine
+     * rimasto a lungo nel libro non deve finire prima di ordini già restituiti alle interrogazioni paginate.
+     * @param slot slot dell'ordine evaso
+     * @param price prezzo di esecuzione
+     * @param timestamp istante di esecuzione
+     */
+    private void issueRestingOrder(int slot, int price, long timestamp) {
+        issued.add(store.getId(slot), store.getSide(slot), store.getOrderType(slot), store.getInitialSize(slot),
+                price, timestamp, store.getOwner(slot));
+        orderIndex.remove(store.getId(slot));
+        store.free(slot);
+    }
+
+    /**
+     * Metodo per registrare gli ordini evasi dall'ultimo comando: li converte in Order, aggiorna la persistenza e,
+     * solo quando la memorizzazione è completata secondo la durabilità configurata, li aggiunge allo storico e invia
+     * le notifiche (un client non viene mai informato di uno scambio che un crash potrebbe cancellare)
+     * @return future completato quando gli ordini sono memorizzati, storicizzati e notificati
+     */
+    private CompletableFuture<Void> recordIssuedOrders() {
+        ArrayList<Order> orders = new ArrayList<>(issued.size());
+        for (int i = 0; i < issued.size(); i++) {
+            orders.add(new Order(issued.getId(i), OrderStore.sideName(issued.getSide(i)), OrderStore.orderTypeName(issued.getOrderType(i)),
+                    issued.getSize(i), issued.getPrice(i), issued.getTimestamp(i), MonotonicClock.nextSequence(), owners[issued.getOwner(i)], symbol));
+        }
+        // aggiorno la persistenza, aggiungendo solo i nuovi ordini evasi; storico e notifiche seguono la memorizzazione
+        // (eseguiti dal thread scrittore, che completa i future dei lotti in ordine)
+        return persistenceManager.appendIssuedOrders(orders).thenRun(() -> {
+            history.addAll(orders);
+            sendIssuedOrdersNotification(orders);
+        });
+    }
+
+    /**
+     * Metodo per scrivere nel journal del libro le modifiche registrate dall'ultimo comando.
+     * Una modifica persa rende incompleto il journal: da quel momento ogni comando fallisce con lo stesso errore,
+     * finché il prossimo snapshot (che contiene l'intero libro) non rende superflua la parte di journal incompleta.
+     * @throws UncheckedIOException se una modifica non è stata registrata, ora o dopo l'ultimo snapshot
+     */
+    private void flushBookLog() {
+        if (bookLog == null) {
+            return;
+        }
+        IOException error = journaledStore.takeError();
+        try {
+            bookLog.flush();
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+        if (error != null && bookLogError == null) {
+            bookLogError = error;
+        }
+        if (bookLogError != null) {
+            throw new UncheckedIOException(bookLogError);
+        }
+    }
+
+    /**
+     * Metodo per forzare su disco il journal del libro. Se l'fsync fallisce le modifiche scritte potrebbero essere
+     * perse, quindi il journal viene considerato incompleto come per un errore di scrittura.
+     * @return errore dell'fsync, null se riuscito
+     */
+    private IOException forceBookLog() {
+        try {
+            bookLog.sync();
+            return null;
+        } catch (IOException e) {
+            System.err.println("MatchingEngine " + symbol + " [ERR] Error while syncing the book journal: " + e.getMessage());
+            if (bookLogError == null) {
+                bookLogError = e;
+            }
+            return e;
+        }
+    }
+
+    /**
+     * Metodo per serializzare lo stato del motore e completare le richieste di snapshot in attesa.
+     * Il journal del libro passa ad un nuovo segmento: lo snapshot copre tutti i segmenti precedenti, che potranno
+     * essere eliminati una volta memorizzato lo snapshot.
+     * Formato: primo segmento da riapplicare, numero di ordini e, per ogni ordine in attesa (prima il libro, poi gli
+     * stop order, nell'ordine di priorità), id, lato, tipo, dimensione residua, dimensione iniziale, prezzo,
+     * timestamp e username del proprietario.
+     */
+    private void takeSnapshot() {
+        CompletableFuture<byte[]> request;
+        if (snapshotRequests.isEmpty()) {
+            return;
+        }
+        try {
+            int segment = (bookLog == null ? 0 : bookLog.roll());
+            // lo snapshot contiene l'intero libro: le modifiche perse prima del nuovo segmento non servono più
+            bookLogError = null;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(segment);
+            out.writeInt(orderIndex.size() + askStopOrders.size() + bidStopOrders.size());
+            writeLevels(out, askOrders.getLevelCount(), askOrders::getLevel);
+            writeLevels(out, bidOrders.getLevelCount(), bidOrders::getLevel);
+            writeLevels(out, askStopOrders.getLevelCount(), askStopOrders::getLevel);
+            writeLevels(out, bidStopOrders.getLevelCount(), bidStopOrders::getLevel);
+            out.flush();
+            byte[] state = bytes.toByteArray();
+            while ((request = snapshotRequests.poll()) != null) {
+                request.complete(state);
+            }
+        } catch (IOException e) {
+            while ((request = snapshotRequests.poll()) != null) {
+                request.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Metodo per serializzare gli ordini di una sequenza di livelli, in ordine di priorità
+     * @param out stream su cui scrivere
+     * @param count numero di livelli
+     * @param levels funzione che restituisce il livello di posizione data
+     */
+    private void writeLevels(DataOutputStream out, int count, IntFunction<PriceLevel> levels) throws IOException {
+        for (int rank = 0; rank < count; rank++) {
+            for (int slot = levels.apply(rank).getHead(); slot != OrderStore.NIL; slot = store.getNext(slot)) {
+                out.writeInt(store.getId(slot));
+                out.writeByte(store.getSide(slot));
+                out.writeByte(store.getOrderType(slot));
+                out.writeInt(store.getSize(slot));
+                out.writeInt(store.getInitialSize(slot));
+                out.writeInt(store.getPrice(slot));
+                out.writeLong(store.getTimestamp(slot));
+                out.writeUTF(owners[store.getOwner(slot)].getUsername());
+            }
+        }
+    }
+
+    /**
+     * Metodo per ripristinare il libro da uno snapshot (chiamato prima di avviare il thread del motore)
+     * @param in stato serializzato da takeSnapshot()
+     * @param users utenti registrati, per username
+     */
+    public void restore(DataInputStream in, Map<String, User> users) throws IOException {
+        replayFrom = in.readInt();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            int side = in.readByte();
+            int orderType = in.readByte();
+            int size = in.readInt();
+            int initialSize = in.readInt();
+            int price = in.readInt();
+            long timestamp = in.readLong();
+            String owner = in.readUTF();
+            restoreOrder(id, side, orderType, size, initialSize, price, timestamp, users.get(owner), owner);
+        }
+    }
+
+    /**
+     * Metodo per riapplicare al libro le modifiche registrate nel journal dopo lo snapshot ripristinato
+     * (chiamato prima di avviare il thread del motore)
+     * @param users utenti registrati, per username
+     * @return numero di modifiche riapplicate
+     */
+    public int replayBookLog(Map<String, User> users) throws IOException {
+        if (bookLog == null) {
+            return 0;
+        }
+        int[] events = {0};
+        bookLog.replay(replayFrom, payload -> {
+            applyEvent(payload, users);
+            events[0]++;
+        });
+        return events[0];
+    }
+
+    /**
+     * Metodo per eliminare i segmenti del journal del libro già coperti da uno snapshot memorizzato.
+     * Tocca solo segmenti chiusi, quindi può essere chiamato da un thread diverso da quello del motore.
+     * @param segment primo segmento da conservare
+     */
+    public void deleteBookLogBefore(int segment) throws IOException {
+        if (bookLog != null) {
+            bookLog.deleteBefore(segment);
+        }
+    }
+
+    /**
+     * Metodo per riapplicare una modifica del journal del libro
+     * @param payload contenuto del record
+     * @param users utenti registrati, per username
+     */
+    private void applyEvent(ByteBuffer payload, Map<String, User> users) {
+        byte type = payload.get();
+        int id = payload.getInt();
+        if (type == JournaledOrderStore.ADD) {
+            int side = payload.get();
+            int orderType = payload.get();
+            int size = payload.getInt();
+            int price = payload.getInt();
+            long timestamp = payload.getLong();
+            byte[] username = new byte[payload.getShort()];
+            payload.get(username);
+            String owner = new String(username, StandardCharsets.UTF_8);
+            restoreOrder(id, side, orderType, size, size, price, timestamp, users.get(owner), owner);
+            return;
+        }
+        Integer stop = recoveredStops.get(id);
+        int slot = (stop != null ? stop : orderIndex.get(id));
+        if (slot == OrderStore.NIL) {
+            return; // ordine scartato durante il ripristino
+        }
+        boolean isStop = (stop != null);
+        int side = store.getSide(slot);
+        if (type == JournaledOrderStore.SIZE) {
+            // solo gli ordini del libro vengono evasi in parte
+            (side == OrderStore.ASK ? askOrders : bidOrders).reduce(slot, store.getSize(slot) - payload.getInt());
+        } else {
+            if (isStop) {
+                (side == OrderStore.ASK ? askStopOrders : bidStopOrders).remove(slot);
+                recoveredStops.remove(id);
+            } else {
+                (side == OrderStore.ASK ? askOrders : bidOrders).remove(slot);
+                orderIndex.remove(id);
+            }
+            store.free(slot);
+        }
+    }
+
+    /**
+     * Metodo per reinserire un ordine in attesa durante il ripristino, aggiornando contatore degli id e orologio
+     */
+    private void restoreOrder(int id, int side, int orderType, int size, int initialSize, int price, long timestamp, User owner, String username) {
+        if (owner == null) {
+            System.err.println("MatchingEngine " + symbol + " [ERR] Discarding order " + id + " of unknown user " + username);
+            return;
+        }
+        registerOwner(owner);
+        int slot = store.allocate(id, side, orderType, initialSize, price, timestamp, owner.getId());
+        store.setSize(slot, size);
+        if (orderType == OrderStore.STOP) {
+            (side == OrderStore.ASK ? askStopOrders : bidStopOrders).add(slot);
+            recoveredStops.put(id, slot);
+        } else {
+            (side == OrderStore.ASK ? askOrders : bidOrders).add(slot);
+            orderIndex.put(id, slot);
+        }
+        Order.nextId.accumulateAndGet(id + 1, Math::max);
+        MonotonicClock.advanceTo(timestamp, -1);
+    }
+
+    /**
+     * Metodo stub per l'invio delle notifiche UDP di evasione degli ordini, gestendo le eccezioni
+     * @param orders ordini evasi
+     */
+    private void sendIssuedOrdersNotification(Collection<Order> orders) {
+        try {
+            this.udp.sendIssuedOrdersNotification(orders); // invio di notifiche dal server UDP
+        } catch (IOException e) {
+            System.err.println("UDP Server [ERR] Error while closing connection: " + e.getMessage());
+        }
+    }
+}
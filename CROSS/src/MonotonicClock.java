@@ -0,0 +1,62 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Servizio di orologio del server: fornisce istanti in nanosecondi dall'epoch strettamente crescenti e numeri di
+ * sequenza, come valori primitivi.
+ * L'istante è calcolato da System.nanoTime() a partire da un riferimento preso all'avvio, quindi non risente delle
+ * correzioni dell'orologio di sistema e non crea oggetti; due chiamate non restituiscono mai lo stesso valore, così
+ * l'ordine temporale tra ordini creati nello stesso istante è sempre definito.
+ * La classe è thread-safe.
+ */
+public final class MonotonicClock {
+    private static final long EPOCH_BASE = System.currentTimeMillis() * 1_000_000L; // istante dell'avvio (ns dall'epoch)
+    private static final long NANO_BASE = System.nanoTime(); // valore di nanoTime all'avvio
+    private static final AtomicLong last = new AtomicLong(EPOCH_BASE); // ultimo istante fornito
+    private static final AtomicLong sequence = new AtomicLong(0); // prossimo numero di sequenza
+
+    private MonotonicClock() {
+    }
+
+    /**
+     * Metodo per ottenere l'istante attuale
+     * @return nanosecondi dall'epoch, strettamente maggiori di quelli forniti in precedenza
+     */
+    public static long now() {
+        long candidate = EPOCH_BASE + (System.nanoTime() - NANO_BASE);
+        while (true) {
+            long previous = last.get();
+            long next = Math.max(candidate, previous + 1);
+            if (last.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Metodo per ottenere il prossimo numero di sequenza
+     * @return numero di sequenza, strettamente maggiore di quelli forniti in precedenza
+     */
+    public static long nextSequence() {
+        return sequence.getAndIncrement();
+    }
+
+    /**
+     * Metodo per riallineare l'orologio ai valori già memorizzati (chiamato durante il caricamento dello storico),
+     * così che istanti e sequenze restino crescenti anche tra un riavvio e l'altro
+     * @param timestamp istante memorizzato, in nanosecondi dall'epoch
+     * @param storedSequence numero di sequenza memorizzato
+     */
+    public static void advanceTo(long timestamp, long storedSequence) {
+        last.accumulateAndGet(timestamp, Math::max);
+        sequence.accumulateAndGet(storedSequence + 1, Math::max);
+    }
+
+    /**
+     * Metodo per convertire un istante in secondi dall'epoch (formato delle notifiche ai client)
+     * @param timestamp istante in nanosecondi dall'epoch
+     * @return secondi dall'epoch
+     */
+    public static long toEpochSecond(long timestamp) {
+        return Math.floorDiv(timestamp, 1_000_000_000L);
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Classe per la gestione non bloccante delle connessioni TCP con Selector e SocketChannel.
+ * Le connessioni accettate vengono distribuite tra pochi thread di selezione (event loop): ognuno legge i byte
+ * disponibili delle proprie connessioni, ne ricava le richieste complete (riga dell'azione e, se prevista, riga json)
+ * e le passa una alla volta, in ordine, alla thread pool, che le esegue con il ServerTask della connessione.
+ * Le risposte vengono scritte dal thread di selezione senza bloccare. Un thread è quindi occupato solo mentre una
+ * richiesta è in esecuzione, e una connessione inattiva o lenta costa solo la propria chiave nel selettore: il numero
+ * di client collegati non è più limitato dalla dimensione della thread pool.
+ * Dopo l'azione "binary" la connessione passa al protocollo binario (vedi BinaryProtocol) e le richieste successive
+ * sono frame, ricavati dalla lunghezza nell'intestazione invece che dal terminatore di riga.
+ * Gli ordini con id di correlazione (vedi ServerTask) non occupano la thread pool fino all'esito: la richiesta successiva
+ * parte appena l'ordine è stato pubblicato sul motore, e la risposta viene accodata quando il motore la completa.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024; // dimensione del buffer di lettura di ogni event loop
+    private static final int MAX_LINE_SIZE = 1024 * 1024; // dimensione massima di una riga di richiesta
+    private static final int MAX_PENDING_REQUESTS = 64; // richieste in attesa oltre le quali la lettura viene sospesa
+
+    private final int port; // porta TCP di ascolto
+    private final EventLoop[] loops; // thread di selezione
+    private final Executor workers; // thread pool che esegue le richieste
+    private final ServerUDP udp; // servizio UDP di comunicazione delle notifiche
+    private final PersistanceManager persistenceManager; // gestore della persistenza
+    private final UserRegistry users; // utenti registrati, per username
+    private final TradeHistory history; // storico degli ordini evasi
+    private final PriceHistoryCache priceHistoryCache; // risposte di getPriceHistory già serializzate
+    private final MarketRegistry markets; // motori di matching dei simboli quotati
+
+    public NioServer(int port, int eventLoops, Executor workers, ServerUDP udp, PersistanceManager persistenceManager,
+                     UserRegistry users, TradeHistory history, PriceHistoryCache priceHistoryCache, MarketRegistry markets) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        this.workers = workers;
+        this.udp = udp;
+        this.persistenceManager = persistenceManager;
+        this.users = users;
+        this.history = history;
+        this.priceHistoryCache = priceHistoryCache;
+        this.markets = markets;
+    }
+
+    /**
+     * Metodo per avviare gli event loop e accettare le connessioni (non ritorna finché il server è attivo)
+     * @throws IOException se la porta non può essere aperta
+     */
+    public void serve() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            new Thread(loops[i], "EventLoop-" + i).start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Server running on port " + port + " (" + loops.length + " event loops)...");
+            // le connessioni accettate vengono assegnate agli event loop a turno
+            for (int next = 0; ; next = (next + 1) % loops.length) {
+                SocketChannel channel = serverChannel.accept();
+                EventLoop loop = loops[next];
+                loop.execute(() -> loop.register(channel));
+            }
+        }
+    }
+
+    /**
+     * Classe che rappresenta un thread di selezione, proprietario delle proprie connessioni: lo stato di una
+     * connessione viene modificato solo da questo thread (i thread della pool gli restituiscono i risultati con execute)
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector; // selettore delle connessioni assegnate
+        private final ConcurrentLinkedQueue<Runnable> tasks; // operazioni da eseguire nel thread di selezione
+        private final ByteBuffer readBuffer; // buffer di lettura, condiviso dalle connessioni del thread
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        }
+
+        /**
+         * Metodo per eseguire un'operazione nel thread di selezione
+         * @param task operazione da eseguire
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("[ERR] Error while selecting ready connections: " + e.getMessage());
+                    continue;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read();
+                    }
+                }
+            }
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while registering connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Classe che rappresenta una connessione: byte di una riga non ancora completa, richieste complete in attesa di
+     * esecuzione e risposte non ancora scritte. Le richieste di una connessione vengono eseguite una alla volta e la
+     * successiva parte solo quando la risposta della precedente è stata scritta, quindi l'ordine delle risposte è
+     * quello delle richieste e la memoria occupata da una connessione lenta è limitata.
+     */
+    private class Connection {
+        private final EventLoop loop; // thread di selezione proprietario
+        private final SocketChannel channel; // canale della connessione
+        private SelectionKey key; // chiave della connessione nel selettore
+        private final ByteArrayOutputStream responses; // risposte scritte dal ServerTask durante l'esecuzione
+        private final ServerTask session; // stato della sessione (utente collegato) ed esecuzione delle azioni
+        private byte[] line; // byte della riga in lettura
+        private int lineLength; // numero di byte della riga in lettura
+        private String action; // azione letta, in attesa della riga json
+        private boolean binary; // true dopo la richiesta del protocollo binario
+        private final ByteBuffer header; // intestazione (lunghezza) del frame in lettura
+        private ByteBuffer frame; // contenuto del frame in lettura, null se si sta leggendo l'intestazione
+        private final ArrayDeque<Request> requests; // richieste complete, in attesa di esecuzione
+        private final ArrayDeque<ByteBuffer> writes; // risposte da scrivere sul canale
+        private boolean busy; // true se una richiesta è in esecuzione nella thread pool
+        private boolean closing; // true se è stata letta l'ultima richiesta (exit o chiusura del client)
+        private boolean closed; // true se il canale è stato chiuso
+
+        Connection(EventLoop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.responses = new ByteArrayOutputStream();
+            this.session = new ServerTask((InetSocketAddress) channel.getRemoteAddress(), responses,
+                    response -> loop.execute(() -> deliver(response)), udp, persistenceManager, users, history, priceHistoryCache, markets);
+            this.line = new byte[128];
+            this.header = ByteBuffer.allocate(4);
+            this.requests = new ArrayDeque<>();
+            this.writes = new ArrayDeque<>();
+        }
+
+        /**
+         * Metodo per leggere i byte disponibili e ricavarne le richieste complete
+         */
+        void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            int read;
+            do {
+                buffer.clear();
+                try {
+                    read = channel.read(buffer);
+                } catch (IOException e) {
+                    read = -1;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining() && !closing) {
+                    if (binary) {
+                        readFrame(buffer);
+                        continue;
+                    }
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        onLine(new String(line, 0, lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength,
+                                StandardCharsets.UTF_8));
+                        lineLength = 0;
+                    } else if (lineLength == MAX_LINE_SIZE) {
+                        System.err.println("[ERR] Request line longer than " + MAX_LINE_SIZE + " bytes, closing connection.");
+                        onRequest(null, null);
+                    } else {
+                        if (lineLength == line.length) {
+                            line = Arrays.copyOf(line, Math.min(MAX_LINE_SIZE, line.length * 2));
+                        }
+                        line[lineLength++] = b;
+                    }
+                }
+            } while (read > 0 && !closing && requests.size() < MAX_PENDING_REQUESTS);
+            if (read < 0 && !closing) {
+                // la connessione è caduta in modo inaspettato: la sessione viene chiusa come con exit
+                onRequest(null, null);
+            }
+            updateInterest();
+            dispatch();
+        }
+
+        private void onLine(String text) {
+            if (action != null) {
+                onRequest(action, text);
+                action = null;
+            } else if (ServerTask.hasRequest(text)) {
+                action = text;
+            } else {
+                onRequest(text, null);
+                // i byte successivi alla richiesta del protocollo binario sono già frame
+                binary = ServerTask.actionOf(text).equals(BinaryProtocol.ACTION);
+            }
+        }
+
+        /**
+         * Metodo per ricavare i frame dai byte letti, accumulando prima l'intestazione e poi il contenuto
+         * @param buffer byte letti dal canale
+         */
+        private void readFrame(ByteBuffer buffer) {
+            if (frame == null) {
+                while (header.hasRemaining() && buffer.hasRemaining()) {
+                    header.put(buffer.get());
+                }
+                if (header.hasRemaining()) {
+                    return;
+                }
+                int length = header.getInt(0);
+                header.clear();
+                if (length <= 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    System.err.println("[ERR] Invalid frame length " + length + ", closing connection.");
+                    onRequest(null, null);
+                    return;
+                }
+                frame = ByteBuffer.allocate(length);
+            }
+            int chunk = Math.min(frame.remaining(), buffer.remaining());
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + chunk);
+            frame.put(slice);
+            buffer.position(buffer.position() + chunk);
+            if (!frame.hasRemaining()) {
+                frame.flip();
+                requests.add(new Request(null, null, frame));
+                frame = null;
+            }
+        }
+
+        /**
+         * Metodo per accodare una richiesta completa
+         * @param action azione richiesta, null se la connessione è caduta
+         * @param request richiesta json, null se l'azione non la prevede
+         */
+        private void onRequest(String action, String request) {
+            requests.add(new Request(action, request, null));
+            if (action == null || ServerTask.actionOf(action).equals("exit")) {
+                closing = true; // le richieste successive non vengono lette
+            }
+        }
+
+        /**
+         * Metodo per passare alla thread pool la prossima richiesta, se non ce n'è già una in esecuzione e le
+         * risposte precedenti sono state scritte
+         */
+        private void dispatch() {
+            if (busy || closed || !writes.isEmpty() || requests.isEmpty()) {
+                return;
+            }
+            busy = true;
+            Request request = requests.poll();
+            workers.execute(() -> {
+                boolean last = (request.frame == null && (request.action == null || ServerTask.actionOf(request.action).equals("exit")));
+                try {
+                    if (request.frame != null) {
+                        last = !session.handleFrame(request.frame);
+                    } else if (request.action == null) {
+                        System.out.println("\tServerThread " + Thread.currentThread().getId() + " [INFO] Client disconnected unexpectedly.");
+                        session.exit();
+                    } else {
+                        session.handle(request.action, request.json);
+                    }
+                } catch (RuntimeException e) {
+                    String name = (request.frame != null ? "frame" : request.action);
+                    System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while executing " + name + ": " + e);
+                    session.exit();
+                    last = true;
+                }
+                byte[] response = responses.toByteArray();
+                responses.reset();
+                boolean close = last;
+                loop.execute(() -> complete(response, close));
+            });
+        }
+
+        /**
+         * Metodo chiamato nel thread di selezione al termine dell'esecuzione di una richiesta
+         * @param response risposta da scrivere
+         * @param close true se la connessione va chiusa dopo aver scritto la risposta
+         */
+        private void complete(byte[] response, boolean close) {
+            busy = false;
+            if (close) {
+                closing = true;
+                requests.clear();
+            }
+            if (response.length > 0) {
+                writes.add(ByteBuffer.wrap(response));
+            }
+            flush();
+        }
+
+        /**
+         * Metodo chiamato nel thread di selezione quando il motore completa un ordine con id di correlazione
+         * @param response risposta da scrivere
+         */
+        private void deliver(byte[] response) {
+            if (closed) {
+                return;
+            }
+            writes.add(ByteBuffer.wrap(response));
+            flush();
+        }
+
+        /**
+         * Metodo per scrivere le risposte in attesa finché il canale le accetta
+         */
+        void flush() {
+            try {
+                while (!writes.isEmpty()) {
+                    ByteBuffer head = writes.peek();
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        break; // il buffer del socket è pieno: si riprende quando il canale è scrivibile
+                    }
+                    writes.poll();
+                }
+            } catch (IOException e) {
+                writes.clear();
+                if (!closing) {
+                    onRequest(null, null);
+                }
+            }
+            if (closing && !busy && requests.isEmpty() && writes.isEmpty()) {
+                close();
+                return;
+            }
+            updateInterest();
+            dispatch();
+        }
+
+        /**
+         * Metodo per aggiornare gli eventi di interesse: la lettura viene sospesa se ci sono troppe richieste in attesa
+         */
+        private void updateInterest() {
+            if (closed) {
+                return;
+            }
+            int interest = 0;
+            if (!closing && requests.size() < MAX_PENDING_REQUESTS) {
+                interest |= SelectionKey.OP_READ;
+            }
+            if (!writes.isEmpty()) {
+                interest |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(interest);
+        }
+
+        private void close() {
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while closing connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Classe che rappresenta una richiesta completa: azione e json del protocollo testuale, oppure un frame
+     */
+    private static class Request {
+        final String action; // azione richiesta, null se la connessione è caduta o la richiesta è un frame
+        final String json; // richiesta json, null se l'azione non la prevede
+        final ByteBuffer frame; // contenuto del frame (tipo e dati), null per il protocollo testuale
+
+        Request(String action, String json, ByteBuffer frame) {
+            this.action = action;
+            this.json = json;
+            this.frame = frame;
+        }
+    }
+}
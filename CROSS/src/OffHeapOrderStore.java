@@ -0,0 +1,164 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Memorizzazione degli ordini fuori dallo heap, in slab di memoria diretta a dimensione fissa.
+ * Ogni slot è un record di RECORD_SIZE byte all'interno di uno slab; lo slab e l'offset si ricavano dallo slot con
+ * uno shift e una maschera. La crescita aggiunge un nuovo slab senza copiare quelli esistenti.
+ * Sullo heap restano solo i riferimenti agli slab (uno ogni SLAB_SLOTS ordini), quindi l'occupazione dello heap e il
+ * lavoro del garbage collector non dipendono dalla profondità del libro.
+ * Gli slot liberati vengono riusati tramite una free list concatenata sul campo next.
+ * La classe non è thread-safe: è usata solo dal thread del MatchingEngine.
+ */
+public class OffHeapOrderStore implements OrderStore {
+    private static final int SLAB_SHIFT = 14;
+    private static final int SLAB_SLOTS = 1 << SLAB_SHIFT; // slot per slab
+    private static final int SLAB_MASK = SLAB_SLOTS - 1;
+
+    // disposizione dei campi all'interno del record
+    private static final int ID = 0;
+    private static final int SIDE = 4;
+    private static final int ORDER_TYPE = 8;
+    private static final int SIZE = 12;
+    private static final int INITIAL_SIZE = 16;
+    private static final int PRICE = 20;
+    private static final int TIMESTAMP = 24;
+    private static final int OWNER = 32;
+    private static final int PREV = 36;
+    private static final int NEXT = 40;
+    private static final int RECORD_SIZE = 48; // multiplo di 8, così il timestamp resta allineato
+
+    private ByteBuffer[] slabs; // slab di memoria diretta
+    private int slabCount; // numero di slab allocati
+    private int freeHead; // primo slot libero
+
+    public OffHeapOrderStore(int initialCapacity) {
+        this.slabs = new ByteBuffer[8];
+        this.slabCount = 0;
+        this.freeHead = NIL;
+        // alloco subito gli slab necessari a contenere la capacità iniziale
+        do {
+            addSlab();
+        } while (slabCount * SLAB_SLOTS < initialCapacity);
+    }
+
+    @Override
+    public int allocate(int id, int side, int orderType, int size, int price, long timestamp, int owner) {
+        if (freeHead == NIL) {
+            addSlab();
+        }
+        int slot = freeHead;
+        ByteBuffer slab = slab(slot);
+        int offset = offset(slot);
+        freeHead = slab.getInt(offset + NEXT);
+        slab.putInt(offset + ID, id);
+        slab.putInt(offset + SIDE, side);
+        slab.putInt(offset + ORDER_TYPE, orderType);
+        slab.putInt(offset + SIZE, size);
+        slab.putInt(offset + INITIAL_SIZE, size);
+        slab.putInt(offset + PRICE, price);
+        slab.putLong(offset + TIMESTAMP, timestamp);
+        slab.putInt(offset + OWNER, owner);
+        slab.putInt(offset + PREV, NIL);
+        slab.putInt(offset + NEXT, NIL);
+        return slot;
+    }
+
+    @Override
+    public void free(int slot) {
+        setNext(slot, freeHead);
+        setPrev(slot, NIL);
+        freeHead = slot;
+    }
+
+    /**
+     * Metodo per aggiungere uno slab, concatenando i suoi slot alla free list
+     */
+    private void addSlab() {
+        if (slabCount == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabCount * 2);
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SLOTS * RECORD_SIZE).order(ByteOrder.nativeOrder());
+        int first = slabCount << SLAB_SHIFT;
+        slabs[slabCount++] = slab;
+        // concateno i nuovi slot in ordine crescente davanti alla free list attuale
+        for (int i = SLAB_SLOTS - 1; i >= 0; i--) {
+            slab.putInt(i * RECORD_SIZE + NEXT, freeHead);
+            freeHead = first + i;
+        }
+    }
+
+    private ByteBuffer slab(int slot) {
+        return slabs[slot >>> SLAB_SHIFT];
+    }
+
+    private int offset(int slot) {
+        return (slot & SLAB_MASK) * RECORD_SIZE;
+    }
+
+    @Override
+    public int getId(int slot) {
+        return slab(slot).getInt(offset(slot) + ID);
+    }
+
+    @Override
+    public int getSide(int slot) {
+        return slab(slot).getInt(offset(slot) + SIDE);
+    }
+
+    @Override
+    public int getOrderType(int slot) {
+        return slab(slot).getInt(offset(slot) + ORDER_TYPE);
+    }
+
+    @Override
+    public int getSize(int slot) {
+        return slab(slot).getInt(offset(slot) + SIZE);
+    }
+
+    @Override
+    public void setSize(int slot, int size) {
+        slab(slot).putInt(offset(slot) + SIZE, size);
+    }
+
+    @Override
+    public int getInitialSize(int slot) {
+        return slab(slot).getInt(offset(slot) + INITIAL_SIZE);
+    }
+
+    @Override
+    public int getPrice(int slot) {
+        return slab(slot).getInt(offset(slot) + PRICE);
+    }
+
+    @Override
+    public long getTimestamp(int slot) {
+        return slab(slot).getLong(offset(slot) + TIMESTAMP);
+    }
+
+    @Override
+    public int getOwner(int slot) {
+        return slab(slot).getInt(offset(slot) + OWNER);
+    }
+
+    @Override
+    public int getPrev(int slot) {
+        return slab(slot).getInt(offset(slot) + PREV);
+    }
+
+    @Override
+    public void setPrev(int slot, int prev) {
+        slab(slot).putInt(offset(slot) + PREV, prev);
+    }
+
+    @Override
+    public int getNext(int slot) {
+        return slab(slot).getInt(offset(slot) + NEXT);
+    }
+
+    @Override
+    public void setNext(int slot, int next) {
+        slab(slot).putInt(offset(slot) + NEXT, next);
+    }
+}
@@ -1,21 +1,22 @@
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.util.Date;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Classe che rappresenta un ordine.
  */
 public class Order {
-    public static int nextId; // attributo di classe per mantenere il conteggio degli id
+    public static final AtomicInteger nextId = new AtomicInteger(0); // contatore degli id, condiviso dai motori di tutti i simboli
 
     private String type; // ask o bid
     private String orderType; // limit, market o stop
     private int size;
     private int price;
-    private LocalDateTime date;
+    private long timestamp; // istante di creazione (di esecuzione per gli ordini evasi), in nanosecondi dall'epoch (MonotonicClock)
+    private long sequence; // numero di sequenza assegnato quando l'ordine entra nello storico
     private int id; // id proprio di ogni istanza
     private User owner; // utente che ha inserito l'ordine
     private int initialSize; // riferimento alla dimensione iniziale dell'ordine
+    private String symbol; // coppia scambiata (e.g. BTC/USD)
 
     /**
      * Costruttore usato nella creazione di un nuovo ordine in modo interattivo con il client
@@ -26,25 +27,60 @@ public class Order {
         this.size = size;
         this.initialSize = size;
         this.price = price;
-        this.date = new Date(System.currentTimeMillis()).toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime();
-        this.id = nextId;
-        nextId++;
+        this.timestamp = MonotonicClock.now();
+        this.sequence = MonotonicClock.nextSequence();
+        this.id = nextId.getAndIncrement();
         this.owner = owner;
+        this.symbol = MarketRegistry.DEFAULT_SYMBOL;
     }
 
     /**
-     * Costruttore usato nel caricamento degli ordini durante la lettura del file json che contiene lo storico degli ordini
+     * Costruttore usato nel caricamento degli ordini durante la lettura del file json che contiene lo storico degli ordini.
+     * Non modifica contatore degli id e orologio: nel ripristino all'avvio se ne occupa recovered().
+     * @param timestamp istante di esecuzione dell'ordine in nanosecondi dall'epoch
+     * @param sequence numero di sequenza dell'ordine nello storico
      */
-    public Order(int id, String type, String orderType, int size, int price, long timestamp) {
+    public Order(int id, String type, String orderType, int size, int price, long timestamp, long sequence, String symbol) {
         this.type = type;
         this.orderType = orderType;
         this.size = size;
         this.price = price;
         this.initialSize = size;
-        this.date = new Date(timestamp*1000).toInstant().atZone(ZoneId.systemDefault()).toLocalDateTime();
+        this.timestamp = timestamp;
+        this.sequence = sequence;
         this.id = id;
-        nextId = Math.max(id + 1, nextId);
         owner = null;
+        this.symbol = symbol;
+    }
+
+    /**
+     * Costruttore usato dal motore di matching per convertire un ordine evaso dalla sua rappresentazione primitiva
+     * (l'id è già stato assegnato dal motore)
+     * @param timestamp istante di esecuzione dell'ordine in nanosecondi dall'epoch
+     * @param sequence numero di sequenza dell'ordine nello storico
+     */
+    public Order(int id, String type, String orderType, int size, int price, long timestamp, long sequence, User owner, String symbol) {
+        this.type = type;
+        this.orderType = orderType;
+        this.size = size;
+        this.price = price;
+        this.initialSize = size;
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+        this.id = id;
+        this.owner = owner;
+        this.symbol = symbol;
+    }
+
+    /**
+     * Metodo per riallineare contatore degli id e orologio ad un ordine memorizzato, così che i nuovi ordini abbiano
+     * id, istanti e sequenze successivi. Va chiamato solo nel ripristino all'avvio: gli altri lettori dello storico
+     * (TradeHistoryConverter, partizioni di TradeHistory) non devono modificare lo stato globale.
+     * @param order ordine letto dalla persistenza
+     */
+    public static void recovered(Order order) {
+        nextId.accumulateAndGet(order.id + 1, Math::max);
+        MonotonicClock.advanceTo(order.timestamp, order.sequence);
     }
 
     public String getType() {
@@ -79,17 +115,30 @@ public class Order {
         this.price = price;
     }
 
-    public LocalDateTime getDate() {
-        return date;
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public long getSequence() {
+        return sequence;
     }
 
-    public void setDate(LocalDateTime date) {
-        this.date = date;
+    /**
+     * Metodo per confrontare l'ordine temporale di due ordini evasi (istante, poi numero di sequenza)
+     * @param other ordine da confrontare
+     * @return true se questo ordine precede other
+     */
+    public boolean isBefore(Order other) {
+        return timestamp < other.timestamp || (timestamp == other.timestamp && sequence < other.sequence);
     }
 
     @Override
     public String toString() {
-        return "OrderId: " + getId() + "\nOrderType: " + getOrderType() + "\nType: " + getType() + "\nSize: " + getSize() + "\nPrice: " + getPrice() + "\nDate " + getDate();
+        return "OrderId: " + getId() + "\nOrderType: " + getOrderType() + "\nType: " + getType() + "\nSize: " + getSize() + "\nPrice: " + getPrice() + "\nDate " + Instant.ofEpochSecond(0, timestamp);
     }
 
     public int getId() {
@@ -111,4 +160,12 @@ public class Order {
     public int getInitialSize() {
         return initialSize;
     }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public void setSymbol(String symbol) {
+        this.symbol = symbol;
+    }
 }
@@ -0,0 +1,182 @@
+import java.util.Arrays;
+
+/**
+ * Classe che rappresenta un lato (ask o bid) del libro degli ordini, organizzato per livelli di prezzo.
+ * I livelli sono mantenuti in un array ordinato dal peggiore al migliore, così che il livello migliore sia
+ * sempre in fondo: l'accesso al miglior prezzo e la rimozione del livello migliore costano O(1), la ricerca di un
+ * prezzo è una ricerca binaria e l'inserimento di un nuovo livello sposta solo i livelli migliori di esso
+ * (in genere pochi, perché i nuovi prezzi arrivano vicino alla cima del libro).
+ * I livelli svuotati vengono riusati, quindi a regime il lato non crea oggetti.
+ * La classe non è thread-safe: è usata solo dal thread del MatchingEngine.
+ */
+public class OrderBookSide {
+    private final boolean ask; // true se il lato contiene ask orders, false se contiene bid orders
+    private final OrderStore store; // store che contiene gli ordini del lato
+    private PriceLevel[] levels; // livelli di prezzo, dal peggiore (indice 0) al migliore (indice count-1)
+    private int count; // numero di livelli presenti
+    private PriceLevel[] pool; // livelli vuoti pronti per essere riusati
+    private int poolSize; // numero di livelli nel pool
+
+    public OrderBookSide(boolean ask, OrderStore store) {
+        this.ask = ask;
+        this.store = store;
+        this.levels = new PriceLevel[64];
+        this.count = 0;
+        this.pool = new PriceLevel[64];
+        this.poolSize = 0;
+    }
+
+    /**
+     * Metodo per inserire un ordine in coda al suo livello di prezzo (creando il livello se non esiste)
+     * @param slot slot dell'ordine da inserire
+     */
+    public void add(int slot) {
+        int price = store.getPrice(slot);
+        int index = search(price);
+        if (index < 0) {
+            index = -index - 1;
+            if (count == levels.length) {
+                levels = Arrays.copyOf(levels, count * 2);
+            }
+            // sposto di una posizione i livelli migliori del nuovo prezzo
+            System.arraycopy(levels, index, levels, index + 1, count - index);
+            levels[index] = newLevel(price);
+            count++;
+        }
+        levels[index].add(slot);
+    }
+
+    /**
+     * Metodo per rimuovere un ordine dal suo livello (eliminando il livello se rimane vuoto)
+     * @param slot slot dell'ordine da rimuovere
+     */
+    public void remove(int slot) {
+        int index = search(store.getPrice(slot));
+        PriceLevel level = levels[index];
+        level.remove(slot);
+        if (level.isEmpty()) {
+            removeAt(index);
+        }
+    }
+
+    /**
+     * Metodo per ridurre la dimensione di un ordine del lato, mantenendo aggiornata la dimensione del suo livello
+     * @param slot slot dell'ordine
+     * @param quantity quantità da togliere
+     */
+    public void reduce(int slot, int quantity) {
+        levels[search(store.getPrice(slot))].reduce(slot, quantity);
+    }
+
+    /**
+     * Metodo per eliminare il livello con il prezzo migliore
+     */
+    public void removeBest() {
+        removeAt(count - 1);
+    }
+
+    /**
+     * Metodo per eliminare il livello di posizione specificata a partire dal migliore
+     * @param rank posizione del livello (0 per il migliore)
+     */
+    public void removeLevel(int rank) {
+        removeAt(count - 1 - rank);
+    }
+
+    /**
+     * Metodo per calcolare la quantità disponibile sul lato, fermandosi appena raggiunge quella richiesta.
+     * Somma le dimensioni aggregate dei livelli, senza visitare i singoli ordini.
+     * @param size quantità richiesta
+     * @param limitPrice prezzo limite dell'ordine entrante (ignorato se hasLimit è falso)
+     * @param hasLimit true per i limit order, false per market e stop order
+     * @return quantità disponibile (al più quella richiesta se il lato basta a coprirla), in un long perché la somma
+     *         dei livelli di un lato profondo può superare Integer.MAX_VALUE
+     */
+    public long availableSize(long size, int limitPrice, boolean hasLimit) {
+        long available = 0;
+        for (int i = count - 1; i >= 0 && available < size; i--) {
+            if (hasLimit && !crosses(levels[i].getPrice(), limitPrice)) {
+                break;
+            }
+            available += levels[i].getTotalSize();
+        }
+        return available;
+    }
+
+    /**
+     * Metodo per verificare se un livello di questo lato può evadere un ordine entrante con il prezzo limite dato
+     * @param levelPrice prezzo del livello
+     * @param limitPrice prezzo limite dell'ordine entrante
+     * @return true se il prezzo del livello è accettabile per l'ordine entrante
+     */
+    public boolean crosses(int levelPrice, int limitPrice) {
+        // un ordine bid entrante compra dagli ask a prezzo <= limite, un ask entrante vende ai bid a prezzo >= limite
+        return ask ? levelPrice <= limitPrice : levelPrice >= limitPrice;
+    }
+
+    public PriceLevel getBest() {
+        return count == 0 ? null : levels[count - 1];
+    }
+
+    public int getBestPrice() {
+        return levels[count - 1].getPrice();
+    }
+
+    /**
+     * Metodo per ottenere il livello di posizione specificata a partire dal migliore
+     * @param rank posizione del livello (0 per il migliore)
+     * @return livello corrispondente
+     */
+    public PriceLevel getLevel(int rank) {
+        return levels[count - 1 - rank];
+    }
+
+    public int getLevelCount() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Metodo per la ricerca binaria di un prezzo tra i livelli
+     * @param price prezzo da cercare
+     * @return indice del livello se presente, altrimenti -(punto di inserimento) - 1
+     */
+    private int search(int price) {
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midPrice = levels[mid].getPrice();
+            if (midPrice == price) {
+                return mid;
+            }
+            // i livelli vanno dal peggiore al migliore: prezzo decrescente per gli ask, crescente per i bid
+            if (ask ? midPrice > price : midPrice < price) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void removeAt(int index) {
+        PriceLevel level = levels[index];
+        System.arraycopy(levels, index + 1, levels, index, count - index - 1);
+        count--;
+        levels[count] = null;
+        // rimetto il livello nel pool per riusarlo
+        if (poolSize == pool.length) {
+            pool = Arrays.copyOf(pool, poolSize * 2);
+        }
+        pool[poolSize++] = level;
+    }
+
+    private PriceLevel newLevel(int price) {
+        PriceLevel level = (poolSize > 0 ? pool[--poolSize] : new PriceLevel(store));
+        level.reset(price);
+        return level;
+    }
+}
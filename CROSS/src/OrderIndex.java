@@ -0,0 +1,130 @@
+import java.util.Arrays;
+
+/**
+ * Indice id -> slot degli ordini in attesa nel libro, implementato come tabella hash ad indirizzamento aperto
+ * con chiavi e valori int primitivi (nessun boxing) e scansione lineare.
+ * La classe non è thread-safe: è usata solo dal thread del MatchingEngine.
+ */
+public class OrderIndex {
+    private static final int EMPTY = -1; // chiave degli slot liberi (gli id degli ordini sono sempre >= 0)
+
+    private int[] keys; // id degli ordini
+    private int[] values; // slot dell'OrderStore corrispondenti
+    private int mask; // maschera per calcolare lo slot (la capacità è una potenza di 2)
+    private int size; // numero di ordini indicizzati
+
+    public OrderIndex(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 8) - 1) << 1;
+        this.keys = new int[capacity];
+        Arrays.fill(this.keys, EMPTY);
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        this.size = 0;
+    }
+
+    /**
+     * Metodo per indicizzare un ordine
+     * @param id id dell'ordine
+     * @param value slot dell'ordine
+     */
+    public void put(int id, int value) {
+        // mantengo il fattore di carico sotto 1/2 per avere scansioni brevi
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int slot = slot(id);
+        while (keys[slot] != EMPTY && keys[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            size++;
+        }
+        keys[slot] = id;
+        values[slot] = value;
+    }
+
+    /**
+     * Metodo per ottenere lo slot dell'ordine con l'id specificato
+     * @param id id dell'ordine
+     * @return slot indicizzato, OrderStore.NIL se non presente
+     */
+    public int get(int id) {
+        int slot = slot(id);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == id) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return OrderStore.NIL;
+    }
+
+    /**
+     * Metodo per rimuovere l'ordine con l'id specificato dall'indice
+     * @param id id dell'ordine
+     * @return slot rimosso, OrderStore.NIL se non presente
+     */
+    public int remove(int id) {
+        int slot = slot(id);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == id) {
+                int removed = values[slot];
+                shiftBack(slot);
+                size--;
+                return removed;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return OrderStore.NIL;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Metodo per liberare uno slot spostando indietro gli elementi successivi della stessa sequenza di scansione,
+     * così che le ricerche non si interrompano su un buco (nessuna lapide)
+     * @param free slot da liberare
+     */
+    private void shiftBack(int free) {
+        int current = (free + 1) & mask;
+        while (keys[current] != EMPTY) {
+            int home = slot(keys[current]);
+            // l'elemento può occupare lo slot libero solo se questo si trova tra la sua posizione ideale e quella attuale
+            if (((current - home) & mask) >= ((current - free) & mask)) {
+                keys[free] = keys[current];
+                values[free] = values[current];
+                free = current;
+            }
+            current = (current + 1) & mask;
+        }
+        keys[free] = EMPTY;
+        values[free] = OrderStore.NIL;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private int slot(int id) {
+        // mescolo i bit dell'id (gli id sono sequenziali) prima di applicare la maschera
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
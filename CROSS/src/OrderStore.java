@@ -0,0 +1,109 @@
+/**
+ * Interfaccia per la memorizzazione compatta degli ordini gestiti dal motore di matching.
+ * Ogni ordine occupa uno slot identificato da un intero e i suoi campi sono solo valori primitivi
+ * (lato, tipo, dimensione, prezzo, timestamp in nanosecondi, id del proprietario), così che il percorso di matching
+ * non debba creare oggetti: la conversione in Order avviene solo ai bordi (storico, notifiche, risposte).
+ * Gli slot sono collegati tra loro (prev/next) per formare le code FIFO dei livelli di prezzo.
+ */
+public interface OrderStore {
+    public static final int NIL = -1; // slot nullo (fine della coda, ordine non trovato)
+
+    public static final int ASK = 0; // lato ask
+    public static final int BID = 1; // lato bid
+
+    public static final int LIMIT = 0; // limit order
+    public static final int MARKET = 1; // market order
+    public static final int STOP = 2; // stop order
+
+    // Metodo per allocare uno slot con i campi dell'ordine specificati. Ritorna lo slot allocato.
+    public int allocate(int id, int side, int orderType, int size, int price, long timestamp, int owner);
+
+    // Metodo per liberare uno slot, che potrà essere riusato da un ordine successivo.
+    public void free(int slot);
+
+    public int getId(int slot);
+
+    public int getSide(int slot);
+
+    public int getOrderType(int slot);
+
+    public int getSize(int slot);
+
+    public void setSize(int slot, int size);
+
+    public int getInitialSize(int slot);
+
+    public int getPrice(int slot);
+
+    public long getTimestamp(int slot);
+
+    public int getOwner(int slot);
+
+    public int getPrev(int slot);
+
+    public void setPrev(int slot, int prev);
+
+    public int getNext(int slot);
+
+    public void setNext(int slot, int next);
+
+    /**
+     * Metodo per ottenere lo store a partire dal nome indicato nella configurazione
+     * @param name nome dello store (heap o off-heap)
+     * @param initialCapacity numero di ordini che lo store può contenere prima di crescere
+     * @return store corrispondente (heap se il nome non è riconosciuto)
+     */
+    public static OrderStore fromName(String name, int initialCapacity) {
+        switch (name) {
+            case "off-heap": return new OffHeapOrderStore(initialCapacity);
+            case "heap": return new HeapOrderStore(initialCapacity);
+            default:
+                System.err.println("[ERR] Unknown order store " + name + ", using heap.");
+                return new HeapOrderStore(initialCapacity);
+        }
+    }
+
+    /**
+     * Metodo per convertire il tipo (ask/bid) del protocollo nel lato primitivo
+     * @param type ask o bid
+     * @return ASK o BID
+     */
+    public static int side(String type) {
+        return type.equals("ask") ? ASK : BID;
+    }
+
+    /**
+     * Metodo per convertire il lato primitivo nel tipo (ask/bid) del protocollo
+     * @param side ASK o BID
+     * @return ask o bid
+     */
+    public static String sideName(int side) {
+        return side == ASK ? "ask" : "bid";
+    }
+
+    /**
+     * Metodo per convertire il tipo d'ordine del protocollo nel tipo primitivo
+     * @param orderType limit, market o stop
+     * @return LIMIT, MARKET o STOP
+     */
+    public static int orderType(String orderType) {
+        switch (orderType) {
+            case "limit": return LIMIT;
+            case "market": return MARKET;
+            default: return STOP;
+        }
+    }
+
+    /**
+     * Metodo per convertire il tipo d'ordine primitivo nel nome usato dal protocollo
+     * @param orderType LIMIT, MARKET o STOP
+     * @return limit, market o stop
+     */
+    public static String orderTypeName(int orderType) {
+        switch (orderType) {
+            case LIMIT: return "limit";
+            case MARKET: return "market";
+            default: return "stop";
+        }
+    }
+}
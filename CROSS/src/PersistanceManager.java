@@ -1,19 +1,38 @@
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 
 /**
  * Interfaccia per la gestione della persistenza dei dati di ordini e utenti.
  */
 public interface PersistanceManager {
 
-    // Metodo per la memorizzazione degli ordini passati come parametro.
+    // Gli errori di scrittura non vengono ignorati: i metodi void lanciano UncheckedIOException, i future vengono
+    // completati con l'eccezione, così chi attende la memorizzazione può accorgersi del fallimento.
+
+    // Metodo per la memorizzazione dell'intero storico degli ordini passato come parametro.
     public void storeIssuedOrders(Collection<Order> issuedOrders);
 
-    // Metodo per la memorizzazione degli utenti passati come parametro.
-    public void storeUsers(Collection<User> users);
+    // Metodo per la memorizzazione dei nuovi ordini evasi passati come parametro, in aggiunta a quelli già memorizzati.
+    // Ritorna un future completato quando gli ordini sono memorizzati (con la durabilità prevista dall'implementazione).
+    public CompletableFuture<Void> appendIssuedOrders(Collection<Order> issuedOrders);
+
+    // Metodo per la memorizzazione di tutti gli utenti passati come parametro, che sostituiscono quelli memorizzati.
+    // Ritorna un future completato a memorizzazione avvenuta.
+    public CompletableFuture<Void> storeUsers(Collection<User> users);
+
+    // Metodo per la memorizzazione dei soli utenti nuovi o modificati passati come parametro.
+    // Ritorna un future completato a memorizzazione avvenuta.
+    public CompletableFuture<Void> appendUsers(Collection<User> users);
+
+    // Metodo per forzare sul dispositivo di memorizzazione (fsync) le scritture già eseguite.
+    public void sync();
 
-    // Metodo per la lettura degli ordini dal dispositivo di memorizzazione.
-    public Collection<Order> readOrders();
+    // Metodo per la lettura degli ordini dal dispositivo di memorizzazione: ogni ordine viene passato al reader appena
+    // letto, nell'ordine di memorizzazione, così che lo storico non debba mai essere tenuto per intero in memoria.
+    public void readOrders(Consumer<Order> reader);
 
     // Metodo per la lettura degli utenti dal dispositivo di memorizzazione.
-    public Collection<User> readUsers();
+    public ConcurrentLinkedQueue<User> readUsers();
 }
\ No newline at end of file
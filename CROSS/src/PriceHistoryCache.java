@@ -0,0 +1,94 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Classe per la memorizzazione delle risposte di getPriceHistory già serializzate (byte UTF-8 della riga json),
+ * con politica LRU e dimensione totale limitata: una richiesta ripetuta si risolve con una sola scrittura del buffer,
+ * senza leggere gli aggregati né costruire json.
+ * Ogni risposta è associata alla versione del mese (DailyPrices.version) con cui è stata calcolata: un ordine evaso
+ * nel mese ne incrementa la versione, quindi la risposta memorizzata non viene più usata e viene ricalcolata.
+ */
+public class PriceHistoryCache {
+    private final long maxBytes; // dimensione massima totale delle risposte memorizzate
+    private final LinkedHashMap<String, CachedResponse> responses; // risposte per simbolo e mese, in ordine di accesso
+    private long bytes; // dimensione totale delle risposte memorizzate
+    private final ReentrantLock lock; // lock delle risposte (non un monitor, per non bloccare i thread virtuali sul carrier)
+
+    public PriceHistoryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.responses = new LinkedHashMap<>(16, 0.75f, true);
+        this.bytes = 0;
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Metodo per ottenere una risposta memorizzata
+     * @param key simbolo e mese richiesti
+     * @param version versione attuale del mese
+     * @return risposta serializzata, o null se non è memorizzata o è stata calcolata con una versione precedente
+     */
+    public byte[] get(String key, long version) {
+        lock.lock();
+        try {
+            CachedResponse cached = responses.get(key);
+            if (cached == null) {
+                return null;
+            }
+            if (cached.version != version) {
+                remove(key);
+                return null;
+            }
+            return cached.response;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per memorizzare una risposta, eliminando le risposte usate meno di recente se la dimensione
+     * totale supera il limite
+     * @param key simbolo e mese richiesti
+     * @param version versione del mese letta prima di calcolare la risposta
+     * @param response risposta serializzata
+     */
+    public void put(String key, long version, byte[] response) {
+        lock.lock();
+        try {
+            if (response.length > maxBytes) {
+                return;
+            }
+            remove(key);
+            responses.put(key, new CachedResponse(version, response));
+            bytes += response.length;
+            Iterator<Map.Entry<String, CachedResponse>> eldest = responses.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().response.length;
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(String key) {
+        CachedResponse removed = responses.remove(key);
+        if (removed != null) {
+            bytes -= removed.response.length;
+        }
+    }
+
+    /**
+     * Classe che rappresenta una risposta memorizzata, con la versione del mese con cui è stata calcolata
+     */
+    private static class CachedResponse {
+        final long version; // versione del mese
+        final byte[] response; // risposta serializzata
+
+        CachedResponse(long version, byte[] response) {
+            this.version = version;
+            this.response = response;
+        }
+    }
+}
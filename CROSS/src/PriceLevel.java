@@ -0,0 +1,101 @@
+/**
+ * Classe che rappresenta un livello di prezzo di un lato del libro degli ordini.
+ * Gli ordini dello stesso prezzo sono mantenuti in una coda FIFO (lista doppiamente concatenata sugli slot
+ * dell'OrderStore), così che la priorità temporale sia data dall'ordine di inserimento e la rimozione di un ordine
+ * qualsiasi costi O(1). Le istanze vengono riusate dal lato del libro quando un livello si svuota.
+ */
+public class PriceLevel {
+    private final OrderStore store; // store che contiene gli ordini del livello
+    private int price; // prezzo del livello
+    private long totalSize; // dimensione aggregata degli ordini nel livello (long: molti ordini possono superare Integer.MAX_VALUE)
+    private int count; // numero di ordini nel livello
+    private int head; // slot dell'ordine più vecchio (il primo ad essere evaso)
+    private int tail; // slot dell'ordine più recente
+
+    public PriceLevel(OrderStore store) {
+        this.store = store;
+        reset(0);
+    }
+
+    /**
+     * Metodo per reinizializzare il livello (vuoto) con un nuovo prezzo
+     * @param price prezzo del livello
+     */
+    public void reset(int price) {
+        this.price = price;
+        this.totalSize = 0;
+        this.count = 0;
+        this.head = OrderStore.NIL;
+        this.tail = OrderStore.NIL;
+    }
+
+    /**
+     * Metodo per accodare un ordine al livello
+     * @param slot slot dell'ordine da accodare
+     */
+    public void add(int slot) {
+        store.setPrev(slot, tail);
+        store.setNext(slot, OrderStore.NIL);
+        if (tail == OrderStore.NIL) {
+            head = slot;
+        } else {
+            store.setNext(tail, slot);
+        }
+        tail = slot;
+        totalSize += store.getSize(slot);
+        count++;
+    }
+
+    /**
+     * Metodo per scollegare un ordine dal livello
+     * @param slot slot dell'ordine da rimuovere (deve appartenere al livello)
+     */
+    public void remove(int slot) {
+        int prev = store.getPrev(slot);
+        int next = store.getNext(slot);
+        if (prev == OrderStore.NIL) {
+            head = next;
+        } else {
+            store.setNext(prev, next);
+        }
+        if (next == OrderStore.NIL) {
+            tail = prev;
+        } else {
+            store.setPrev(next, prev);
+        }
+        store.setPrev(slot, OrderStore.NIL);
+        store.setNext(slot, OrderStore.NIL);
+        totalSize -= store.getSize(slot);
+        count--;
+    }
+
+    /**
+     * Metodo per ridurre la dimensione di un ordine del livello mantenendo aggiornata la dimensione aggregata
+     * @param slot slot dell'ordine del livello
+     * @param quantity quantità evasa
+     */
+    public void reduce(int slot, int quantity) {
+        store.setSize(slot, store.getSize(slot) - quantity);
+        totalSize -= quantity;
+    }
+
+    public boolean isEmpty() {
+        return head == OrderStore.NIL;
+    }
+
+    public int getPrice() {
+        return price;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getHead() {
+        return head;
+    }
+}
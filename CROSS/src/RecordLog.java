@@ -0,0 +1,301 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Classe per la gestione di un log append-only di record binari, diviso in segmenti (prefisso-000000000.log,
+ * prefisso-000000001.log, ...): quando un segmento raggiunge la dimensione massima, i record successivi vanno in un
+ * nuovo segmento. Ogni record è composto da lunghezza del contenuto (int), CRC32 del contenuto (int) e contenuto;
+ * in lettura i record incompleti o corrotti in coda all'ultimo segmento (scrittura interrotta) vengono scartati.
+ * I record vengono codificati in un buffer e scritti insieme con flush(), quindi una scrittura per lotto di record.
+ * La classe non è thread-safe: chi la usa deve garantire un solo scrittore alla volta.
+ */
+public class RecordLog {
+    public static final int HEADER_SIZE = 8; // lunghezza e CRC del record
+    private static final int MAX_RECORD_SIZE = 1 << 16; // dimensione massima plausibile del contenuto di un record
+
+    private final Path directory; // cartella che contiene i segmenti
+    private final String prefix; // prefisso del nome dei segmenti
+    private final long segmentSize; // dimensione massima (in byte) di un segmento
+    private FileChannel segment; // segmento corrente, aperto in scrittura
+    private int segmentIndex; // indice del segmento corrente
+    private long segmentPosition; // dimensione attuale del segmento corrente
+    private ByteBuffer buffer; // record codificati e non ancora scritti
+    private boolean unsynced; // true se il segmento corrente contiene record non ancora forzati su disco
+    private int recordStart; // posizione nel buffer del record in corso di codifica
+    private final CRC32 crc; // calcolo del CRC dei record
+
+    public RecordLog(Path directory, String prefix, long segmentSize) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.segment = null;
+        this.segmentIndex = 0;
+        this.segmentPosition = 0;
+        this.buffer = ByteBuffer.allocate(4096);
+        this.recordStart = 0;
+        this.unsynced = false;
+        this.crc = new CRC32();
+    }
+
+    /**
+     * Metodo per iniziare la codifica di un nuovo record in coda al buffer. Se il record non entra nel segmento
+     * corrente, i record già codificati vengono scritti e si passa al segmento successivo.
+     * @param length dimensione del contenuto del record
+     * @return buffer su cui scrivere esattamente length byte di contenuto, poi chiamare endRecord()
+     */
+    public ByteBuffer startRecord(int length) throws IOException {
+        if (segment == null) {
+            openSegment(segmentIndex);
+        }
+        if (segmentPosition + buffer.position() + HEADER_SIZE + length > segmentSize && segmentPosition + buffer.position() > 0) {
+            write();
+            openSegment(segmentIndex + 1);
+        }
+        ensureCapacity(HEADER_SIZE + length);
+        recordStart = buffer.position();
+        buffer.position(recordStart + HEADER_SIZE);
+        return buffer;
+    }
+
+    /**
+     * Metodo per completare il record in corso di codifica, scrivendone lunghezza e CRC
+     */
+    public void endRecord() {
+        int length = buffer.position() - recordStart - HEADER_SIZE;
+        crc.reset();
+        crc.update(buffer.array(), recordStart + HEADER_SIZE, length);
+        buffer.putInt(recordStart, length);
+        buffer.putInt(recordStart + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Metodo per scrivere nel segmento corrente i record codificati. Se la scrittura fallisce, i record codificati
+     * vengono scartati e il segmento resta com'era prima della chiamata.
+     */
+    public void flush() throws IOException {
+        if (buffer.position() > 0) {
+            write();
+        }
+    }
+
+    /**
+     * Metodo per forzare su disco (fsync) i record già scritti nel segmento corrente; non fa nulla se dall'ultimo
+     * fsync non è stato scritto alcun record
+     */
+    public void sync() throws IOException {
+        if (segment != null && unsynced) {
+            segment.force(false);
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Metodo per chiudere il segmento corrente; i record codificati e non ancora scritti con flush() vengono scartati
+     */
+    public void close() throws IOException {
+        buffer.clear();
+        closeSegment();
+    }
+
+    /**
+     * Metodo per chiudere il segmento corrente e iniziarne uno nuovo (i record precedenti non verranno più modificati)
+     * @return indice del nuovo segmento
+     */
+    public int roll() throws IOException {
+        flush();
+        openSegment(segmentIndex + 1);
+        return segmentIndex;
+    }
+
+    public int getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    /**
+     * Metodo per leggere in ordine i record validi dei segmenti a partire da quello indicato. Se l'ultimo segmento
+     * termina con un record incompleto o corrotto, la coda non valida viene eliminata, così che i nuovi record
+     * seguano l'ultimo record integro; le scritture successive continuano nell'ultimo segmento letto.
+     * @param fromIndex indice del primo segmento da leggere
+     * @param reader funzione chiamata con il contenuto di ogni record (valido solo durante la chiamata)
+     * @return true se è stato trovato almeno un segmento
+     */
+    public boolean replay(int fromIndex, Consumer<ByteBuffer> reader) throws IOException {
+        closeSegment();
+        List<Path> segments = listSegments();
+        segmentIndex = fromIndex;
+        boolean found = false;
+        for (int i = 0; i < segments.size(); i++) {
+            int index = segmentIndex(segments.get(i));
+            if (index < fromIndex) {
+                continue;
+            }
+            found = true;
+            long valid = readSegment(segments.get(i), reader);
+            long length = Files.size(segments.get(i));
+            if (valid < length) {
+                System.err.println("[ERR] Discarding " + (length - valid) + " corrupted bytes at the end of " + segments.get(i));
+                if (i == segments.size() - 1) {
+                    try (FileChannel channel = FileChannel.open(segments.get(i), StandardOpenOption.WRITE)) {
+                        channel.truncate(valid);
+                    }
+                }
+            }
+            segmentIndex = index;
+        }
+        return found;
+    }
+
+    /**
+     * Metodo per eliminare i segmenti precedenti a quello indicato (già coperti da uno snapshot)
+     * @param index indice del primo segmento da conservare
+     */
+    public void deleteBefore(int index) throws IOException {
+        for (Path path : listSegments()) {
+            if (segmentIndex(path) < index) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Metodo per eliminare tutti i segmenti e ripartire dal segmento 0
+     */
+    public void clear() throws IOException {
+        closeSegment();
+        buffer.clear();
+        for (Path path : listSegments()) {
+            Files.delete(path);
+        }
+        segmentIndex = 0;
+    }
+
+    /**
+     * Metodo per leggere i record validi di un segmento
+     * @param path segmento da leggere
+     * @param reader funzione chiamata con il contenuto di ogni record
+     * @return numero di byte validi all'inizio del segmento
+     */
+    private long readSegment(Path path, Consumer<ByteBuffer> reader) {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] payload = new byte[256];
+            while (true) {
+                int length, checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break; // fine del segmento (o intestazione incompleta)
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+                try {
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    break; // record incompleto
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break; // record corrotto
+                }
+                reader.accept(ByteBuffer.wrap(payload, 0, length));
+                valid += HEADER_SIZE + length;
+            }
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while reading log segment " + path + ": " + e.getMessage());
+        }
+        return valid;
+    }
+
+    /**
+     * Metodo per scrivere nel segmento corrente il contenuto del buffer
+     */
+    private void write() throws IOException {
+        long start = segmentPosition;
+        buffer.flip();
+        try {
+            unsynced = true;
+            while (buffer.hasRemaining()) {
+                segmentPosition += segment.write(buffer);
+            }
+        } catch (IOException e) {
+            // i record del buffer sono persi: elimino la parte già scritta, così che il segmento termini con un record integro
+            segmentPosition = start;
+            try {
+                segment.truncate(start);
+            } catch (IOException truncateError) {
+                System.err.println("[ERR] Error while truncating log segment " + segmentPath(segmentIndex) + ": " + truncateError.getMessage());
+            }
+            throw e;
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    private void openSegment(int index) throws IOException {
+        if (segment != null) {
+            segment.force(false); // il segmento chiuso non verrà più sincronizzato da sync()
+            unsynced = false;
+        }
+        closeSegment();
+        Files.createDirectories(directory);
+        segment = FileChannel.open(segmentPath(index), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentIndex = index;
+        segmentPosition = segment.size();
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment != null) {
+            segment.close();
+            segment = null;
+        }
+    }
+
+    private Path segmentPath(int index) {
+        return directory.resolve(String.format("%s-%09d.log", prefix, index));
+    }
+
+    private int segmentIndex(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(prefix.length() + 1, name.length() - ".log".length()));
+    }
+
+    /**
+     * Metodo per ottenere i segmenti presenti, in ordine
+     * @return percorsi dei segmenti
+     */
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "-*.log")) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        // i nomi hanno indici a larghezza fissa, quindi l'ordine alfabetico è quello dei segmenti
+        segments.sort(null);
+        return segments;
+    }
+}
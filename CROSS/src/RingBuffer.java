@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring buffer pre-allocato di comandi per il motore di matching (in stile disruptor).
+ * Più produttori (i ServerTask) reclamano una sequenza, scrivono il comando nello slot corrispondente e lo pubblicano;
+ * un unico consumatore (il MatchingEngine) legge i comandi in ordine di sequenza.
+ */
+public class RingBuffer {
+    private final EngineCommand[] entries; // slot pre-allocati, riusati ad ogni giro del buffer
+    private final int mask; // maschera per calcolare l'indice dello slot (la capacità è una potenza di 2)
+    private final AtomicLong nextSequence; // prossima sequenza da assegnare a un produttore
+    private final AtomicLongArray published; // per ogni slot, l'ultima sequenza pubblicata in quello slot
+    private final AtomicLong consumed; // ultima sequenza consumata dal motore, usata per non sovrascrivere slot non ancora letti
+    private final WaitStrategy waitStrategy; // strategia di attesa del consumatore
+
+    public RingBuffer(int size, WaitStrategy waitStrategy) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Ring buffer size must be a power of 2: " + size);
+        }
+        this.entries = new EngineCommand[size];
+        for (int i = 0; i < size; i++) {
+            this.entries[i] = new EngineCommand();
+        }
+        this.mask = size - 1;
+        this.nextSequence = new AtomicLong(0);
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.published.set(i, -1);
+        }
+        this.consumed = new AtomicLong(-1);
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Metodo per reclamare la prossima sequenza (lato produttore). Se il buffer è pieno attende che il motore liberi uno slot.
+     * @return sequenza reclamata
+     */
+    public long next() {
+        long sequence = nextSequence.getAndIncrement();
+        // lo slot è libero solo quando il motore ha consumato il comando scritto un giro prima
+        while (sequence - entries.length > consumed.get()) {
+            LockSupport.parkNanos(1);
+        }
+        return sequence;
+    }
+
+    /**
+     * Metodo per ottenere lo slot associato alla sequenza specificata
+     * @param sequence sequenza reclamata o da consumare
+     * @return comando contenuto nello slot
+     */
+    public EngineCommand get(long sequence) {
+        return entries[(int) (sequence & mask)];
+    }
+
+    /**
+     * Metodo per pubblicare il comando scritto nello slot della sequenza (lato produttore)
+     * @param sequence sequenza da pubblicare
+     */
+    public void publish(long sequence) {
+        published.set((int) (sequence & mask), sequence);
+        waitStrategy.signalAllWhenBlocking();
+    }
+
+    /**
+     * Metodo per attendere (lato consumatore) che la sequenza specificata sia pubblicata
+     * @param sequence sequenza attesa
+     * @return sequenza più alta pubblicata in modo contiguo a partire da quella attesa
+     */
+    public long waitFor(long sequence) throws InterruptedException {
+        return waitStrategy.waitFor(sequence, this);
+    }
+
+    /**
+     * Metodo per segnalare (lato consumatore) che tutte le sequenze fino a quella specificata sono state consumate
+     * @param sequence ultima sequenza consumata
+     */
+    public void release(long sequence) {
+        consumed.set(sequence);
+    }
+
+    public boolean isAvailable(long sequence) {
+        return published.get((int) (sequence & mask)) == sequence;
+    }
+
+    /**
+     * Metodo per ottenere la sequenza più alta pubblicata senza buchi a partire da quella indicata
+     * (i produttori possono pubblicare fuori ordine, quindi il consumatore si ferma al primo slot non pubblicato)
+     * @param sequence sequenza di partenza, già pubblicata
+     * @return ultima sequenza consumabile
+     */
+    public long getHighestPublished(long sequence) {
+        long highest = sequence;
+        long limit = sequence + entries.length;
+        while (highest + 1 < limit && isAvailable(highest + 1)) {
+            highest++;
+        }
+        return highest;
+    }
+
+    public int getSize() {
+        return entries.length;
+    }
+}
@@ -4,7 +4,10 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.SocketException;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 public class ServerMain {
@@ -15,8 +18,27 @@ public class ServerMain {
     public static int KEEP_ALIVE; // tempo di keepalive (in ms)
     public static String ordersInput; // file di input da cui leggere gli ordini evasi
     public static String ordersOutput; // file di output su cui scrivere gli ordini evasi
-    public static String usersInput; // file di input da cui leggere gli utenti registrati
-    public static String usersOutput; // file di output su cui scrivere gli utenti registrati
+    public static String usersInput; // file json degli utenti registrati (formato precedente), importato nel log al primo avvio
+    public static String usersLog; // log incrementale degli utenti registrati
+    public static int RING_BUFFER_SIZE; // numero di slot del ring buffer del motore di matching (potenza di 2)
+    public static String WAIT_STRATEGY; // strategia di attesa del motore di matching (blocking, yielding o busy-spin)
+    public static String ORDER_STORE; // memorizzazione degli ordini in attesa (heap o off-heap)
+    public static List<String> SYMBOLS; // simboli quotati, ognuno con il proprio motore di matching
+    public static int AUCTION_INTERVAL; // intervallo (in ms) tra due aste, 0 per il matching continuo
+    public static String PERSISTENCE; // persistenza degli ordini evasi (json, journal o binary)
+    public static String JOURNAL_DIRECTORY; // cartella dei segmenti del journal
+    public static long JOURNAL_SEGMENT_SIZE; // dimensione massima (in byte) di un segmento del journal
+    public static String BINARY_FILE; // file binario degli ordini evasi
+    public static String DURABILITY; // momento della risposta rispetto alla memorizzazione (sync, async o periodic)
+    public static int SYNC_INTERVAL; // intervallo (in ms) tra due fsync nella durabilità periodic
+    public static String HISTORY_DIRECTORY; // cartella delle partizioni sigillate dello storico degli ordini evasi
+    public static int HOT_TRADES; // numero massimo di ordini evasi recenti tenuti in memoria
+    public static Map<String, Integer> CANDLE_RETENTION; // numero di candele conservate per ogni risoluzione (e.g. "1m")
+    public static long PRICE_HISTORY_CACHE; // dimensione massima (in byte) delle risposte di getPriceHistory memorizzate
+    public static String CONNECTION_MODE; // gestione delle connessioni (nio, blocking o virtual)
+    public static int EVENT_LOOPS; // numero di thread di selezione del NioServer
+    public static String SNAPSHOT_DIRECTORY; // cartella degli snapshot e del journal dei libri
+    public static int SNAPSHOT_INTERVAL; // intervallo (in ms) tra due snapshot, 0 per disabilitarli
 
     public static void main(String[] args) {
         final String CONFIG_DIR = "../config"; // path relativo alla directory contenente le configurazioni
@@ -28,32 +50,94 @@ public class ServerMain {
         } catch (SocketException e) {
             System.err.println("[ERR] UDP Server could not be initialized: " + e.getMessage());
         }
-        // creazione del gestore di persistenza
-        final JsonPersistanceManager persistenceManager = new JsonPersistanceManager(ordersInput, ordersOutput, usersInput, usersOutput);
-        ConcurrentLinkedQueue<User> users = persistenceManager.readUsers(); // caricamento utenti registrati
-        ConcurrentLinkedQueue<Order> issuedOrders = persistenceManager.readOrders(); // caricamento ordini evasi
-        // creazione di liste ordinate per ordini di ask, bid e stop orders attualmente in sospeso (che possono essere evasi)
-        ConcurrentSkipListSet<Order> askOrders = new ConcurrentSkipListSet<>(new AskOrderComparator());
-        ConcurrentSkipListSet<Order> bidOrders = new ConcurrentSkipListSet<>(new BidOrderComparator());
-        ConcurrentLinkedQueue<Order> stopOrders = new ConcurrentLinkedQueue<>();
+        // creazione del gestore di persistenza: le scritture vengono eseguite a lotti dal thread scrittore
+        final PersistanceManager store;
+        if (PERSISTENCE.equals("journal")) {
+            store = new JournalPersistanceManager(JOURNAL_DIRECTORY, JOURNAL_SEGMENT_SIZE, ordersInput, usersInput, usersLog);
+        } else if (PERSISTENCE.equals("binary")) {
+            store = new BinaryPersistanceManager(BINARY_FILE, ordersInput, usersInput, usersLog);
+        } else {
+            store = new JsonPersistanceManager(ordersInput, ordersOutput, usersInput, usersLog);
+        }
+        final GroupCommitPersistanceManager persistenceManager = new GroupCommitPersistanceManager(store, DURABILITY, SYNC_INTERVAL);
+        UserRegistry users = new UserRegistry(persistenceManager.readUsers()); // caricamento utenti registrati
+        // caricamento ordini evasi: solo quelli recenti restano in memoria, gli altri sono nelle partizioni sigillate
+        TradeHistory history = new TradeHistory(HISTORY_DIRECTORY, HOT_TRADES, new CandleService(CANDLE_RETENTION));
+        history.open();
+        try {
+            history.load(persistenceManager);
+        } catch (UncheckedIOException e) {
+            // lo storico precedente non è stato importato: avviare il server lo perderebbe
+            System.err.println("[ERR] Server could not be started: " + e.getMessage());
+            return;
+        }
+        PriceHistoryCache priceHistoryCache = new PriceHistoryCache(PRICE_HISTORY_CACHE);
+        persistenceManager.start();
+        // creazione dei motori di matching, uno per simbolo, ognuno proprietario dei propri ordini ask, bid e stop in sospeso
+        MarketRegistry markets;
+        try {
+            markets = new MarketRegistry(SYMBOLS, RING_BUFFER_SIZE, WAIT_STRATEGY, ORDER_STORE, AUCTION_INTERVAL,
+                    (SNAPSHOT_INTERVAL > 0 ? SNAPSHOT_DIRECTORY : null), JOURNAL_SEGMENT_SIZE, persistenceManager.getDurability(), SYNC_INTERVAL,
+                    history, persistenceManager, udp);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[ERR] Server could not be started: " + e.getMessage());
+            return;
+        }
+        SnapshotManager snapshots = null;
+        if (SNAPSHOT_INTERVAL > 0) {
+            // ripristino dei libri dall'ultimo snapshot e dalla coda del journal dei libri
+            snapshots = new SnapshotManager(SNAPSHOT_DIRECTORY, SNAPSHOT_INTERVAL, markets, users, persistenceManager);
+            snapshots.recover();
+        }
+        markets.start();
+        if (snapshots != null) {
+            snapshots.start();
+        }
 
         // creazione della working queue contenente i task da eseguire
         LinkedBlockingQueue<Runnable> workingQueue = new LinkedBlockingQueue<>();
+        // creazione della thread pool
+        Executor pool = new ThreadPoolExecutor(CORE_THREAD_POOL_SIZE, MAX_THREAD_POOL_SIZE,
+                KEEP_ALIVE, TimeUnit.MILLISECONDS, workingQueue);
+        if (CONNECTION_MODE.equals("nio")) {
+            // i thread di selezione leggono le richieste di tutte le connessioni, la thread pool esegue solo le richieste complete
+            try {
+                new NioServer(tcpPort, EVENT_LOOPS, pool, udp, persistenceManager, users, history, priceHistoryCache, markets).serve();
+            } catch (IOException e) {
+                System.err.println("[ERR] Server could not be started: " + e.getMessage());
+            }
+            return;
+        }
+        // in modalità virtual ogni connessione ha il proprio virtual thread, quindi il numero di client non è limitato dalla thread pool
+        Executor connections = (CONNECTION_MODE.equals("virtual") ? newVirtualThreadExecutor() : pool);
         try (ServerSocket serverSocket = new ServerSocket(tcpPort)) { // apertura della socket
             System.out.println("Server running on port " + tcpPort + "...");
-            // creazione della thread pool
-            Executor pool = new ThreadPoolExecutor(CORE_THREAD_POOL_SIZE, MAX_THREAD_POOL_SIZE,
-                    KEEP_ALIVE, TimeUnit.MILLISECONDS, workingQueue);
             while (true) {
                 // crea un nuovo task da eseguire con la connessione accettata sulla porta di welcome (tcpPort)
-                // il ServerUDP, gestore di persistenza, lista di utenti registrati, ordini evasi e ordini della "sessione" sono comuni a tutti i thread che vengono eseguiti
-                pool.execute(new ServerTask(serverSocket.accept(), udp, persistenceManager, users, issuedOrders, askOrders, bidOrders, stopOrders));
+                // il ServerUDP, gestore di persistenza, lista di utenti registrati, ordini evasi, risposte memorizzate e motore di matching sono comuni a tutti i thread che vengono eseguiti
+                connections.execute(new ServerTask(serverSocket.accept(), udp, persistenceManager, users, history, priceHistoryCache, markets));
             }
         } catch (IOException e) {
             System.err.println("[ERR] Server could not be started: " + e.getMessage());
         }
     }
 
+    /**
+     * Metodo per creare un executor che esegue ogni task su un nuovo virtual thread. I virtual thread sono disponibili
+     * da Java 21, quindi l'executor viene ottenuto per riflessione; con versioni precedenti ogni task viene eseguito
+     * su un nuovo thread di piattaforma.
+     * @return executor con un thread per task
+     */
+    private static Executor newVirtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("[ERR] Virtual threads are not available on Java " + Runtime.version().feature()
+                    + ", using a platform thread per connection.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     /**
      * Metodo per il caricamento delle impostazioni di configurazione del server
      * @param path percorso al file json di configurazione del server
@@ -86,7 +170,67 @@ public class ServerMain {
             configReader.nextName();
             usersInput = configReader.nextString();
             configReader.nextName();
-            usersOutput = configReader.nextString();
+            usersLog = configReader.nextString();
+            configReader.endObject();
+            configReader.nextName();
+            configReader.beginObject();
+            configReader.nextName();
+            RING_BUFFER_SIZE = configReader.nextInt();
+            configReader.nextName();
+            WAIT_STRATEGY = configReader.nextString();
+            configReader.nextName();
+            ORDER_STORE = configReader.nextString();
+            configReader.nextName();
+            SYMBOLS = new ArrayList<>();
+            configReader.beginArray();
+            while (configReader.hasNext()) {
+                SYMBOLS.add(configReader.nextString());
+            }
+            configReader.endArray();
+            configReader.nextName();
+            AUCTION_INTERVAL = configReader.nextInt();
+            configReader.endObject();
+            configReader.nextName();
+            configReader.beginObject();
+            configReader.nextName();
+            PERSISTENCE = configReader.nextString();
+            configReader.nextName();
+            JOURNAL_DIRECTORY = configReader.nextString();
+            configReader.nextName();
+            JOURNAL_SEGMENT_SIZE = configReader.nextLong();
+            configReader.nextName();
+            BINARY_FILE = configReader.nextString();
+            configReader.nextName();
+            DURABILITY = configReader.nextString();
+            configReader.nextName();
+            SYNC_INTERVAL = configReader.nextInt();
+            configReader.nextName();
+            HISTORY_DIRECTORY = configReader.nextString();
+            configReader.nextName();
+            HOT_TRADES = configReader.nextInt();
+            configReader.endObject();
+            configReader.nextName();
+            configReader.beginObject();
+            configReader.nextName();
+            SNAPSHOT_DIRECTORY = configReader.nextString();
+            configReader.nextName();
+            SNAPSHOT_INTERVAL = configReader.nextInt();
+            configReader.endObject();
+            configReader.nextName();
+            configReader.beginObject();
+            CANDLE_RETENTION = new LinkedHashMap<>();
+            while (configReader.hasNext()) {
+                CANDLE_RETENTION.put(configReader.nextName(), configReader.nextInt());
+            }
+            configReader.endObject();
+            configReader.nextName();
+            PRICE_HISTORY_CACHE = configReader.nextLong();
+            configReader.nextName();
+            configReader.beginObject();
+            configReader.nextName();
+            CONNECTION_MODE = configReader.nextString();
+            configReader.nextName();
+            EVENT_LOOPS = configReader.nextInt();
             configReader.endObject();
             configReader.endObject();
             configReader.endObject();
@@ -96,29 +240,3 @@ public class ServerMain {
     }
 }
 
-
-/**
- * Classe per l'ordinamento degli ask orders, ordinati per costo crescente, e a parità di costo per timestamp crescente.
- */
-class AskOrderComparator implements Comparator<Order> {
-    public int compare(Order o1, Order o2) {
-        int res = Integer.compare(o1.getPrice(), o2.getPrice());
-        if (res == 0) {
-            return o1.getDate().compareTo(o2.getDate());
-        }
-        return res;
-    }
-}
-
-/**
- * Classe per l'ordinamento degli bid orders, ordinati per costo decrescente, e a parità di costo per timestamp crescente.
- */
-class BidOrderComparator implements Comparator<Order> {
-    public int compare(Order o1, Order o2) {
-        int res = Integer.compare(o2.getPrice(), o1.getPrice());
-        if (res == 0) {
-            return o1.getDate().compareTo(o2.getDate());
-        }
-        return res;
-    }
-}
\ No newline at end of file
@@ -1,43 +1,60 @@
 import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.time.YearMonth;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
 /**
  * Classe per la gestione della comunicazione (lato server) con un client.
+ * In modalità bloccante il task legge le richieste dalla socket con run(); con il NioServer le richieste vengono
+ * lette dai thread del selettore e passate una alla volta ad handle(), e le risposte vengono scritte su un buffer.
+ * La riga dell'azione può contenere, dopo uno spazio, un id di correlazione scelto dal client (e.g. "insertLimitOrder 42"):
+ * la risposta contiene lo stesso id nel campo "id", quindi il client può inviare altre richieste senza attenderla.
+ * Con il NioServer gli ordini e le cancellazioni con id vengono solo pubblicati sul motore di matching e la risposta
+ * viene consegnata quando il motore li ha eseguiti, anche dopo le risposte di richieste successive.
  */
 public class ServerTask implements Runnable {
-    private Socket clientSocket; // socket usata per comunicare col client
+    private static final int MAX_PAGE_SIZE = 1000; // numero massimo di ordini evasi in una pagina di getTrades
+    private static final int MAX_BATCH_SIZE = 1000; // numero massimo di elementi in una richiesta insertBatch
+    private static final Set<String> ACTIONS_WITH_REQUEST = new HashSet<>(Arrays.asList("login", "register",
+            "updateCredentials", "getPriceHistory", "getCandles", "getTrades", "insertMarketOrder", "insertLimitOrder",
+            "insertStopOrder", "cancelOrder", "insertBatch")); // azioni seguite da una richiesta json
+    private static final Set<String> ORDER_ACTIONS = new HashSet<>(Arrays.asList("insertMarketOrder", "insertLimitOrder",
+            "insertStopOrder", "cancelOrder")); // azioni eseguite dal motore di matching del simbolo
+    private Socket clientSocket; // socket usata per comunicare col client (null con il NioServer)
+    private InetAddress address; // indirizzo del client, a cui inviare le notifiche UDP
+    private String remote; // indirizzo e porta del client, per i messaggi di log
     private BufferedReader reader; // stream di input della socket
     private BufferedWriter writer; // stream di output della socket
-    private ConcurrentLinkedQueue<User> users; // lista degli utenti registrati
-    private Collection<Order> issuedOrders; // lista degli ordini evasi
-    private final JsonPersistanceManager persistenceManager; // gestore della persistenza
+    private DataInputStream frames; // stream di input dei frame, dopo la negoziazione del protocollo binario (modalità bloccante)
+    private OutputStream output; // stream di output della socket, per le risposte già serializzate
+    private Consumer<byte[]> completed; // consegna delle risposte completate dopo handle() (null in modalità bloccante)
+    private CompletableFuture<Void> inFlight; // consegna delle risposte degli ordini con id ancora in esecuzione
+    private UserRegistry users; // utenti registrati, per username
+    private TradeHistory history; // storico degli ordini evasi
+    private PriceHistoryCache priceHistoryCache; // risposte di getPriceHistory già serializzate
+    private final PersistanceManager persistenceManager; // gestore della persistenza
     private User user; // utente attualmente connesso a questa istanza di ServerTask
-    private ConcurrentSkipListSet<Order> askOrders; // ordini ask attualmente in sospeso (che si possono evadere)
-    private ConcurrentSkipListSet<Order> bidOrders; // ordini bid attualmente in sospeso (che si possono evadere)
-    private ConcurrentLinkedQueue<Order> stopOrders; // stop orders attualmente in sospeso (che si possono evadere)
+    private MarketRegistry markets; // motori di matching dei simboli quotati, ognuno proprietario del proprio libro
     private ServerUDP udp; // servizio UDP di comunicazione delle notifiche
 
 
-    public ServerTask(Socket socket, ServerUDP udp, JsonPersistanceManager persistenceManager, ConcurrentLinkedQueue<User> users, Collection<Order> issuedOrders,
-                      ConcurrentSkipListSet<Order> askOrders, ConcurrentSkipListSet<Order> bidOrders, ConcurrentLinkedQueue<Order> stopOrders) {
+    public ServerTask(Socket socket, ServerUDP udp, PersistanceManager persistenceManager, UserRegistry users, TradeHistory history,
+                      PriceHistoryCache priceHistoryCache, MarketRegistry markets) {
+        this(socket.getInetAddress(), socket.getInetAddress() + ":" + socket.getPort(), udp, persistenceManager, users, history,
+                priceHistoryCache, markets);
         this.clientSocket = socket;
-        this.persistenceManager = persistenceManager;
-        System.out.println("\tServerThread " + Thread.currentThread().getId() + " [INFO] Client connected: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
-        this.users = users;
-        this.issuedOrders = issuedOrders;
-        this.user = null; // inizialmente non sappiamo quale sia l'account connesso all'utente collegato
-        this.askOrders = askOrders;
-        this.bidOrders = bidOrders;
-        this.stopOrders = stopOrders;
-        this.udp = udp;
         // ottengo gli stream di input e di output dalla socket
         try {
             this.reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
@@ -45,13 +62,64 @@ public class ServerTask implements Runnable {
             System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while opening input stream: " + e.getMessage());
         }
         try {
-            this.writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8));
+            this.output = clientSocket.getOutputStream();
+            this.writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
         } catch (IOException e) {
             System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while opening output stream: " + e.getMessage());
         }
 
     }
 
+    /**
+     * Costruttore usato dal NioServer: le richieste vengono passate ad handle() e le risposte scritte su output
+     * @param remote indirizzo del client
+     * @param output buffer su cui scrivere le risposte
+     * @param completed consegna delle risposte degli ordini con id, chiamata dal thread del motore di matching
+     */
+    public ServerTask(InetSocketAddress remote, OutputStream output, Consumer<byte[]> completed, ServerUDP udp,
+                      PersistanceManager persistenceManager, UserRegistry users, TradeHistory history,
+                      PriceHistoryCache priceHistoryCache, MarketRegistry markets) {
+        this(remote.getAddress(), remote.getAddress() + ":" + remote.getPort(), udp, persistenceManager, users, history,
+                priceHistoryCache, markets);
+        this.output = output;
+        this.completed = completed;
+        this.writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    }
+
+    private ServerTask(InetAddress address, String remote, ServerUDP udp, PersistanceManager persistenceManager, UserRegistry users,
+                       TradeHistory history, PriceHistoryCache priceHistoryCache, MarketRegistry markets) {
+        this.address = address;
+        this.remote = remote;
+        this.persistenceManager = persistenceManager;
+        System.out.println("\tServerThread " + Thread.currentThread().getId() + " [INFO] Client connected: " + remote);
+        this.users = users;
+        this.history = history;
+        this.priceHistoryCache = priceHistoryCache;
+        this.user = null; // inizialmente non sappiamo quale sia l'account connesso all'utente collegato
+        this.markets = markets;
+        this.udp = udp;
+        this.inFlight = CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Metodo per sapere se un'azione è seguita da una richiesta json
+     * @param action azione richiesta dal client
+     * @return true se dopo l'azione il client invia la richiesta json
+     */
+    public static boolean hasRequest(String action) {
+        return ACTIONS_WITH_REQUEST.contains(actionOf(action));
+    }
+
+    /**
+     * Metodo per separare l'azione dall'id di correlazione della riga
+     * @param line riga dell'azione, con o senza id (e.g. "insertLimitOrder 42")
+     * @return azione
+     */
+    public static String actionOf(String line) {
+        int space = line.indexOf(' ');
+        return (space < 0 ? line : line.substring(0, space));
+    }
+
     /**
      * Metodo eseguito in modo continuo per ottenere l'operazione che il client decide di eseguire
      */
@@ -59,6 +127,24 @@ public class ServerTask implements Runnable {
     public void run() {
         String action = "";
         do {
+            if (frames != null) {
+                // dopo la negoziazione del protocollo binario ogni richiesta è un frame
+                ByteBuffer frame = null;
+                try {
+                    frame = BinaryProtocol.readFrame(frames);
+                } catch (IOException e) {
+                    System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while reading frame: " + e.getMessage());
+                }
+                if (frame == null) {
+                    System.out.println("\tServerThread " + Thread.currentThread().getId() + " [INFO] Client disconnected unexpectedly.");
+                    exit();
+                    break;
+                }
+                if (!handleFrame(frame)) {
+                    break;
+                }
+                continue;
+            }
             // ottieni l'azione che il client ha scelto di eseguire (e.g. login, register, logout, ...)
             try {
                 action = reader.readLine();
@@ -71,29 +157,308 @@ public class ServerTask implements Runnable {
                 exit();
                 break;
             }
-            // in base all'azione, eseguiamo il metodo rispettivo
-            switch (action) {
-                case "login": login(); break;
-                case "register": register(); break;
-                case "updateCredentials": updateCredentials(); break;
-                case "logout": logout(); break;
-                case "getPriceHistory": getPriceHistory(); break;
-                case "insertMarketOrder": insertMarketOrder(); break;
-                case "insertLimitOrder": insertLimitOrder(); break;
-                case "insertStopOrder": insertStopOrder(); break;
-                case "cancelOrder": cancelOrder(); break;
-                case "exit": exit(); break;
-                default: // non dovrebbe mai andare qui
-                    System.err.println("[ERR] Error while reading action to execute.");
-                    break;
+            // ottieni la richiesta json dell'azione, se prevista
+            String request = null;
+            if (hasRequest(action)) {
+                try {
+                    request = reader.readLine();
+                } catch (IOException e) {
+                    System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while reading input stream: " + e.getMessage());
+                }
             }
-        } while (!action.equals("exit")); // ripeti fino a che l'utente non si disconnette
+            handle(action, request);
+        } while (!actionOf(action).equals("exit")); // ripeti fino a che l'utente non si disconnette
+    }
+
+    /**
+     * Metodo per eseguire un'azione del client e scriverne la risposta
+     * @param action azione richiesta (e.g. login, register, logout, ...)
+     * @param request richiesta json dell'azione, null se l'azione non la prevede
+     */
+    public void handle(String action, String request) {
+        int space = action.indexOf(' ');
+        if (space >= 0) {
+            handleCorrelated(action.substring(0, space), action.substring(space + 1), request);
+            return;
+        }
+        JsonObject query = (request == null ? null : JsonParser.parseString(request).getAsJsonObject());
+        // in base all'azione, eseguiamo il metodo rispettivo
+        switch (action) {
+            case "login": login(query); break;
+            case "register": register(query); break;
+            case "updateCredentials": updateCredentials(query); break;
+            case "logout": logout(); break;
+            case "getPriceHistory": getPriceHistory(query); break;
+            case "getCandles": getCandles(query); break;
+            case "getTrades": getTrades(query); break;
+            case "insertMarketOrder": insertMarketOrder(query); break;
+            case "insertLimitOrder": insertLimitOrder(query); break;
+            case "insertStopOrder": insertStopOrder(query); break;
+            case "cancelOrder": cancelOrder(query); break;
+            case "insertBatch": insertBatch(query); break;
+            case "exit": exit(); break;
+            case BinaryProtocol.ACTION: negotiate(); break;
+            default: // non dovrebbe mai andare qui
+                System.err.println("[ERR] Error while reading action to execute.");
+                break;
+        }
+    }
+
+    /**
+     * Metodo per eseguire una richiesta con id di correlazione: gli ordini (solo con il NioServer) vengono pubblicati
+     * sul motore senza attenderne l'esito, le altre azioni vengono eseguite subito e alla risposta viene aggiunto l'id
+     * @param action azione richiesta
+     * @param id id di correlazione scelto dal client
+     * @param request richiesta json, null se l'azione non la prevede
+     */
+    private void handleCorrelated(String action, String id, String request) {
+        long requestId;
+        try {
+            requestId = Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Invalid request id " + id + ".");
+            handle(action, request);
+            return;
+        }
+        if (completed != null && (ORDER_ACTIONS.contains(action) || action.equals("insertBatch"))) {
+            JsonObject query = JsonParser.parseString(request).getAsJsonObject();
+            CompletableFuture<Void> delivered = (action.equals("insertBatch") ? submitBatch(query) : submitOrder(action, query))
+                    .thenAccept(response -> completed.accept(withId((response.toString() + "\n").getBytes(StandardCharsets.UTF_8), requestId)))
+                    .exceptionally(e -> {
+                        // il client attende comunque una risposta con il suo id
+                        System.err.println("[ERR] Error while executing " + action + " " + requestId + ": " + e.getMessage());
+                        completed.accept(withId((failure(action).toString() + "\n").getBytes(StandardCharsets.UTF_8), requestId));
+                        return null;
+                    });
+            inFlight = (inFlight.isDone() ? delivered : CompletableFuture.allOf(inFlight, delivered));
+            return;
+        }
+        byte[] response = capture(action, request);
+        if (response.length > 0) {
+            try {
+                output.write(withId(response, requestId));
+                output.flush();
+            } catch (IOException e) {
+                System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while sending response of " + action + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Metodo per costruire la risposta ad un ordine, una cancellazione o un batch il cui comando è fallito
+     * @param action azione richiesta
+     * @return risposta json, nello stesso formato della risposta del motore
+     */
+    private static JsonObject failure(String action) {
+        JsonObject response = new JsonObject();
+        switch (action) {
+            case "cancelOrder": response.addProperty("response", "101"); break;
+            case "insertBatch": response.addProperty("response", 101); break;
+            default: response.addProperty("orderId", -1); break;
+        }
+        response.addProperty("errorMessage", "Request could not be executed.");
+        return response;
+    }
+
+    /**
+     * Metodo per aggiungere l'id di correlazione ad una risposta json già serializzata
+     * @param response riga json della risposta
+     * @param id id di correlazione
+     * @return riga json con il campo "id" in testa
+     */
+    static byte[] withId(byte[] response, long id) {
+        byte[] prefix = ("{\"id\":" + id + (response.length > 1 && response[1] == '}' ? "" : ",")).getBytes(StandardCharsets.UTF_8);
+        byte[] correlated = Arrays.copyOf(prefix, prefix.length + response.length - 1);
+        System.arraycopy(response, 1, correlated, prefix.length, response.length - 1);
+        return correlated;
+    }
+
+    /**
+     * Metodo per eseguire una richiesta del protocollo binario e scriverne il frame di risposta
+     * @param frame contenuto del frame (tipo e dati)
+     * @return false se la richiesta ha chiuso la connessione (exit)
+     */
+    public boolean handleFrame(ByteBuffer frame) {
+        byte[] response = null;
+        switch (frame.get()) {
+            case BinaryProtocol.NEW_ORDER: response = newOrder(frame).join(); break;
+            case BinaryProtocol.CANCEL: response = cancel(frame).join(); break;
+            case BinaryProtocol.CORRELATED: response = correlatedFrame(frame); break;
+            case BinaryProtocol.JSON:
+                String action = actionOf(BinaryProtocol.getString(frame)); // l'id di correlazione è nel frame CORRELATED
+                String request = BinaryProtocol.getString(frame);
+                if (action.equals("exit")) {
+                    exit();
+                    return false;
+                }
+                response = jsonFrame(action, request.isEmpty() ? null : request);
+                break;
+            default:
+                System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Unknown frame type " + frame.get(0) + ".");
+                break;
+        }
+        if (response != null) {
+            try {
+                output.write(response);
+                output.flush();
+            } catch (IOException e) {
+                System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while sending frame: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Metodo per eseguire un frame con id di correlazione: come nel protocollo testuale, ordini e cancellazioni (solo con
+     * il NioServer) vengono pubblicati sul motore senza attenderne l'esito, le altre richieste vengono eseguite subito
+     * @param frame dati del frame CORRELATED
+     * @return frame CORRELATED di risposta, null se la risposta verrà consegnata al completamento dell'ordine o se
+     * la richiesta non ha risposta
+     */
+    private byte[] correlatedFrame(ByteBuffer frame) {
+        long requestId = frame.getLong();
+        ByteBuffer inner = frame.slice();
+        CompletableFuture<byte[]> response;
+        switch (inner.get()) {
+            case BinaryProtocol.NEW_ORDER: response = newOrder(inner); break;
+            case BinaryProtocol.CANCEL: response = cancel(inner); break;
+            case BinaryProtocol.JSON:
+                String action = actionOf(BinaryProtocol.getString(inner));
+                String request = BinaryProtocol.getString(inner);
+                if (action.equals("exit") || action.equals(BinaryProtocol.ACTION)) {
+                    System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] " + action + " cannot be correlated.");
+                    return null;
+                }
+                response = CompletableFuture.completedFuture(jsonFrame(action, request.isEmpty() ? null : request));
+                break;
+            default:
+                System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Unknown frame type " + inner.get(0) + ".");
+                return null;
+        }
+        if (completed != null && !response.isDone()) {
+            CompletableFuture<Void> delivered = response.thenAccept(report -> completed.accept(BinaryProtocol.correlated(requestId, report)));
+            inFlight = (inFlight.isDone() ? delivered : CompletableFuture.allOf(inFlight, delivered));
+            return null;
+        }
+        byte[] report = response.join();
+        return (report == null ? null : BinaryProtocol.correlated(requestId, report));
+    }
+
+    /**
+     * Metodo per passare al protocollo binario: la conferma è ancora una riga json, le richieste successive sono frame.
+     * Il client deve attendere la conferma prima di inviare il primo frame.
+     */
+    public void negotiate() {
+        if (clientSocket != null) {
+            try {
+                frames = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            } catch (IOException e) {
+                System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while opening input stream: " + e.getMessage());
+            }
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("response", 100);
+        response.addProperty("errorMessage", "OK.");
+        response.addProperty("protocol", BinaryProtocol.ACTION);
+        response.addProperty("version", BinaryProtocol.VERSION);
+        try {
+            writer.write(response.toString());
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while sending response of binary: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Metodo per inserire un ordine richiesto con il protocollo binario
+     * @param frame dati del frame NEW_ORDER
+     * @return frame EXECUTION_REPORT, completato dal thread del motore (o subito se la richiesta non è valida)
+     */
+    private CompletableFuture<byte[]> newOrder(ByteBuffer frame) {
+        int orderType = frame.get();
+        int side = frame.get();
+        int size = frame.getInt();
+        int price = frame.getInt();
+        String action = BinaryProtocol.orderAction(orderType);
+        MatchingEngine engine = markets.get(symbolOf(BinaryProtocol.getString(frame)));
+        if (engine == null) {
+            return CompletableFuture.completedFuture(BinaryProtocol.executionReport(-1, BinaryProtocol.UNKNOWN_SYMBOL));
+        }
+        if (action == null || (side != OrderStore.ASK && side != OrderStore.BID)) {
+            return CompletableFuture.completedFuture(BinaryProtocol.executionReport(-1, BinaryProtocol.INVALID_ORDER));
+        }
+        return engine.submit(action, OrderStore.sideName(side), size, (orderType == OrderStore.MARKET ? 0 : price), 0, this.user)
+                // l'unico errore di un ordine eseguito è la mancata memorizzazione degli ordini evasi
+                .thenApply(result -> BinaryProtocol.executionReport(result.get("orderId").getAsInt(),
+                        result.has("errorMessage") ? BinaryProtocol.ERROR : BinaryProtocol.OK))
+                .exceptionally(e -> {
+                    System.err.println("[ERR] Error while executing order: " + e.getMessage());
+                    return BinaryProtocol.executionReport(-1, BinaryProtocol.ERROR);
+                });
+    }
+
+    /**
+     * Metodo per cancellare un ordine con il protocollo binario
+     * @param frame dati del frame CANCEL
+     * @return frame CANCEL_REPORT, completato dal thread del motore (o subito se il simbolo non è quotato)
+     */
+    private CompletableFuture<byte[]> cancel(ByteBuffer frame) {
+        int orderId = frame.getInt();
+        MatchingEngine engine = markets.get(symbolOf(BinaryProtocol.getString(frame)));
+        if (engine == null) {
+            return CompletableFuture.completedFuture(BinaryProtocol.cancelReport(BinaryProtocol.UNKNOWN_SYMBOL));
+        }
+        return engine.submit("cancelOrder", null, 0, 0, orderId, this.user)
+                .thenApply(result -> BinaryProtocol.cancelReport(result.has("response") && result.get("response").getAsString().equals("100")
+                        ? BinaryProtocol.OK : BinaryProtocol.REJECTED))
+                .exceptionally(e -> {
+                    System.err.println("[ERR] Error while cancelling order: " + e.getMessage());
+                    return BinaryProtocol.cancelReport(BinaryProtocol.ERROR);
+                });
+    }
+
+    /**
+     * Metodo per eseguire un'azione del protocollo testuale ricevuta in un frame JSON: la risposta json viene
+     * restituita in un frame JSON_RESPONSE
+     * @param action azione richiesta
+     * @param request richiesta json, null se l'azione non la prevede
+     * @return frame di risposta, null se l'azione non ha risposta
+     */
+    private byte[] jsonFrame(String action, String request) {
+        byte[] response = capture(action, request);
+        int length = response.length;
+        while (length > 0 && (response[length - 1] == '\n' || response[length - 1] == '\r')) {
+            length--; // il frame delimita già la risposta
+        }
+        return (response.length == 0 ? null : BinaryProtocol.jsonResponse(response, length));
+    }
+
+    /**
+     * Metodo per eseguire un'azione scrivendone la risposta su un buffer invece che sulla socket
+     * @param action azione richiesta
+     * @param request richiesta json, null se l'azione non la prevede
+     * @return risposta serializzata (vuota se l'azione non ha risposta)
+     */
+    private byte[] capture(String action, String request) {
+        OutputStream socketOutput = output;
+        BufferedWriter socketWriter = writer;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        output = captured;
+        writer = new BufferedWriter(new OutputStreamWriter(captured, StandardCharsets.UTF_8));
+        try {
+            handle(action, request);
+        } finally {
+            output = socketOutput;
+            writer = socketWriter;
+        }
+        return captured.toByteArray();
     }
 
     // #############################################
     // Ogni metodo è composto da 4 fasi:
-    // (0. Lettura dell'operazione da eseguire, eseguito nel metodo di run())
-    // 1. Lettura della richiesta json sullo stream di output,
+    // (0. Lettura dell'operazione da eseguire, eseguito nel metodo di run() o dal NioServer)
+    // 1. Lettura della richiesta json, passata dal metodo handle(),
     // 2. Esecuzione dell'algoritmo per determinare una risposta
     // 3. Costruzione della risposta in formato json
     // 4. Scrittura sullo stream della risposta json
@@ -101,50 +466,39 @@ public class ServerTask implements Runnable {
 
     /**
      * Metodo per la registrazione di un utente
+     * @param query richiesta del client
      */
-    public void register() {
-        String request = "";
-        try {
-            request = reader.readLine();
-        } catch (IOException e) {
-            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while reading input stream of register: " + e.getMessage());
-        }
-
-        JsonObject query = JsonParser.parseString(request).getAsJsonObject();
+    public void register(JsonObject query) {
         String username = query.get("username").getAsString();
         String password = query.get("password").getAsString();
 
         JsonObject response = new JsonObject();
         boolean usernameExists = false;
 
-        // uso un blocco synchronized sulla struttura dati users per accedervi in modo threadsafe
-        synchronized (users) {
-            for (User user : users) {
-                // lo username è già stato usato, costruisco la risposta ed esco dal loop
-                if (user.getUsername().equals(username)) {
-                    usernameExists = true;
-                    response.addProperty("response", 102);
-                    response.addProperty("errorMessage", "Username not available.");
-                    break;
-                }
-            }
-
-            // se non è stato già usato, creo l'account, che viene assegnato a this.user, e lo memorizzo in users
-            // inoltre, ottengo la porta udp dalla query e l'indirizzo dalla socket. costruisco il messaggio e lo invio
-            if (!usernameExists) {
-                this.user = new User(username, password);
-                this.user.setOnline(true);
-                this.users.add(this.user); // aggiungo l'utente nella lista degli utenti
-                response.addProperty("response", 100);
-                response.addProperty("errorMessage", "OK.");
-                this.user.setAddress(this.clientSocket.getInetAddress());
-                this.user.setPort(query.get("UDPport").getAsInt());
-            }
+        // creo l'account in modo atomico: se lo username è già stato usato, il registro non lo crea
+        User registered = users.register(username, password);
+        if (registered == null) {
+            usernameExists = true;
+            response.addProperty("response", 102);
+            response.addProperty("errorMessage", "Username not available.");
+        } else {
+            // l'account viene assegnato a this.user; ottengo la porta udp dalla query e l'indirizzo dalla socket
+            this.user = registered;
+            this.user.setAddress(this.address);
+            this.user.setPort(query.get("UDPport").getAsInt());
+            response.addProperty("response", 100);
+            response.addProperty("errorMessage", "OK.");
         }
 
-        // memorizzo in modo persistente i nuovi utenti (solo se ci sono stati cambiamenti)
+        // memorizzo in modo persistente il nuovo utente (solo se ci sono stati cambiamenti)
         if (!usernameExists) {
-            this.persistenceManager.storeUsers(this.users);
+            try {
+                this.persistenceManager.appendUsers(Collections.singletonList(this.user)).join();
+            } catch (CompletionException e) {
+                System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while storing user " + username + ": " + e.getCause());
+                response.addProperty("response", 103);
+                response.addProperty("errorMessage", "User could not be stored.");
+            }
         }
 
         try {
@@ -158,50 +512,34 @@ public class ServerTask implements Runnable {
 
     /**
      * Metodo per il login di un utente
+     * @param query richiesta del client
      */
-    public void login() {
-        String request = "";
-        try {
-            request = reader.readLine();
-        } catch (IOException e) {
-            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while reading input stream of login: " + e.getMessage());
-        }
-
-        JsonObject query = JsonParser.parseString(request).getAsJsonObject();
+    public void login(JsonObject query) {
         String username = query.get("username").getAsString();
         String password = query.get("password").getAsString();
 
         JsonObject response = new JsonObject();
-        boolean userExists = false;
-
-        // sincronizzo sulla struttura dati condivisa
-        synchronized (users) {
-            for (User user : users) {
-                // se ho trovato un account che ha username e password uguali a quelle passate...
-                if (user.getUsername().equals(username) && user.getPassword().equals(password)) {
-                    userExists = true;
-                    // se è online, quindi è usato da un altro utente, ritorno errore
-                    if (user.isOnline()) {
-                        response.addProperty("response", 102);
-                        response.addProperty("errorMessage", "User already logged in.");
-                    } else {
-                        // altrimenti associo l'utente all'account specificato e ottengo porta udp e indirizzo
-                        response.addProperty("response", 100);
-                        response.addProperty("errorMessage", "OK.");
-                        user.setOnline(true);
-                        this.user = user; // Assign the current thread's user
-                        this.user.setAddress(this.clientSocket.getInetAddress());
-                        this.user.setPort(query.get("UDPport").getAsInt());
-                    }
-                    break;
-                }
-            }
-        }
 
-        // se non ho trovato l'account, ritorno errore
-        if (!userExists) {
-            response.addProperty("response", 101);
-            response.addProperty("errorMessage", "Username/password mismatch or non-existent username.");
+        // il registro porta online l'account in modo atomico, se username e password corrispondono
+        switch (users.login(username, password)) {
+            case LOGGED_IN:
+                // associo l'utente all'account specificato e ottengo porta udp e indirizzo
+                response.addProperty("response", 100);
+                response.addProperty("errorMessage", "OK.");
+                this.user = users.get(username); // Assign the current thread's user
+                this.user.setAddress(this.address);
+                this.user.setPort(query.get("UDPport").getAsInt());
+                break;
+            case ALREADY_ONLINE:
+                // l'account è usato da un altro utente, ritorno errore
+                response.addProperty("response", 102);
+                response.addProperty("errorMessage", "User already logged in.");
+                break;
+            default:
+                // non ho trovato l'account, ritorno errore
+                response.addProperty("response", 101);
+                response.addProperty("errorMessage", "Username/password mismatch or non-existent username.");
+                break;
         }
 
         try {
@@ -215,48 +553,38 @@ public class ServerTask implements Runnable {
 
     /**
      * Metodo per la modifica delle credenziali di un account
+     * @param query richiesta del client
      */
-    public void updateCredentials() {
-        JsonObject query = new JsonObject();
-        try {
-            query = JsonParser.parseString(reader.readLine()).getAsJsonObject();
-        } catch (IOException e) {
-            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while reading input stream: " + e.getMessage());
-        }
-
+    public void updateCredentials(JsonObject query) {
         String username = query.get("username").getAsString();
         String oldPassword = query.get("old_password").getAsString();
         String newPassword = query.get("new_password").getAsString();
 
         JsonObject response = new JsonObject();
-        boolean userFound = false;
-
-        // sincronizzo sulla collezione condivisa di utenti per accederci
-        synchronized (users) {
-            for (User user : users) {
-                // se ho trovato l'account ed è online, ritorno errore, altrimenti aggiorno la password
-                if (user.getUsername().equals(username) && user.getPassword().equals(oldPassword)) {
-                    userFound = true;
-                    if (user.isOnline()) {
-                        response.addProperty("response", 104);
-                        response.addProperty("errorMessage", "User currently logged in.");
-                    } else {
-                        user.setPassword(newPassword);
-                        response.addProperty("response", 100);
-                        response.addProperty("errorMessage", "OK.");
-                    }
-                    break;
-                }
-            }
-        }
 
-        // se non ho trovato l'utente ritorno errore
-        if (!userFound) {
-            response.addProperty("response", 102);
-            response.addProperty("errorMessage", "Username/old password mismatch or non existent username.");
-        } else {
-            // altrimenti modifico la lista utenti e la memorizzo persistentemente
-            this.persistenceManager.storeUsers(this.users);
+        // se ho trovato l'account ed è online ritorno errore, altrimenti il registro aggiorna la password
+        switch (users.updatePassword(username, oldPassword, newPassword)) {
+            case UPDATED:
+                // memorizzo persistentemente la nuova password
+                try {
+                    this.persistenceManager.appendUsers(Collections.singletonList(users.get(username))).join();
+                    response.addProperty("response", 100);
+                    response.addProperty("errorMessage", "OK.");
+                } catch (CompletionException e) {
+                    System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while storing user " + username + ": " + e.getCause());
+                    response.addProperty("response", 105);
+                    response.addProperty("errorMessage", "New password could not be stored.");
+                }
+                break;
+            case ALREADY_ONLINE:
+                response.addProperty("response", 104);
+                response.addProperty("errorMessage", "User currently logged in.");
+                break;
+            default:
+                // se non ho trovato l'utente ritorno errore
+                response.addProperty("response", 102);
+                response.addProperty("errorMessage", "Username/old password mismatch or non existent username.");
+                break;
         }
 
         try {
@@ -294,99 +622,190 @@ public class ServerTask implements Runnable {
 
     /**
      * Metodo per ottenere le informazioni sui prezzi per ogni giorno del mese specificato
+     * @param query richiesta del client
      */
-    public void getPriceHistory() {
-        JsonObject query = new JsonObject();
-        try {
-            query = JsonParser.parseString(reader.readLine()).getAsJsonObject();
-        } catch (IOException e) {
-            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while reading input stream: " + e.getMessage());
-        }
-
+    public void getPriceHistory(JsonObject query) {
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("ddMMMuuuu").withZone(ZoneId.systemDefault());
         LocalDate date = LocalDate.parse("01" + query.get("month").getAsString(), formatter);
         int numberOfDays = date.lengthOfMonth();
 
+        String symbol = symbolOf(query);
+
+        // la versione del mese va letta prima degli aggregati: un ordine evaso durante il calcolo rende la risposta
+        // memorizzata già vecchia, quindi verrà ricalcolata alla prossima richiesta
+        String key = symbol + " " + YearMonth.from(date);
+        long version = history.getDailyPrices().version(symbol, YearMonth.from(date));
+        byte[] cached = priceHistoryCache.get(key, version);
+        if (cached == null) {
+            cached = (priceHistory(symbol, date, numberOfDays) + "\n").getBytes(StandardCharsets.UTF_8);
+            priceHistoryCache.put(key, version, cached);
+        }
+
+        try {
+            // il writer viene svuotato dopo ogni risposta, quindi posso scrivere direttamente sulla socket
+            output.write(cached);
+            output.flush();
+        } catch (IOException e) {
+            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while sending response of getPriceHistory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Metodo per costruire la risposta di getPriceHistory
+     * @param symbol simbolo richiesto
+     * @param date primo giorno del mese
+     * @param numberOfDays numero di giorni del mese
+     * @return risposta in formato json
+     */
+    private String priceHistory(String symbol, LocalDate date, int numberOfDays) {
         JsonObject response = new JsonObject();
         response.addProperty("response", 100);
         response.addProperty("errorMessage", "OK.");
         JsonArray daysInfo = new JsonArray();
 
-        // sincronizzo l'accesso a issuedOrders (che è condivisa)
-        synchronized (issuedOrders) {
-            // per ogni giorno del mese specificato...
-            for (int i = 1; i <= numberOfDays; i++) {
-                float min = Float.MAX_VALUE, max = Float.MIN_VALUE;
-                Order open = null, close = null;
-                // per ogni ordine evaso...
-                for (Order order : issuedOrders) {
-                    // se la data dell'ordine corrisponde alla data di cui calcolare le statistiche in questa iterazione del for...
-                    if (order.getDate().getDayOfMonth() == i
-                            && order.getDate().getMonth() == date.getMonth()
-                            && order.getDate().getYear() == date.getYear()) {
-                        int price = order.getPrice();
-                        // confronto il prezzo col massimo e il minimo e prendo, rispettivamente, il nuovo massimo e il nuovo minimo
-                        if (price < min)
-                            min = price;
-                        if (price > max)
-                            max = price;
-                        // se l'ordine è il primo trovato oppure è prima del primo ordine trovato, riassegno
-                        open = ((open == null) || (open.getDate().isAfter(order.getDate())) ? order : open);
-                        // se l'ordine è il primo trovato oppure è dopo dell'ultimo ordine trovato, riassegno
-                        close = ((close == null) || (close.getDate().isBefore(order.getDate())) ? order : close);
-                    }
-                }
-
-                JsonObject infoDay = new JsonObject();
-                // se c'è stato almeno un ordine nella giornata, inserisco i dati trovati
-                if (open != null) {
-                    infoDay.addProperty("open", open.getPrice());
-                    infoDay.addProperty("close", close.getPrice());
-                    infoDay.addProperty("min", min);
-                    infoDay.addProperty("max", max);
-                    JsonObject obj = new JsonObject();
-                    obj.add(Integer.toString(i), infoDay);
-                    daysInfo.add(obj); // aggiungo le info del giorno i-esimo all'array di info del mese
-                } else {
-                    // altrimenti, ritorno "none" per indicare che non ci sono stati valori nella giornata
-                    infoDay.addProperty("open", "none");
-                    infoDay.addProperty("close", "none");
-                    infoDay.addProperty("min", "none");
-                    infoDay.addProperty("max", "none");
-                    JsonObject obj = new JsonObject();
-                    obj.add(Integer.toString(i), infoDay);
-                    daysInfo.add(obj); // aggiungo le info dell'i-esimo giorno
-                }
+        // prezzi di ogni giorno del mese, già aggregati al momento dell'esecuzione degli ordini
+        DailyPrices.DayPrices[] days = history.getDailyPrices().get(symbol, date, numberOfDays);
+
+        // per ogni giorno del mese specificato...
+        for (int i = 1; i <= numberOfDays; i++) {
+            JsonObject infoDay = new JsonObject();
+            DailyPrices.DayPrices day = days[i - 1];
+            // se c'è stato almeno un ordine nella giornata, inserisco i dati trovati
+            if (day != null) {
+                infoDay.addProperty("open", day.open);
+                infoDay.addProperty("close", day.close);
+                infoDay.addProperty("min", (float) day.min);
+                infoDay.addProperty("max", (float) day.max);
+                infoDay.addProperty("volume", day.volume);
+            } else {
+                // altrimenti, ritorno "none" per indicare che non ci sono stati valori nella giornata
+                infoDay.addProperty("open", "none");
+                infoDay.addProperty("close", "none");
+                infoDay.addProperty("min", "none");
+                infoDay.addProperty("max", "none");
+                infoDay.addProperty("volume", "none");
             }
+            JsonObject obj = new JsonObject();
+            obj.add(Integer.toString(i), infoDay);
+            daysInfo.add(obj); // aggiungo le info del giorno i-esimo all'array di info del mese
         }
 
         response.add("info", daysInfo);
+        return response.toString();
+    }
+
+    /**
+     * Metodo per ottenere le candele di un simbolo ad una risoluzione (1m, 5m, 1h o 1d) in un intervallo di tempo
+     * @param query richiesta del client
+     */
+    public void getCandles(JsonObject query) {
+        String resolutionName = query.get("resolution").getAsString();
+        int resolution = CandleService.resolution(resolutionName);
+        // l'intervallo è in ms dall'epoch; se manca la fine, arriva fino ad ora (compresa la candela in corso)
+        long from = query.get("from").getAsLong();
+        long to = query.has("to") ? query.get("to").getAsLong() : System.currentTimeMillis() + 1;
+
+        JsonObject response = new JsonObject();
+        if (resolution < 0) {
+            response.addProperty("response", 101);
+            response.addProperty("errorMessage", "Unknown resolution " + resolutionName + ".");
+        } else {
+            response.addProperty("response", 100);
+            response.addProperty("errorMessage", "OK.");
+            JsonArray candles = new JsonArray();
+            for (CandleService.Candle candle : history.getCandles().get(symbolOf(query), resolution, from, to)) {
+                JsonObject candleInfo = new JsonObject();
+                candleInfo.addProperty("time", candle.time);
+                candleInfo.addProperty("open", candle.open);
+                candleInfo.addProperty("high", candle.high);
+                candleInfo.addProperty("low", candle.low);
+                candleInfo.addProperty("close", candle.close);
+                candleInfo.addProperty("volume", candle.volume);
+                candles.add(candleInfo);
+            }
+            response.add("candles", candles);
+        }
 
         try {
             writer.write(response.toString());
             writer.newLine();
             writer.flush();
         } catch (IOException e) {
-            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while sending response of getPriceHistory: " + e.getMessage());
+            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while sending response of getCandles: " + e.getMessage());
         }
     }
 
     /**
-     * Metodo di inserimento di un market order
+     * Metodo per ottenere, a pagine, gli ordini evasi di un simbolo in un intervallo di tempo, in ordine di istante e
+     * sequenza. Se l'intervallo contiene altri ordini, la risposta comprende il cursore da passare nella richiesta
+     * successiva per ottenere la pagina seguente.
+     * @param query richiesta del client
      */
-    public void insertMarketOrder() {
-        JsonObject query = new JsonObject();
+    public void getTrades(JsonObject query) {
+        // l'intervallo è in ms dall'epoch; se manca la fine, arriva fino ad ora
+        long from = query.get("from").getAsLong() * 1_000_000L;
+        long to = query.has("to") ? query.get("to").getAsLong() * 1_000_000L : MonotonicClock.now() + 1;
+        int limit = query.has("limit") ? Math.max(1, Math.min(query.get("limit").getAsInt(), MAX_PAGE_SIZE)) : MAX_PAGE_SIZE;
+        // il cursore è la posizione (istante e sequenza) del primo ordine della pagina richiesta
+        TradeHistory.TradePosition start = new TradeHistory.TradePosition(from, Long.MIN_VALUE);
+        if (query.has("cursor")) {
+            String[] cursor = query.get("cursor").getAsString().split(":");
+            try {
+                start = new TradeHistory.TradePosition(Long.parseLong(cursor[0]), Long.parseLong(cursor[1]));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                start = null;
+            }
+        }
+
         try {
-            query = JsonParser.parseString(reader.readLine()).getAsJsonObject();
-        } catch (IOException e) {
-            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while reading input stream: " + e.getMessage());
+            if (start == null) {
+                JsonObject response = new JsonObject();
+                response.addProperty("response", 101);
+                response.addProperty("errorMessage", "Invalid cursor.");
+                writer.write(response.toString());
+            } else {
+                // gli ordini vengono scritti sulla socket man mano che il merge dello storico li trova
+                JsonWriter trades = new JsonWriter(writer);
+                trades.beginObject();
+                trades.name("response").value(100);
+                trades.name("errorMessage").value("OK.");
+                trades.name("trades").beginArray();
+                TradeHistory.TradePosition next = history.page(symbolOf(query), start, to, limit, order -> {
+                    try {
+                        trades.beginObject();
+                        trades.name("orderId").value(order.getId());
+                        trades.name("type").value(order.getType());
+                        trades.name("orderType").value(order.getOrderType());
+                        trades.name("size").value(order.getInitialSize());
+                        trades.name("price").value(order.getPrice());
+                        trades.name("timestamp").value(order.getTimestamp());
+                        trades.name("sequence").value(order.getSequence());
+                        trades.endObject();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                trades.endArray();
+                if (next != null) {
+                    trades.name("cursor").value(next.timestamp + ":" + next.sequence);
+                }
+                trades.endObject();
+                trades.flush();
+            }
+            writer.newLine();
+            writer.flush();
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while sending response of getTrades: " + e.getMessage());
         }
+    }
 
-        query.addProperty("orderType", "market");
-        // controllo se posso eseguire il market order
-        JsonObject response = marketIssue(query);
-        // controllo se posso evadere degli stop order
-        checkStopOrders();
+    /**
+     * Metodo di inserimento di un market order
+     * @param query richiesta del client
+     */
+    public void insertMarketOrder(JsonObject query) {
+        // pubblico il comando sul motore di matching del simbolo e attendo l'esito
+        JsonObject response = submitOrder("insertMarketOrder", query).join();
 
         try {
             writer.write(response.toString());
@@ -399,51 +818,10 @@ public class ServerTask implements Runnable {
 
     /**
      * Metodo di inserimento di uno stop order
+     * @param query richiesta del client
      */
-    public void insertStopOrder() {
-        JsonObject query = new JsonObject();
-        try {
-            query = JsonParser.parseString(reader.readLine()).getAsJsonObject();
-        } catch (IOException e) {
-            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while reading input stream: " + e.getMessage());
-        }
-        JsonObject response = new JsonObject();
-        query.addProperty("orderType", "stop");
-        if (query.get("type").getAsString().equals("ask")) {
-            boolean stopCondition = false;
-            // verifico se posso eseguire lo stop order inserito
-            synchronized (this.bidOrders) {
-                if (!this.bidOrders.isEmpty())
-                    stopCondition = this.bidOrders.first().getPrice() <= query.get("price").getAsInt();
-            }
-            if (stopCondition) {
-                // se posso, lo tratto come market issue
-                response = marketIssue(query);
-            } else {
-                synchronized (this.stopOrders) {
-                    // altrimenti lo inserisco negli stop orders in coda
-                    stopOrders.add(new Order(query.get("type").getAsString(), "stop", query.get("size").getAsInt(), query.get("price").getAsInt(), this.user));
-                }
-                response.addProperty("orderId", -2);
-            }
-        } else if (query.get("type").getAsString().equals("bid")) {
-            // altrimenti, se è un bid, controllo negli ask orders se posso eseguirlo
-            boolean stopCondition = false;
-            synchronized (this.askOrders) {
-                 if (!this.askOrders.isEmpty())
-                    stopCondition = this.askOrders.first().getPrice() >= query.get("price").getAsInt();
-            }
-            // se posso eseguirlo, lo tratto come un market order
-            if (stopCondition) {
-                response = marketIssue(query);
-            } else {
-                // altrimenti lo inserisco nella coda degli stop order in attesa di evasione
-                synchronized (this.stopOrders) {
-                    stopOrders.add(new Order(query.get("type").getAsString(), "stop", query.get("size").getAsInt(), query.get("price").getAsInt(), this.user));
-                }
-                response.addProperty("orderId", -2);
-            }
-        }
+    public void insertStopOrder(JsonObject query) {
+        JsonObject response = submitOrder("insertStopOrder", query).join();
 
         try {
             writer.write(response.toString());
@@ -456,87 +834,10 @@ public class ServerTask implements Runnable {
 
     /**
      * Metodo di inserimento di un limit order
+     * @param query richiesta del client
      */
-    public void insertLimitOrder() {
-        JsonObject query = new JsonObject();
-        try {
-            query = JsonParser.parseString(reader.readLine()).getAsJsonObject();
-        } catch (IOException e) {
-            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while reading input stream: " + e.getMessage());
-        }
-
-        String type = query.get("type").getAsString();
-        int size = query.get("size").getAsInt();
-        int price = query.get("price").getAsInt();
-        int sizeCopy = size;
-        JsonObject response = new JsonObject();
-
-        // creo una lista di ordini modificati per memorizzare gli ordini della searchListSet che posso evadere
-        // nell'evasione del limit order passato
-        ArrayList<Order> changedOrders = new ArrayList<>();
-        // lista di ordini in cui devo andare a cercare per evadere l'ordine
-        ConcurrentSkipListSet<Order> searchListSet = (type.equals("ask") ? bidOrders : askOrders);
-        // lista di ordini in cui devo inserire il limit order se non posso evaderlo
-        ConcurrentSkipListSet<Order> insertListSet = (type.equals("ask") ? askOrders : bidOrders);
-        // lista di pezzi in cui il limit order viene diviso se posso evaderlo
-        ArrayList<Order> limitPieces = new ArrayList<>();
-
-        // sincronizzo sulla lista di ricerca (controllo se posso evadere l'ordine prima di inserirlo)
-        synchronized (searchListSet) {
-            Iterator<Order> iterator = searchListSet.iterator();
-            // finché ci sono ordini nella search list e la dimensione del limit order è > 0
-            while (iterator.hasNext() && size > 0) {
-                Order order = iterator.next();
-                // se l'ordine che sto analizzando ora nella search list è candidato per far evadere il limit order da creare...
-                if ((type.equals("ask") && order.getPrice() >= price) ||
-                        (type.equals("bid") && order.getPrice() <= price)) {
-                    // aggiorno la dimensione del limit order da evadere
-                    int min = Math.min(size, order.getSize());
-                    size -= min;
-                    // aggiungo l'ordine della search list a quelli che potenzialmente uso per far evadere il limit order
-                    changedOrders.add(order);
-                }
-            }
-            // se sono riuscito a evadere il limit order...
-            if (size == 0) {
-                synchronized (searchListSet) {
-                    // aggiorno gli ordini della lista di ordini usati per evadere il limit order
-                    for (Order changedOrder: changedOrders) {
-                        int min = Math.min(sizeCopy, changedOrder.getSize());
-                        sizeCopy -= min;
-                        // inserisco i pezzi di limit order evasi
-                        limitPieces.add(new Order(type, "limit", min, changedOrder.getPrice(), this.user));
-                        changedOrder.setSize(changedOrder.getSize() - min);
-                        // se la dimensione dell'ordine analizzato è 0, lo rimuovo dalla lista degli ordini di ricerca (perché è evaso)
-                        if (changedOrder.getSize() == 0) {
-                            searchListSet.remove(changedOrder);
-                        }
-                    }
-                    // se l'ultimo ordine non ha dimensione 0, lo aggiorno senza rimuoverlo dalla search list e senza aggiungerlo agli ordini evasi
-                    if (changedOrders.get(changedOrders.size()-1).getSize() > 0) {
-                        changedOrders.remove(changedOrders.size()-1);
-                    }
-                }
-                response.addProperty("orderId", limitPieces.get(limitPieces.size()-1).getId());
-                changedOrders.addAll(limitPieces); // aggiungo i pezzi del limit order evasi a tutti gli ordini modificati
-                synchronized (issuedOrders) {
-                    issuedOrders.addAll(changedOrders);
-                }
-                // invio le notifiche degli ordini modificati
-                sendIssuedOrdersNotification(changedOrders);
-                // aggiorno la persistenza
-                persistenceManager.storeIssuedOrders(issuedOrders);
-            } else if (!iterator.hasNext()) {
-                // se invece non posso evadere l'ordine, lo inserisco normalmente nella lista di inserimento
-                Order order = new Order(type, "limit", sizeCopy, price, this.user);
-                synchronized (insertListSet) {
-                    insertListSet.add(order);
-                }
-                response.addProperty("orderId", order.getId());
-            }
-        }
-
-        checkStopOrders(); // controllo se, con l'aggiornamento degli ordini, posso eseguire qualche stop order
+    public void insertLimitOrder(JsonObject query) {
+        JsonObject response = submitOrder("insertLimitOrder", query).join();
 
         try {
             writer.write(response.toString());
@@ -549,51 +850,10 @@ public class ServerTask implements Runnable {
 
     /**
      * Metodo di cancellazione di un ordine
+     * @param query richiesta del client
      */
-    public void cancelOrder() {
-        JsonObject query = new JsonObject();
-        try {
-            query = JsonParser.parseString(reader.readLine()).getAsJsonObject();
-        } catch (IOException e) {
-            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while reading input stream: " + e.getMessage());
-        }
-        int orderId = query.get("orderId").getAsInt();
-        boolean found = false;
-        Order order = null;
-
-        synchronized (askOrders) {
-            for (Order o: askOrders) {
-                if (o.getId() == orderId && o.getOwner().getUsername().equals(this.user.getUsername())) {
-                    order = o;
-                    found = true;
-                }
-            }
-            if (found) {
-                askOrders.remove(order);
-            }
-        }
-        if (!found) {
-            synchronized (bidOrders) {
-                for (Order o: bidOrders) {
-                    if (o.getId() == orderId && o.getOwner().getUsername().equals(this.user.getUsername())) {
-                        order = o;
-                        found = true;
-                    }
-                }
-                if (found) {
-                    bidOrders.remove(order);
-                }
-            }
-        }
-
-        JsonObject response = new JsonObject();
-        if (found) {
-            response.addProperty("response", "100");
-            response.addProperty("errorMessage", "OK.");
-        } else {
-            response.addProperty("response", "101");
-            response.addProperty("errorMessage", "Order does not exist or belongs to different user or has already been finalized.");
-        }
+    public void cancelOrder(JsonObject query) {
+        JsonObject response = submitOrder("cancelOrder", query).join();
 
         try {
             writer.write(response.toString());
@@ -605,140 +865,152 @@ public class ServerTask implements Runnable {
     }
 
     /**
-     * Metodo per chiudere la connessione TCP col client
+     * Metodo per la gestione dell'inserimento di più ordini e cancellazioni sullo stesso simbolo con una sola
+     * richiesta ({"orders": [{"action": "insertLimitOrder", "type": ..., "size": ..., "price": ...},
+     * {"action": "cancelOrder", "orderId": ...}, ...]}): il motore li esegue in un unico comando e la risposta
+     * contiene in "results" l'esito di ogni elemento, nello stesso formato delle azioni singole
+     * @param query richiesta del client
      */
-    public void exit() {
-        this.user.setOnline(false); // cambio lo stato dell'account a offline
-        // chiudo la socket e gli stream relativi
+    public void insertBatch(JsonObject query) {
+        JsonObject response = submitBatch(query).join();
+
         try {
-            if (reader != null) {
-                reader.close();
-            }
-            if (writer != null) {
-                writer.close();
-            }
-            if (clientSocket != null && !clientSocket.isClosed()) {
-                clientSocket.close();
-            }
-            // invio la notifica di uscita al client
-            this.udp.sendExitNotification(this.user);
-            System.out.println("\tServerThread " + Thread.currentThread().getId() + " [INFO] Client disconnected: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
+            writer.write(response.toString());
+            writer.newLine();
+            writer.flush();
         } catch (IOException e) {
-            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while closing connection: " + e.getMessage());
+            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while sending response of insertBatch: " + e.getMessage());
         }
     }
 
     /**
-     * Metodo per controllare si possono far evadere degli stop order in coda
-     */
-    private void checkStopOrders() {
-        // sincronizzo sugli stop order
-        synchronized (stopOrders) {
-            Iterator<Order> iterator = this.stopOrders.iterator();
-            Order stopOrder;
-            while (iterator.hasNext()) {
-                stopOrder = iterator.next();
-                // prendo gli ordini in cui devo andare a cercare per controllare se posso evadere lo stop order
-                // che sto attualmente analizzando
-                ConcurrentSkipListSet<Order> orders = (stopOrder.getType().equals("ask") ? bidOrders : askOrders);
-                synchronized (orders) { // sincronizzo su tali ordini
-                    // se posso evadere lo stop order (perché vale la condizione espressa riguardo lo stop order)
-                    if ((stopOrder.getType().equals("ask") && !this.bidOrders.isEmpty() && this.bidOrders.first().getPrice() <= stopOrder.getPrice())
-                            || (stopOrder.getType().equals("bid") && !this.askOrders.isEmpty() && this.askOrders.first().getPrice() >= stopOrder.getPrice())) {
-                        JsonObject order = new JsonObject();
-                        order.addProperty("type", stopOrder.getType());
-                        order.addProperty("orderType", "stop");
-                        order.addProperty("size", stopOrder.getSize());
-
-                        // evado lo stop order come se fosse un market order
-                        JsonObject response = marketIssue(order);
-                        // se sono riuscito a evaderlo, lo rimuovo dalla lista di stop orders
-                        if (response.get("orderId").getAsInt() != -1) {
-                            iterator.remove();
-                        }
-                    }
-                }
+     * Metodo per ottenere il simbolo indicato nella richiesta
+     * @param query richiesta del client
+     * @return simbolo richiesto, quello predefinito se la richiesta non lo specifica
+     */
+    private String symbolOf(JsonObject query) {
+        return query.has("symbol") ? query.get("symbol").getAsString() : MarketRegistry.DEFAULT_SYMBOL;
+    }
+
+    private String symbolOf(String symbol) {
+        return symbol.isEmpty() ? MarketRegistry.DEFAULT_SYMBOL : symbol;
+    }
+
+    /**
+     * Metodo per ottenere il motore di matching a cui instradare la richiesta
+     * @param query richiesta del client
+     * @return motore del simbolo richiesto, null se il simbolo non è quotato
+     */
+    private MatchingEngine engineOf(JsonObject query) {
+        return markets.get(symbolOf(query));
+    }
+
+    /**
+     * Metodo per pubblicare un batch di ordini e cancellazioni sul motore di matching del simbolo richiesto
+     * @param query richiesta json di insertBatch
+     * @return esito del batch, completato dal thread del motore (o subito se la richiesta non è valida)
+     */
+    private CompletableFuture<JsonObject> submitBatch(JsonObject query) {
+        MatchingEngine engine = engineOf(query);
+        if (engine == null) {
+            return CompletableFuture.completedFuture(unknownSymbol(query, "response", new JsonPrimitive(101)));
+        }
+        JsonArray orders = query.getAsJsonArray("orders");
+        if (orders.size() > MAX_BATCH_SIZE) {
+            return CompletableFuture.completedFuture(batchError("Batch larger than " + MAX_BATCH_SIZE + " orders."));
+        }
+        ArrayList<EngineCommand> items = new ArrayList<>(orders.size());
+        for (JsonElement element : orders) {
+            JsonObject order = element.getAsJsonObject();
+            String action = order.get("action").getAsString();
+            EngineCommand item = new EngineCommand();
+            switch (action) {
+                case "cancelOrder":
+                    item.set(action, OrderStore.BID, 0, 0, order.get("orderId").getAsInt(), this.user, null);
+                    break;
+                case "insertMarketOrder":
+                    item.set(action, OrderStore.side(order.get("type").getAsString()), order.get("size").getAsInt(), 0, 0, this.user, null);
+                    break;
+                case "insertLimitOrder":
+                case "insertStopOrder":
+                    item.set(action, OrderStore.side(order.get("type").getAsString()), order.get("size").getAsInt(),
+                            order.get("price").getAsInt(), 0, this.user, null);
+                    break;
+                default:
+                    return CompletableFuture.completedFuture(batchError("Unknown batch action " + action + "."));
             }
+            items.add(item);
         }
+        return engine.submitBatch(items, this.user);
     }
 
+    private JsonObject batchError(String message) {
+        JsonObject response = new JsonObject();
+        response.addProperty("response", 101);
+        response.addProperty("errorMessage", message);
+        return response;
+    }
 
     /**
-     * Metodo per evadere un market order (/stop order con condizione di esecuzione)
-     * @param order ordine da far evadere
-     * @return risposta json da inviare
+     * Metodo per pubblicare un ordine o una cancellazione sul motore di matching del simbolo richiesto
+     * @param action insertMarketOrder, insertLimitOrder, insertStopOrder o cancelOrder
+     * @param query richiesta json dell'azione
+     * @return esito del comando, completato dal thread del motore
      */
-    private JsonObject marketIssue(JsonObject order) {
-        String type = order.get("type").getAsString();
-        int size = order.get("size").getAsInt();
-        String orderType = order.get("orderType").getAsString();
-        int sizeCopy = size;
-        JsonObject response = new JsonObject();
-        // prendo la lista di ordini da controllare in base al tipo del market order eseguito
-        ConcurrentSkipListSet<Order> orderList = (type.equals("ask") ? this.bidOrders : this.askOrders);
-
-        // lista degli ordini modificati
-        List<Order> changedOrders = new ArrayList<>();
-        // lista di pezzi in cui il market order viene diviso se posso evaderlo
-        ArrayList<Order> marketPieces = new ArrayList<>();
-
-        // sincronizzo sulla lista di ordini da controllare
-        synchronized (orderList) {
-            Iterator<Order> iterator = orderList.iterator();
-            // finché ci sono ordini nella search list e la dimensione del market order è > 0
-            while (iterator.hasNext() && size > 0) {
-                Order o = iterator.next();
-                // aggiorno la dimensione del market order da evadere
-                int min = Math.min(size, o.getSize());
-                size -= min;
-                // aggiungo l'ordine della search list a quelli che potenzialmente uso per far evadere il market order
-                changedOrders.add(o);
-            }
-            // se sono riuscito a evadere il market order...
-            if (size == 0) {
-                // aggiorno gli ordini della lista di ordini usati per evadere il market order
-                for (Order changedOrder: changedOrders) {
-                    int min = Math.min(sizeCopy, changedOrder.getSize());
-                    sizeCopy -= min;
-                    // inserisco i pezzi di market order evasi
-                    marketPieces.add(new Order(type, orderType, min, changedOrder.getPrice(), this.user));
-                    changedOrder.setSize(changedOrder.getSize() - min);
-                    // se la dimensione dell'ordine analizzato è 0, lo rimuovo dalla lista degli ordini di ricerca (perché è evaso)
-                    if (changedOrder.getSize() == 0) {
-                        orderList.remove(changedOrder);
-                    }
-                }
-                // se l'ultimo ordine non ha dimensione 0, lo aggiorno senza rimuoverlo dalla search list e senza aggiungerlo agli ordini evasi
-                if (changedOrders.get(changedOrders.size()-1).getSize() > 0) {
-                    changedOrders.remove(changedOrders.size()-1);
-                }
-                response.addProperty("orderId", marketPieces.get(marketPieces.size()-1).getId());
-                changedOrders.addAll(marketPieces); // aggiungo i pezzi del market order evasi a tutti gli ordini modificati
-                synchronized (issuedOrders) {
-                    issuedOrders.addAll(changedOrders);
-                }
-                // invio le notifiche degli ordini modificati
-                sendIssuedOrdersNotification(changedOrders);
-                // aggiorno la persistenza
-                persistenceManager.storeIssuedOrders(issuedOrders);
-            } else if (!iterator.hasNext()) {
-                // se invece non posso evadere il market order, ritorno errore
-                response.addProperty("orderId", -1);
-            }
+    private CompletableFuture<JsonObject> submitOrder(String action, JsonObject query) {
+        MatchingEngine engine = engineOf(query);
+        if (engine == null) {
+            return CompletableFuture.completedFuture(action.equals("cancelOrder") ? unknownSymbol(query, "response", new JsonPrimitive("101"))
+                    : unknownSymbol(query, "orderId", new JsonPrimitive(-1)));
+        }
+        switch (action) {
+            case "cancelOrder": return engine.submit(action, null, 0, 0, query.get("orderId").getAsInt(), this.user);
+            case "insertMarketOrder": return engine.submit(action, query.get("type").getAsString(), query.get("size").getAsInt(), 0, 0, this.user);
+            default: return engine.submit(action, query.get("type").getAsString(), query.get("size").getAsInt(),
+                    query.get("price").getAsInt(), 0, this.user);
         }
+    }
 
+    /**
+     * Metodo per costruire la risposta di errore per una richiesta su un simbolo non quotato
+     * @param query richiesta del client
+     * @param field campo della risposta che contiene l'esito (orderId o response)
+     * @param code codice di errore, nello stesso formato della risposta del motore
+     * @return risposta json
+     */
+    private JsonObject unknownSymbol(JsonObject query, String field, JsonPrimitive code) {
+        JsonObject response = new JsonObject();
+        response.add(field, code);
+        response.addProperty("errorMessage", "Unknown symbol " + symbolOf(query) + ".");
         return response;
     }
 
     /**
-     * Metodo stub per l'invio delle notifiche UDP di evasione degli ordini, gestendo le eccezioni
-     * @param orders ordini evasi
+     * Metodo per chiudere la connessione TCP col client
      */
-    private void sendIssuedOrdersNotification(Collection<Order> orders) {
+    public void exit() {
+        inFlight.join(); // le risposte degli ordini ancora in esecuzione vengono consegnate prima della chiusura
+        if (this.user != null) {
+            this.user.setOnline(false); // cambio lo stato dell'account a offline
+        }
+        // chiudo la socket e gli stream relativi (con il NioServer la connessione viene chiusa dal selettore)
         try {
-            this.udp.sendIssuedOrdersNotification(orders); // invio di notifiche dal server UDP
+            if (reader != null) {
+                reader.close();
+            }
+            if (writer != null) {
+                writer.close();
+            }
+            if (clientSocket != null && !clientSocket.isClosed()) {
+                clientSocket.close();
+            }
+            // invio la notifica di uscita al client
+            if (this.user != null) {
+                this.udp.sendExitNotification(this.user);
+            }
+            System.out.println("\tServerThread " + Thread.currentThread().getId() + " [INFO] Client disconnected: " + remote);
         } catch (IOException e) {
-            System.err.println("UDP Server [ERR] Error while closing connection: " + e.getMessage());
+            System.err.println("ServerThread " + Thread.currentThread().getId() + " [ERR] Error while closing connection: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -4,20 +4,22 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
-import java.time.ZoneId;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Classe per l'invio dei messaggi UDP lato server.
  */
 public class ServerUDP {
     private DatagramSocket datagramSocket; // socket UDP usata per inviare i datagrammi
+    private final ReentrantLock lock; // lock degli invii sulla socket UDP
 
     public ServerUDP(int port) throws SocketException {
         this.datagramSocket = new DatagramSocket(port); // creo la socket sulla porta specificata
+        this.lock = new ReentrantLock();
     }
 
     /**
@@ -25,7 +27,7 @@ public class ServerUDP {
      * @param orders ordini evasi da notificare
      * @throws IOException
      */
-    public synchronized void sendIssuedOrdersNotification(Collection<Order> orders) throws IOException {
+    public void sendIssuedOrdersNotification(Collection<Order> orders) throws IOException {
         Iterator<Order> iterator = orders.iterator();
         Order order;
         JsonObject notification = new JsonObject();
@@ -41,14 +43,23 @@ public class ServerUDP {
             trade.addProperty("orderType", order.getOrderType());
             trade.addProperty("size", order.getInitialSize());
             trade.addProperty("price", order.getPrice());
-            trade.addProperty("timestamp", order.getDate().atZone(ZoneId.systemDefault()).toInstant().getEpochSecond());
+            trade.addProperty("timestamp", MonotonicClock.toEpochSecond(order.getTimestamp()));
+            trade.addProperty("symbol", order.getSymbol());
             trades.add(trade); // aggiungo l'oggetto json alla lista di trades da notificare
         }
         notification.add("trades", trades);
         byte[] buffer = notification.toString().getBytes();
         // per ogni utente da notificare, invio il datagramma UDP a tale utente sulla sua porta UDP di ascolto
-        for (User user : users) {
-            this.datagramSocket.send(new DatagramPacket(buffer, buffer.length, user.getAddress(), user.getPort()));
+        lock.lock();
+        try {
+            for (User user : users) {
+                if (user.getAddress() == null) {
+                    continue; // utente mai collegato dall'avvio (ordine ripristinato da uno snapshot): nessuno da notificare
+                }
+                this.datagramSocket.send(new DatagramPacket(buffer, buffer.length, user.getAddress(), user.getPort()));
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -57,10 +68,15 @@ public class ServerUDP {
      * @param user utente disconnesso
      * @throws IOException
      */
-    public synchronized void sendExitNotification(User user) throws IOException {
+    public void sendExitNotification(User user) throws IOException {
         byte[] buffer = "EXIT".getBytes();
         // invio il messaggio "EXIT" all'utente che si è disconnesso sulla porta sulla quale rimane in ascolto
-        this.datagramSocket.send(new DatagramPacket(buffer, buffer.length, user.getAddress(), user.getPort()));
+        lock.lock();
+        try {
+            this.datagramSocket.send(new DatagramPacket(buffer, buffer.length, user.getAddress(), user.getPort()));
+        } finally {
+            lock.unlock();
+        }
     }
 
 }
@@ -0,0 +1,171 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Classe per la gestione degli snapshot dello stato del server: libri e stop order di ogni simbolo, contatore degli
+ * id degli ordini, orologio e utenti registrati.
+ * Periodicamente ogni motore serializza il proprio stato dal proprio thread (senza fermare gli altri motori) e
+ * lo snapshot viene scritto in un unico file binario, sostituito in modo atomico; i segmenti del journal del libro
+ * coperti dallo snapshot vengono poi eliminati. Al riavvio viene caricato l'ultimo snapshot e vengono riapplicate
+ * solo le modifiche del libro registrate dopo di esso, quindi il tempo di ripristino del libro dipende da quanto è
+ * recente lo snapshot e non dal numero di ordini eseguiti.
+ * Formato del file: MAGIC, versione, istante e sequenza dell'orologio, prossimo id degli ordini, utenti (username e
+ * password), stato di ogni motore (simbolo, lunghezza e contenuto) e, in fondo, il CRC32 di tutto il resto.
+ */
+public class SnapshotManager {
+    private static final int MAGIC = 0x43524f53; // "CROS"
+    private static final int VERSION = 1; // versione del formato del file
+    private static final String FILE_NAME = "snapshot.bin"; // nome del file dello snapshot
+
+    private final Path directory; // cartella che contiene snapshot e journal dei libri
+    private final int interval; // intervallo (in ms) tra due snapshot
+    private final MarketRegistry markets; // motori di cui salvare lo stato
+    private final UserRegistry users; // utenti registrati (condivisi con i ServerTask)
+    private final PersistanceManager persistenceManager; // gestore della persistenza degli utenti
+
+    public SnapshotManager(String directory, int interval, MarketRegistry markets, UserRegistry users, PersistanceManager persistenceManager) {
+        this.directory = Paths.get(directory);
+        this.interval = interval;
+        this.markets = markets;
+        this.users = users;
+        this.persistenceManager = persistenceManager;
+    }
+
+    /**
+     * Metodo per ripristinare lo stato dei motori: carica l'ultimo snapshot (se presente e integro) e riapplica la
+     * coda del journal del libro di ogni simbolo. Va chiamato prima di avviare i motori.
+     */
+    public void recover() {
+        Map<String, User> usersByName = users.asMap();
+        Path file = directory.resolve(FILE_NAME);
+        if (Files.exists(file)) {
+            try {
+                load(Files.readAllBytes(file), usersByName);
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while loading snapshot " + file + ": " + e.getMessage());
+            }
+        }
+        for (String symbol : markets.getSymbols()) {
+            try {
+                int events = markets.get(symbol).replayBookLog(usersByName);
+                System.out.println("[INFO] Replayed " + events + " book events for " + symbol + ".");
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while replaying the book journal of " + symbol + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Metodo per avviare il timer degli snapshot periodici
+     */
+    public void start() {
+        ScheduledExecutorService snapshotTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread timerThread = new Thread(runnable, "SnapshotTimer");
+            timerThread.setDaemon(true);
+            return timerThread;
+        });
+        snapshotTimer.scheduleWithFixedDelay(this::takeSnapshot, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Metodo per creare uno snapshot: raccoglie lo stato di ogni motore, lo scrive su un file temporaneo che poi
+     * sostituisce in modo atomico lo snapshot precedente, ed elimina i segmenti del journal dei libri ormai coperti
+     */
+    public void takeSnapshot() {
+        Map<String, CompletableFuture<byte[]>> states = new LinkedHashMap<>();
+        for (String symbol : markets.getSymbols()) {
+            states.put(symbol, markets.get(symbol).snapshot());
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(MonotonicClock.now());
+            out.writeLong(MonotonicClock.nextSequence());
+            out.writeInt(Order.nextId.get());
+            List<User> registered = new ArrayList<>(users.values());
+            out.writeInt(registered.size());
+            for (User user : registered) {
+                out.writeUTF(user.getUsername());
+                out.writeUTF(user.getPassword());
+            }
+            Map<String, Integer> segments = new HashMap<>();
+            out.writeInt(states.size());
+            for (Map.Entry<String, CompletableFuture<byte[]>> entry : states.entrySet()) {
+                byte[] state = entry.getValue().get();
+                segments.put(entry.getKey(), new DataInputStream(new ByteArrayInputStream(state)).readInt());
+                out.writeUTF(entry.getKey());
+                out.writeInt(state.length);
+                out.write(state);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+
+            Files.createDirectories(directory);
+            Path temporary = directory.resolve(FILE_NAME + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+                bytes.writeTo(file);
+                file.getFD().sync(); // lo snapshot deve essere su disco prima di eliminare i segmenti che sostituisce
+            }
+            Files.move(temporary, directory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (Map.Entry<String, Integer> entry : segments.entrySet()) {
+                markets.get(entry.getKey()).deleteBookLogBefore(entry.getValue());
+            }
+        } catch (IOException | ExecutionException e) {
+            System.err.println("[ERR] Error while taking snapshot: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.err.println("[ERR] Interrupted while taking snapshot: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Metodo per caricare uno snapshot: ripristina orologio, contatore degli id, utenti mancanti e libri
+     * @param content contenuto del file dello snapshot
+     * @param usersByName utenti registrati per username
+     */
+    private void load(byte[] content, Map<String, User> usersByName) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, Math.max(0, content.length - 8));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        if (content.length < 8 || in.readInt() != MAGIC || in.readInt() != VERSION
+                || new DataInputStream(new ByteArrayInputStream(content, content.length - 8, 8)).readLong() != crc.getValue()) {
+            throw new IOException("invalid or corrupted snapshot");
+        }
+        MonotonicClock.advanceTo(in.readLong(), in.readLong());
+        Order.nextId.accumulateAndGet(in.readInt(), Math::max);
+        int userCount = in.readInt();
+        boolean newUsers = false;
+        for (int i = 0; i < userCount; i++) {
+            String username = in.readUTF();
+            String password = in.readUTF();
+            if (!usersByName.containsKey(username)) {
+                // il file degli utenti è più vecchio dello snapshot: recupero l'utente
+                users.add(new User(username, password));
+                newUsers = true;
+            }
+        }
+        if (newUsers) {
+            persistenceManager.storeUsers(users.values());
+        }
+        int engineCount = in.readInt();
+        for (int i = 0; i < engineCount; i++) {
+            String symbol = in.readUTF();
+            byte[] state = new byte[in.readInt()];
+            in.readFully(state);
+            MatchingEngine engine = markets.get(symbol);
+            if (engine == null) {
+                System.err.println("[ERR] Discarding snapshot of " + symbol + ": symbol is not listed.");
+                continue;
+            }
+            engine.restore(new DataInputStream(new ByteArrayInputStream(state)), usersByName);
+        }
+        System.out.println("[INFO] Loaded snapshot with " + userCount + " users and " + engineCount + " books.");
+    }
+}
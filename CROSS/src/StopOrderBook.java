@@ -0,0 +1,109 @@
+import java.util.function.IntPredicate;
+
+/**
+ * Classe che mantiene gli stop order di un lato (ask o bid) ordinati per prezzo di attivazione.
+ * Gli stop ask (vendita) si attivano quando il miglior bid scende fino al loro prezzo, quindi sono ordinati per prezzo
+ * decrescente; gli stop bid (acquisto) si attivano quando il miglior ask sale fino al loro prezzo, quindi sono ordinati
+ * per prezzo crescente. In questo modo gli stop attivati sono sempre un prefisso della struttura e il controllo
+ * si ferma al primo prezzo non raggiunto. A parità di prezzo gli stop sono in ordine di arrivo.
+ * La classe non è thread-safe: è usata solo dal thread del MatchingEngine.
+ */
+public class StopOrderBook {
+    private final boolean ask; // true se contiene stop ask orders, false se contiene stop bid orders
+    private final OrderStore store; // store che contiene gli stop order
+    private final OrderBookSide stops; // stop order per prezzo di attivazione, dal primo ad attivarsi
+    private int size; // numero di stop order in attesa
+
+    public StopOrderBook(boolean ask, OrderStore store) {
+        this.ask = ask;
+        this.store = store;
+        // il primo stop ask ad attivarsi è quello col prezzo più alto (come il miglior bid), il primo stop bid quello
+        // col prezzo più basso (come il miglior ask): riuso quindi l'ordinamento per livelli del lato opposto
+        this.stops = new OrderBookSide(!ask, store);
+        this.size = 0;
+    }
+
+    /**
+     * Metodo per inserire uno stop order in attesa di attivazione
+     * @param slot slot dello stop order da inserire
+     */
+    public void add(int slot) {
+        stops.add(slot);
+        size++;
+    }
+
+    /**
+     * Metodo per rimuovere uno stop order in attesa (usato nel ripristino del libro)
+     * @param slot slot dello stop order da rimuovere
+     */
+    public void remove(int slot) {
+        stops.remove(slot);
+        size--;
+    }
+
+    /**
+     * Metodo per verificare se uno stop order con il prezzo dato è attivato dal miglior prezzo del lato opposto
+     * @param stopPrice prezzo di attivazione dello stop order
+     * @param bestPrice miglior prezzo del lato opposto del libro (bid per gli stop ask, ask per gli stop bid)
+     * @return true se la condizione di stop è verificata
+     */
+    public boolean isTriggered(int stopPrice, int bestPrice) {
+        return ask ? bestPrice <= stopPrice : bestPrice >= stopPrice;
+    }
+
+    /**
+     * Metodo per eseguire gli stop order attivati dal miglior prezzo attuale del lato opposto.
+     * Visita solo i prezzi di attivazione raggiunti, ricontrollando la condizione dopo ogni esecuzione (che sposta
+     * il miglior prezzo): il costo dipende dagli stop attivati, non da quelli in attesa.
+     * Gli slot degli stop order evasi vengono liberati.
+     * @param opposite lato opposto del libro (bid per gli stop ask, ask per gli stop bid)
+     * @param execute funzione che evade lo stop order nello slot dato e ritorna true se è stato evaso
+     */
+    public void trigger(OrderBookSide opposite, IntPredicate execute) {
+        int rank = 0;
+        while (rank < stops.getLevelCount() && !opposite.isEmpty()) {
+            PriceLevel level = stops.getLevel(rank);
+            // i prezzi successivi si attivano ancora più tardi, quindi mi fermo al primo non raggiunto
+            if (!isTriggered(level.getPrice(), opposite.getBestPrice())) {
+                break;
+            }
+            int slot = level.getHead();
+            while (slot != OrderStore.NIL && !opposite.isEmpty() && isTriggered(level.getPrice(), opposite.getBestPrice())) {
+                int next = store.getNext(slot);
+                // se lo stop order non può essere evaso (come un market order fallito) rimane in attesa
+                if (execute.test(slot)) {
+                    level.remove(slot);
+                    store.free(slot);
+                    size--;
+                }
+                slot = next;
+            }
+            if (level.isEmpty()) {
+                stops.removeLevel(rank);
+            } else {
+                rank++;
+            }
+        }
+    }
+
+    /**
+     * Metodo per ottenere il livello di posizione specificata, a partire dal primo ad attivarsi
+     * @param rank posizione del livello (0 per il primo ad attivarsi)
+     * @return livello corrispondente
+     */
+    public PriceLevel getLevel(int rank) {
+        return stops.getLevel(rank);
+    }
+
+    public int getLevelCount() {
+        return stops.getLevelCount();
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+}
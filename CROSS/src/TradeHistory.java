@@ -0,0 +1,497 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Classe per la memorizzazione a livelli dello storico degli ordini evasi, usato dalle interrogazioni sullo storico.
+ * Gli ordini evasi più recenti restano in memoria (livello caldo) fino a hotTrades ordini; a quel punto il livello
+ * caldo viene sostituito da uno vuoto e sigillato da un thread in background in una partizione immutabile su disco
+ * (part-000000000.bin, ...), mappata in memoria con FileChannel.map: la scrittura e l'fsync non avvengono mai sul
+ * thread del motore né sotto il lock. Finché la scrittura è in corso, gli ordini restano visibili alle interrogazioni.
+ * L'heap occupato dallo storico è quindi limitato a circa due volte hotTrades, qualunque sia la durata
+ * dell'esecuzione del server: le partizioni sigillate stanno nella page cache, fuori dall'heap. Se la scrittura
+ * fallisce, gli ordini tornano nel livello caldo e il tentativo successivo viene rinviato con un'attesa crescente.
+ * Ogni partizione inizia con un'intestazione grande quanto un record (MAGIC, versione, dimensione dei record, numero
+ * di record, istante minimo e massimo, sequenza massima) seguita dai record nel formato di BinaryPersistanceManager:
+ * le interrogazioni saltano le partizioni fuori dall'intervallo richiesto e, nelle altre, trovano il primo record
+ * con una ricerca binaria sull'istante.
+ * Le partizioni sono dati derivati: la persistenza degli ordini evasi resta quella configurata, e all'avvio
+ * vengono caricati nel livello caldo solo gli ordini con sequenza successiva all'ultima partizione sigillata.
+ * Ogni ordine aggiunto aggiorna anche i prezzi giornalieri (DailyPrices); all'avvio i prezzi giornalieri degli ordini
+ * sigillati vengono ricalcolati con una lettura sequenziale delle partizioni.
+ * I nuovi ordini evasi alimentano inoltre le candele a più risoluzioni (CandleService).
+ * Anche il livello caldo è ordinato per istante e sequenza, quindi un'interrogazione per intervallo di tempo trova il
+ * punto di partenza con una ricerca binaria in ogni livello e unisce i livelli con un merge: il costo dipende dal
+ * numero di ordini restituiti e non dalla dimensione dello storico.
+ */
+public class TradeHistory {
+    private static final int MAGIC = 0x43525450; // "CRTP"
+    private static final int VERSION = 1; // versione del formato delle partizioni
+    private static final int RECORD_SIZE = BinaryPersistanceManager.RECORD_SIZE; // dimensione di un record
+    private static final int HEADER_SIZE = RECORD_SIZE; // intestazione grande quanto un record, per mantenere l'allineamento
+    private static final int TIMESTAMP_OFFSET = 4 + 1 + 1 + 4 + 4; // posizione dell'istante all'interno di un record
+    private static final int SEQUENCE_OFFSET = TIMESTAMP_OFFSET + 8; // posizione della sequenza all'interno di un record
+    private static final int MAX_HOT_TRADES = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE; // una partizione deve essere mappabile
+    private static final long MIN_RETRY_DELAY = 1000; // attesa dopo il primo errore di scrittura, in millisecondi
+    private static final long MAX_RETRY_DELAY = 60000; // attesa massima tra due tentativi, in millisecondi
+
+    private final Path directory; // cartella delle partizioni sigillate
+    private final int hotTrades; // numero massimo di ordini nel livello caldo
+    private final CopyOnWriteArrayList<TradePartition> partitions; // partizioni sigillate, in ordine di creazione
+    private TreeMap<TradePosition, Order> hot; // ordini evasi non ancora sigillati, per istante e sequenza
+    private TreeMap<TradePosition, Order> sealing; // ordini in corso di scrittura in background, null se nessuno
+    private final DailyPrices dailyPrices; // prezzi giornalieri di ogni simbolo, aggiornati ad ogni aggiunta
+    private final CandleService candles; // candele di ogni simbolo, aggiornate dai nuovi ordini evasi
+    private long sealedSequence; // sequenza massima degli ordini sigillati
+    private int nextPartition; // indice della prossima partizione
+    private long retryDelay; // attesa prima del prossimo tentativo dopo un errore, 0 se l'ultimo è riuscito
+    private long retryAt; // istante (in millisecondi) da cui è possibile riprovare a sigillare
+    private final ReentrantLock lock; // lock del livello caldo e dell'elenco delle partizioni
+    private final ExecutorService sealer; // thread che scrive le partizioni
+
+    public TradeHistory(String directory, int hotTrades, CandleService candles) {
+        this.directory = Paths.get(directory);
+        this.hotTrades = Math.max(1, Math.min(hotTrades, MAX_HOT_TRADES));
+        this.partitions = new CopyOnWriteArrayList<>();
+        this.hot = new TreeMap<>();
+        this.dailyPrices = new DailyPrices(ZoneId.systemDefault());
+        this.candles = candles;
+        this.sealedSequence = Long.MIN_VALUE;
+        this.nextPartition = 0;
+        this.sealing = null;
+        this.retryDelay = 0;
+        this.retryAt = 0;
+        this.lock = new ReentrantLock();
+        this.sealer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread sealerThread = new Thread(runnable, "TradeSealer");
+            sealerThread.setDaemon(true);
+            return sealerThread;
+        });
+    }
+
+    /**
+     * Metodo per aprire le partizioni sigillate presenti nella cartella. Le partizioni incomplete o corrotte
+     * (ad esempio per un arresto durante la scrittura) vengono eliminate: i loro ordini vengono ricaricati da load().
+     */
+    public void open() {
+        lock.lock();
+        try {
+            List<Path> files = new ArrayList<>();
+            try {
+                Files.createDirectories(directory);
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "part-*.bin")) {
+                    for (Path path : stream) {
+                        files.add(path);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[ERR] Error while listing trade partitions in " + directory + ": " + e.getMessage());
+                return;
+            }
+            // i nomi hanno indici a larghezza fissa, quindi l'ordine alfabetico è quello di creazione
+            files.sort(null);
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                nextPartition = Math.max(nextPartition, Integer.parseInt(name.substring("part-".length(), name.length() - ".bin".length())) + 1);
+                TradePartition partition = map(path);
+                if (partition == null) {
+                    System.err.println("[ERR] Discarding invalid trade partition " + path);
+                    try {
+                        Files.delete(path);
+                    } catch (IOException e) {
+                        System.err.println("[ERR] Error while deleting " + path + ": " + e.getMessage());
+                    }
+                    continue;
+                }
+                partitions.add(partition);
+                sealedSequence = Math.max(sealedSequence, partition.maxSequence);
+                ByteBuffer records = partition.records.duplicate();
+                records.position(HEADER_SIZE);
+                for (int i = 0; i < partition.count; i++) {
+                    dailyPrices.add(BinaryPersistanceManager.decode(records));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per caricare gli ordini evasi dalla persistenza durante il ripristino all'avvio. Gli ordini vengono letti
+     * in streaming: contatore degli id e orologio vengono riallineati ad ogni ordine (Order.recovered), poi quelli già
+     * sigillati in una partizione vengono scartati subito e gli altri vanno nel livello caldo, che durante l'avvio viene
+     * sigillato direttamente (nessun client è ancora in attesa). La memoria usata resta quindi limitata al livello
+     * caldo, qualunque sia la lunghezza dello storico. Gli errori del gestore (un'importazione fallita) vengono
+     * propagati, perché l'avvio va interrotto.
+     * @param persistence gestore della persistenza da cui leggere lo storico degli ordini evasi
+     */
+    public void load(PersistanceManager persistence) {
+        lock.lock();
+        try {
+            persistence.readOrders(order -> {
+                Order.recovered(order);
+                if (order.getSequence() > sealedSequence) {
+                    hot.put(new TradePosition(order.getTimestamp(), order.getSequence()), order);
+                    dailyPrices.add(order);
+                    if (hot.size() >= hotTrades) {
+                        try {
+                            install(write(hot, nextPartition++));
+                            hot.clear();
+                        } catch (IOException e) {
+                            System.err.println("[ERR] Error while sealing trade partition: " + e.getMessage());
+                        }
+                    }
+                }
+            });
+            System.out.println("[INFO] Trade history: " + partitions.size() + " sealed partitions, " + hot.size() + " recent trades in memory.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per aggiungere allo storico i nuovi ordini evasi
+     * @param orders nuovi ordini evasi
+     */
+    public void addAll(Collection<Order> orders) {
+        lock.lock();
+        try {
+            for (Order order : orders) {
+                hot.put(new TradePosition(order.getTimestamp(), order.getSequence()), order);
+                dailyPrices.add(order);
+            }
+            candles.onTrades(orders, MonotonicClock.now() / 1_000_000L);
+            if (hot.size() >= hotTrades && sealing == null && System.currentTimeMillis() >= retryAt) {
+                // il livello caldo pieno viene sostituito da uno vuoto e scritto in background
+                TreeMap<TradePosition, Order> snapshot = hot;
+                int index = nextPartition++;
+                sealing = snapshot;
+                hot = new TreeMap<>();
+                sealer.execute(() -> seal(snapshot, index));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public DailyPrices getDailyPrices() {
+        return dailyPrices;
+    }
+
+    public CandleService getCandles() {
+        return candles;
+    }
+
+    /**
+     * Metodo per visitare, in ordine di istante e sequenza, una pagina degli ordini evasi di un simbolo eseguiti in un
+     * intervallo di tempo. In ogni partizione e nel livello caldo il primo ordine viene trovato con una ricerca binaria;
+     * i livelli vengono poi uniti con un merge che legge solo gli ordini visitati, senza copiare l'intervallo.
+     * Gli ordini evasi portano l'istante di esecuzione (anche quelli rimasti a lungo nel libro) e il motore di un
+     * simbolo li aggiunge allo storico in ordine di istante: un ordine evaso dopo che un client ha ottenuto una
+     * posizione si trova quindi sempre dopo di essa, e una riconciliazione paginata non perde esecuzioni tardive.
+     * @param symbol simbolo richiesto
+     * @param start posizione del primo ordine da visitare (inclusa)
+     * @param to istante finale (escluso), in nanosecondi dall'epoch
+     * @param limit numero massimo di ordini da visitare
+     * @param action funzione chiamata con ogni ordine della pagina
+     * @return posizione del primo ordine della pagina successiva, o null se l'intervallo è terminato
+     */
+    public TradePosition page(String symbol, TradePosition start, long to, int limit, Consumer<Order> action) {
+        PriorityQueue<TradeSource> sources = new PriorityQueue<>();
+        List<Order> recent;
+        List<Order> unsealed = new ArrayList<>();
+        List<TradePartition> sealed;
+        // partizioni e livello caldo vengono letti insieme, così un ordine sigillato nel frattempo non va perso
+        lock.lock();
+        try {
+            sealed = new ArrayList<>(partitions);
+            recent = range(hot, symbol, start, to, limit);
+            if (sealing != null) {
+                unsealed = range(sealing, symbol, start, to, limit);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (TradePartition partition : sealed) {
+            if (partition.maxTimestamp >= start.timestamp && partition.minTimestamp < to) {
+                TradeSource.add(sources, partition.iterator(symbol, partition.firstFrom(start), to));
+            }
+        }
+        TradeSource.add(sources, recent.iterator());
+        TradeSource.add(sources, unsealed.iterator());
+        for (int visited = 0; !sources.isEmpty(); visited++) {
+            TradeSource source = sources.poll();
+            if (visited == limit) {
+                return new TradePosition(source.head.getTimestamp(), source.head.getSequence());
+            }
+            action.accept(source.head);
+            TradeSource.add(sources, source.rest);
+        }
+        return null;
+    }
+
+    /**
+     * Metodo per copiare gli ordini di un simbolo di un livello in memoria a partire da una posizione, fino ad un istante
+     * @param trades livello in memoria
+     * @param symbol simbolo richiesto
+     * @param start posizione del primo ordine (inclusa)
+     * @param to istante finale (escluso)
+     * @param limit numero di ordini oltre il quale la copia si ferma
+     * @return al più limit + 1 ordini, in ordine di istante e sequenza
+     */
+    private static List<Order> range(TreeMap<TradePosition, Order> trades, String symbol, TradePosition start, long to, int limit) {
+        List<Order> orders = new ArrayList<>();
+        for (Order order : trades.subMap(start, new TradePosition(to, Long.MIN_VALUE)).values()) {
+            if (order.getSymbol().equals(symbol)) {
+                orders.add(order);
+                if (orders.size() > limit) {
+                    break;
+                }
+            }
+        }
+        return orders;
+    }
+
+    /**
+     * Metodo eseguito dal thread in background per sigillare gli ordini sostituiti nel livello caldo.
+     * In caso di errore gli ordini tornano nel livello caldo e il prossimo tentativo viene rinviato,
+     * raddoppiando l'attesa ad ogni errore consecutivo.
+     * @param snapshot ordini da sigillare (non più modificati)
+     * @param index indice della partizione
+     */
+    private void seal(TreeMap<TradePosition, Order> snapshot, int index) {
+        TradePartition partition = null;
+        try {
+            partition = write(snapshot, index);
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while sealing trade partition: " + e.getMessage());
+        }
+        lock.lock();
+        try {
+            if (partition != null) {
+                install(partition);
+                retryDelay = 0;
+            } else {
+                hot.putAll(snapshot);
+                retryDelay = Math.min(MAX_RETRY_DELAY, Math.max(MIN_RETRY_DELAY, retryDelay * 2));
+                retryAt = System.currentTimeMillis() + retryDelay;
+            }
+            sealing = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo per rendere visibile una partizione appena sigillata (da chiamare con il lock)
+     * @param partition partizione sigillata
+     */
+    private void install(TradePartition partition) {
+        partitions.add(partition);
+        sealedSequence = Math.max(sealedSequence, partition.maxSequence);
+    }
+
+    /**
+     * Metodo per scrivere una partizione: gli ordini (già ordinati per istante e sequenza) vengono scritti su un file
+     * temporaneo forzato su disco e rinominato in modo atomico, poi mappati in memoria
+     * @param trades ordini da sigillare
+     * @param index indice della partizione
+     * @return partizione mappata in memoria
+     */
+    private TradePartition write(TreeMap<TradePosition, Order> trades, int index) throws IOException {
+        Collection<Order> sorted = trades.values();
+        long maxSequence = Long.MIN_VALUE;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + sorted.size() * RECORD_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(sorted.size());
+        buffer.putLong(trades.firstKey().timestamp).putLong(trades.lastKey().timestamp);
+        int maxSequencePosition = buffer.position();
+        buffer.position(HEADER_SIZE);
+        for (Order order : sorted) {
+            BinaryPersistanceManager.encode(order, buffer);
+            maxSequence = Math.max(maxSequence, order.getSequence());
+        }
+        buffer.putLong(maxSequencePosition, maxSequence);
+        buffer.flip();
+
+        Path path = directory.resolve(String.format("part-%09d.bin", index));
+        Path temporary = directory.resolve(path.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporary.toFile())) {
+            while (buffer.hasRemaining()) {
+                out.getChannel().write(buffer);
+            }
+            out.getFD().sync(); // la partizione deve essere integra prima di diventare visibile
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        TradePartition partition = map(path);
+        if (partition == null) {
+            throw new IOException("invalid trade partition " + path);
+        }
+        return partition;
+    }
+
+    /**
+     * Metodo per mappare in memoria una partizione, verificandone l'intestazione
+     * @param path file della partizione
+     * @return partizione mappata, o null se il file non è una partizione valida
+     */
+    private TradePartition map(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                return null;
+            }
+            MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (records.getInt(0) != MAGIC || records.getInt(4) != VERSION || records.getInt(8) != RECORD_SIZE
+                    || length != HEADER_SIZE + (long) records.getInt(12) * RECORD_SIZE) {
+                return null;
+            }
+            return new TradePartition(records, records.getInt(12), records.getLong(16), records.getLong(24), records.getLong(32));
+        } catch (IOException e) {
+            System.err.println("[ERR] Error while reading trade partition " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Classe che rappresenta una partizione sigillata, mappata in memoria (i record sono ordinati per istante)
+     */
+    private static class TradePartition {
+        final MappedByteBuffer records; // contenuto della partizione (intestazione e record)
+        final int count; // numero di record
+        final long minTimestamp; // istante del primo record
+        final long maxTimestamp; // istante dell'ultimo record
+        final long maxSequence; // sequenza massima dei record
+
+        TradePartition(MappedByteBuffer records, int count, long minTimestamp, long maxTimestamp, long maxSequence) {
+            this.records = records;
+            this.count = count;
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+            this.maxSequence = maxSequence;
+        }
+
+        long timestampAt(int index) {
+            return records.getLong(HEADER_SIZE + index * RECORD_SIZE + TIMESTAMP_OFFSET);
+        }
+
+        long sequenceAt(int index) {
+            return records.getLong(HEADER_SIZE + index * RECORD_SIZE + SEQUENCE_OFFSET);
+        }
+
+        /**
+         * Metodo per trovare con una ricerca binaria il primo record non precedente alla posizione indicata
+         * @param from posizione cercata (istante e sequenza)
+         * @return indice del primo record con posizione maggiore o uguale a from (count se non esiste)
+         */
+        int firstFrom(TradePosition from) {
+            int low = 0, high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                long timestamp = timestampAt(middle);
+                if (timestamp < from.timestamp || (timestamp == from.timestamp && sequenceAt(middle) < from.sequence)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Metodo per scorrere i record di un simbolo a partire da un indice, fino ad un istante
+         * @param symbol simbolo richiesto
+         * @param first indice del primo record
+         * @param to istante finale (escluso)
+         * @return iteratore che decodifica i record solo quando vengono richiesti
+         */
+        Iterator<Order> iterator(String symbol, int first, long to) {
+            ByteBuffer buffer = records.duplicate();
+            return new Iterator<Order>() {
+                private int index = first; // indice del prossimo record da leggere
+                private Order next = advance(); // prossimo ordine del simbolo, null se terminati
+
+                private Order advance() {
+                    while (index < count && timestampAt(index) < to) {
+                        buffer.position(HEADER_SIZE + index++ * RECORD_SIZE);
+                        Order order = BinaryPersistanceManager.decode(buffer);
+                        if (order.getSymbol().equals(symbol)) {
+                            return order;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Order next() {
+                    Order order = next;
+                    next = advance();
+                    return order;
+                }
+            };
+        }
+    }
+
+    /**
+     * Classe che rappresenta un livello durante il merge di page(): il prossimo ordine e i successivi
+     */
+    private static class TradeSource implements Comparable<TradeSource> {
+        final Order head; // prossimo ordine del livello
+        final Iterator<Order> rest; // ordini successivi del livello
+
+        private TradeSource(Order head, Iterator<Order> rest) {
+            this.head = head;
+            this.rest = rest;
+        }
+
+        static void add(PriorityQueue<TradeSource> sources, Iterator<Order> orders) {
+            if (orders.hasNext()) {
+                sources.add(new TradeSource(orders.next(), orders));
+            }
+        }
+
+        @Override
+        public int compareTo(TradeSource other) {
+            return head.isBefore(other.head) ? -1 : (other.head.isBefore(head) ? 1 : 0);
+        }
+    }
+
+    /**
+     * Classe che rappresenta la posizione di un ordine evaso nello storico: istante di esecuzione e numero di sequenza
+     * (unico), nell'ordine usato dalle partizioni. Restituita da page come cursore della pagina successiva.
+     */
+    static class TradePosition implements Comparable<TradePosition> {
+        final long timestamp; // istante di esecuzione, in nanosecondi dall'epoch
+        final long sequence; // numero di sequenza
+
+        TradePosition(long timestamp, long sequence) {
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(TradePosition other) {
+            int result = Long.compare(timestamp, other.timestamp);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Programma per convertire lo storico degli ordini evasi tra il formato json e il formato binario
+ * (BinaryPersistanceManager), usato per migrare uno storico esistente. Lo storico viene letto in streaming e scritto
+ * a blocchi di BATCH_SIZE ordini, quindi la memoria usata non dipende dalla sua lunghezza.
+ * Uso: java TradeHistoryConverter to-binary storico.json storico.bin
+ *      java TradeHistoryConverter to-json storico.bin storico.json
+ */
+public class TradeHistoryConverter {
+    private static final int BATCH_SIZE = 4096; // ordini scritti con una sola aggiunta
+
+    public static void main(String[] args) {
+        if (args.length != 3 || !(args[0].equals("to-binary") || args[0].equals("to-json"))) {
+            System.err.println("Usage: java TradeHistoryConverter (to-binary <input.json> <output.bin> | to-json <input.bin> <output.json>)");
+            System.exit(1);
+        }
+        PersistanceManager input, output;
+        if (args[0].equals("to-binary")) {
+            input = new JsonPersistanceManager(args[1], args[1], null, null);
+            output = new BinaryPersistanceManager(args[2], args[1], null, null);
+        } else {
+            input = new BinaryPersistanceManager(args[1], args[1], null, null);
+            output = new JsonPersistanceManager(args[2], args[2], null, null);
+        }
+        List<Order> batch = new ArrayList<>(BATCH_SIZE);
+        long[] converted = {0};
+        try {
+            output.storeIssuedOrders(batch); // svuota l'output, gli ordini vengono poi aggiunti a blocchi
+            input.readOrders(order -> {
+                batch.add(order);
+                if (batch.size() == BATCH_SIZE) {
+                    append(output, batch);
+                    converted[0] += BATCH_SIZE;
+                }
+            });
+            converted[0] += batch.size();
+            append(output, batch);
+            output.sync();
+        } catch (RuntimeException e) {
+            System.err.println("[ERR] Conversion failed after " + converted[0] + " issued orders: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("Converted " + converted[0] + " issued orders from " + args[1] + " to " + args[2] + ".");
+    }
+
+    /**
+     * Metodo per aggiungere un blocco di ordini all'output, attendendo la scrittura (se fallisce, join() lancia
+     * CompletionException)
+     * @param output gestore in cui scrivere
+     * @param batch ordini da aggiungere, rimossi dopo la scrittura
+     */
+    private static void append(PersistanceManager output, List<Order> batch) {
+        output.appendIssuedOrders(batch).join();
+        batch.clear();
+    }
+}
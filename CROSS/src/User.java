@@ -1,21 +1,30 @@
 import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Classe per la rappresentazione degli utenti all'interno del sistema.
  */
 public class User {
+    private static final AtomicInteger nextId = new AtomicInteger(0); // contatore degli id assegnati agli utenti
+
+    private final int id; // id intero denso, usato dal motore di matching per riferirsi al proprietario di un ordine
     private String username;
-    private String password;
-    private boolean isOnline; // per verificare se l'account è attualmente collegato da un altro dispositivo
-    private InetAddress address; // indirizzo dell'utente che sta attualmente usando l'account
-    private int port; // porta UDP usata per l'ascolto delle notifiche
+    private volatile String password;
+    private final AtomicBoolean isOnline; // per verificare se l'account è attualmente collegato da un altro dispositivo
+    private volatile InetAddress address; // indirizzo dell'utente che sta attualmente usando l'account
+    private volatile int port; // porta UDP usata per l'ascolto delle notifiche
 
     public User(String username, String password) {
         this.username = username;
         this.password = password;
-        this.isOnline = false;
+        this.isOnline = new AtomicBoolean(false);
+        this.id = nextId.getAndIncrement();
     }
 
+    public int getId() {
+        return id;
+    }
 
     public String getUsername() {
         return username;
@@ -30,11 +39,19 @@ public class User {
     }
 
     public boolean isOnline() {
-        return isOnline;
+        return isOnline.get();
     }
 
     public void setOnline(boolean online) {
-        isOnline = online;
+        isOnline.set(online);
+    }
+
+    /**
+     * Metodo per portare online l'account in modo atomico
+     * @return true se l'account era offline, false se era già collegato
+     */
+    public boolean goOnline() {
+        return isOnline.compareAndSet(false, true);
     }
 
     public InetAddress getAddress() {
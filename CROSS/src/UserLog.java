@@ -0,0 +1,150 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Classe per la memorizzazione incrementale degli utenti in un log append-only, una riga json per utente
+ * ({"username": ..., "password": ...}). Ogni registrazione o cambio di password aggiunge solo la riga dell'utente
+ * modificato; in lettura l'ultima riga di ogni username prevale sulle precedenti.
+ * Quando il log raggiunge il doppio delle righe che aveva dopo l'ultima compattazione, viene riscritto con una sola
+ * riga per utente (su un file temporaneo sostituito in modo atomico): il costo della compattazione è quindi
+ * ammortizzato su almeno altrettante scritture e il log resta proporzionale al numero di utenti.
+ * Una riga incompleta in coda al log (scrittura interrotta) viene scartata.
+ * La classe non è thread-safe: chi la usa deve garantire un solo scrittore alla volta.
+ */
+public class UserLog {
+    private static final int MIN_COMPACTION = 1024; // righe sotto le quali il log non viene mai compattato
+
+    private final Path file; // file del log
+    private Writer writer; // log aperto in scrittura
+    private FileOutputStream output; // stream sottostante, per l'fsync
+    private long lines; // righe presenti nel log
+    private long compactedLines; // righe presenti dopo l'ultima compattazione (o lettura)
+    private boolean unsynced; // true se il log è stato scritto dopo l'ultima sync()
+
+    public UserLog(String file) {
+        this.file = Paths.get(file);
+        this.writer = null;
+        this.output = null;
+        this.lines = 0;
+        this.compactedLines = 0;
+        this.unsynced = false;
+    }
+
+    public boolean exists() {
+        return Files.exists(file);
+    }
+
+    /**
+     * Metodo per leggere gli utenti dal log
+     * @return password di ogni utente, per username, nell'ordine di registrazione
+     */
+    public Map<String, String> read() throws IOException {
+        Map<String, String> users = new LinkedHashMap<>();
+        lines = 0;
+        long valid = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonObject user;
+                try {
+                    user = JsonParser.parseString(line).getAsJsonObject();
+                } catch (RuntimeException e) {
+                    break; // riga incompleta o corrotta
+                }
+                users.put(user.get("username").getAsString(), user.get("password").getAsString());
+                valid += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                lines++;
+            }
+        }
+        long length = Files.size(file);
+        if (valid == length + 1) {
+            // l'ultima riga è integra ma senza terminatore: lo aggiungo, così le nuove righe restano separate
+            Files.write(file, "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        } else if (valid < length) {
+            System.err.println("[ERR] Discarding " + (length - valid) + " bytes of an incomplete record at the end of " + file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        compactedLines = lines;
+        return users;
+    }
+
+    /**
+     * Metodo per aggiungere in coda al log gli utenti nuovi o modificati, con una sola scrittura
+     * @param users utenti da memorizzare
+     */
+    public void append(Collection<User> users) throws IOException {
+        if (writer == null) {
+            open();
+        }
+        for (User user : users) {
+            writer.write(line(user.getUsername(), user.getPassword()));
+            lines++;
+        }
+        writer.flush();
+        unsynced = true;
+        if (lines >= Math.max(MIN_COMPACTION, 2 * compactedLines)) {
+            compact(read());
+        }
+    }
+
+    /**
+     * Metodo per riscrivere il log con una sola riga per utente
+     * @param users password di ogni utente, per username
+     */
+    public void compact(Map<String, String> users) throws IOException {
+        close();
+        Path absolute = file.toAbsolutePath();
+        Path temporary = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporary.toFile());
+             Writer tmpWriter = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                tmpWriter.write(line(user.getKey(), user.getValue()));
+            }
+            tmpWriter.flush();
+            out.getFD().sync(); // il log compattato deve essere su disco prima di sostituire quello vecchio
+        }
+        Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = users.size();
+        compactedLines = lines;
+        unsynced = false;
+    }
+
+    /**
+     * Metodo per forzare su disco le righe scritte dopo l'ultima chiamata
+     */
+    public void sync() throws IOException {
+        if (unsynced && output != null) {
+            output.getFD().sync();
+        }
+        unsynced = false;
+    }
+
+    private void open() throws IOException {
+        output = new FileOutputStream(file.toFile(), true);
+        writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    }
+
+    private void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            output = null;
+        }
+    }
+
+    private String line(String username, String password) {
+        JsonObject user = new JsonObject();
+        user.addProperty("username", username);
+        user.addProperty("password", password);
+        return user + "\n";
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classe per la gestione degli utenti registrati, indicizzati per username in una ConcurrentHashMap.
+ * Registrazione, login e cambio di password accedono solo all'utente interessato: la registrazione è un
+ * inserimento atomico (computeIfAbsent, che crea l'utente e gli assegna l'id solo se lo username è libero) e lo stato online di ogni utente cambia con una compareAndSet, quindi richieste
+ * di utenti diversi vengono servite in parallelo e ogni ricerca costa O(1) invece di una scansione di tutti gli utenti.
+ * Ad ogni utente è assegnato un id intero denso (vedi User), usato dal motore di matching al posto dello username.
+ */
+public class UserRegistry {
+    private final ConcurrentHashMap<String, User> users; // utenti registrati, per username
+
+    public UserRegistry(Collection<User> users) {
+        this.users = new ConcurrentHashMap<>();
+        for (User user : users) {
+            this.users.put(user.getUsername(), user);
+        }
+    }
+
+    /**
+     * Metodo per registrare un nuovo utente, che risulta già collegato
+     * @param username username del nuovo utente
+     * @param password password del nuovo utente
+     * @return utente creato, oppure null se lo username è già stato usato
+     */
+    public User register(String username, String password) {
+        User[] created = new User[1];
+        // l'utente (e quindi il suo id) viene creato solo se lo username è libero: una registrazione fallita non
+        // consuma id
+        users.computeIfAbsent(username, name -> {
+            User user = new User(name, password);
+            user.setOnline(true); // prima dell'inserimento, così nessun login concorrente può usare il nuovo account
+            created[0] = user;
+            return user;
+        });
+        return created[0];
+    }
+
+    /**
+     * Metodo per aggiungere un utente già esistente (ad esempio recuperato da uno snapshot)
+     * @param user utente da aggiungere
+     * @return true se l'utente è stato aggiunto, false se lo username era già presente
+     */
+    public boolean add(User user) {
+        return users.putIfAbsent(user.getUsername(), user) == null;
+    }
+
+    /**
+     * Metodo per il login di un utente
+     * @param username username dell'account
+     * @param password password dell'account
+     * @return LOGGED_IN se il login è riuscito, ALREADY_ONLINE se l'account è già collegato, MISMATCH se l'account
+     * non esiste o la password è errata
+     */
+    public LoginResult login(String username, String password) {
+        User user = users.get(username);
+        if (user == null || !user.getPassword().equals(password)) {
+            return LoginResult.MISMATCH;
+        }
+        // solo una delle richieste concorrenti sullo stesso account riesce a portarlo online
+        return user.goOnline() ? LoginResult.LOGGED_IN : LoginResult.ALREADY_ONLINE;
+    }
+
+    /**
+     * Metodo per cambiare la password di un account non collegato. Durante il cambio l'account viene portato
+     * online, così che un login concorrente non possa usare la vecchia password.
+     * @param username username dell'account
+     * @param oldPassword password attuale
+     * @param newPassword nuova password
+     * @return UPDATED se la password è stata cambiata, ALREADY_ONLINE se l'account è collegato, MISMATCH se
+     * l'account non esiste o la password attuale è errata
+     */
+    public LoginResult updatePassword(String username, String oldPassword, String newPassword) {
+        User user = users.get(username);
+        if (user == null || !user.getPassword().equals(oldPassword)) {
+            return LoginResult.MISMATCH;
+        }
+        if (!user.goOnline()) {
+            return LoginResult.ALREADY_ONLINE;
+        }
+        try {
+            if (!user.getPassword().equals(oldPassword)) {
+                return LoginResult.MISMATCH; // password cambiata da una richiesta concorrente
+            }
+            user.setPassword(newPassword);
+            return LoginResult.UPDATED;
+        } finally {
+            user.setOnline(false);
+        }
+    }
+
+    public User get(String username) {
+        return users.get(username);
+    }
+
+    /**
+     * Metodo per ottenere gli utenti registrati (vista aggiornata, iterabile senza sincronizzazione)
+     * @return utenti registrati
+     */
+    public Collection<User> values() {
+        return Collections.unmodifiableCollection(users.values());
+    }
+
+    /**
+     * Metodo per ottenere gli utenti registrati per username (vista in sola lettura)
+     * @return utenti registrati, per username
+     */
+    public Map<String, User> asMap() {
+        return Collections.unmodifiableMap(users);
+    }
+
+    /**
+     * Esito delle operazioni di autenticazione del registro degli utenti.
+     */
+    public enum LoginResult {
+        LOGGED_IN,
+        UPDATED,
+        ALREADY_ONLINE,
+        MISMATCH
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Interfaccia per le strategie di attesa del motore di matching quando il ring buffer non contiene nuovi comandi.
+ */
+public interface WaitStrategy {
+
+    // Metodo per attendere che la sequenza specificata venga pubblicata. Ritorna la sequenza più alta disponibile.
+    public long waitFor(long sequence, RingBuffer ringBuffer) throws InterruptedException;
+
+    // Metodo chiamato dai produttori dopo ogni pubblicazione per svegliare il consumatore (se in attesa bloccante).
+    public void signalAllWhenBlocking();
+
+    /**
+     * Metodo per ottenere la strategia di attesa a partire dal nome indicato nella configurazione
+     * @param name nome della strategia (blocking, yielding o busy-spin)
+     * @return strategia di attesa corrispondente (blocking se il nome non è riconosciuto)
+     */
+    public static WaitStrategy fromName(String name) {
+        switch (name) {
+            case "yielding": return new YieldingWaitStrategy();
+            case "busy-spin": return new BusySpinWaitStrategy();
+            case "blocking": return new BlockingWaitStrategy();
+            default:
+                System.err.println("[ERR] Unknown wait strategy " + name + ", using blocking.");
+                return new BlockingWaitStrategy();
+        }
+    }
+}
+
+/**
+ * Strategia di attesa bloccante: il consumatore si sospende su una condition finché un produttore non pubblica.
+ * Minimizza l'uso di CPU a scapito della latenza.
+ */
+class BlockingWaitStrategy implements WaitStrategy {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+
+    @Override
+    public long waitFor(long sequence, RingBuffer ringBuffer) throws InterruptedException {
+        if (!ringBuffer.isAvailable(sequence)) {
+            lock.lock();
+            try {
+                while (!ringBuffer.isAvailable(sequence)) {
+                    published.await();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return ringBuffer.getHighestPublished(sequence);
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+        lock.lock();
+        try {
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+/**
+ * Strategia di attesa che gira per un numero limitato di tentativi e poi cede il processore con Thread.yield().
+ */
+class YieldingWaitStrategy implements WaitStrategy {
+    private static final int SPIN_TRIES = 100; // tentativi di attesa attiva prima di cedere il processore
+
+    @Override
+    public long waitFor(long sequence, RingBuffer ringBuffer) throws InterruptedException {
+        int counter = SPIN_TRIES;
+        while (!ringBuffer.isAvailable(sequence)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (counter > 0) {
+                counter--;
+            } else {
+                Thread.yield();
+            }
+        }
+        return ringBuffer.getHighestPublished(sequence);
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+    }
+}
+
+/**
+ * Strategia di attesa attiva: il consumatore non rilascia mai il core. Latenza minima, un core sempre occupato.
+ */
+class BusySpinWaitStrategy implements WaitStrategy {
+
+    @Override
+    public long waitFor(long sequence, RingBuffer ringBuffer) throws InterruptedException {
+        while (!ringBuffer.isAvailable(sequence)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Thread.onSpinWait();
+        }
+        return ringBuffer.getHighestPublished(sequence);
+    }
+
+    @Override
+    public void signalAllWhenBlocking() {
+    }
+}
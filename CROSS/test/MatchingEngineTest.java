@@ -0,0 +1,152 @@
+import com.google.gson.JsonObject;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Test del motore di matching: esecuzione di limit, market e stop order, cancellazioni, asta, istante degli ordini evasi e risposta al client
+ * quando la memorizzazione degli ordini evasi fallisce.
+ */
+public class MatchingEngineTest {
+    private static final String SYMBOL = "BTC/USD";
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestSupport.temporaryDirectory("engine-test");
+        limitAndMarketOrders(directory.resolve("limit"));
+        cancelOrders(directory.resolve("cancel"));
+        stopOrders(directory.resolve("stop"));
+        failedStore(directory.resolve("failure"));
+        auctionWithLargeSizes(directory.resolve("auction"));
+        lateFillTimestamp(directory.resolve("late"));
+        TestSupport.done("MatchingEngineTest");
+    }
+
+    private static void limitAndMarketOrders(Path directory) throws Exception {
+        TestSupport.MemoryPersistance persistence = new TestSupport.MemoryPersistance();
+        MatchingEngine engine = TestSupport.engine(SYMBOL, false, null, persistence, directory, true);
+        User seller = new User("seller", "p");
+        User buyer = new User("buyer", "p");
+
+        int ask = orderId(engine.submit("insertLimitOrder", "ask", 10, 100, 0, seller).join());
+        orderId(engine.submit("insertLimitOrder", "ask", 5, 101, 0, seller).join());
+        TestSupport.check(ask >= 0, "a resting limit order gets an id");
+        TestSupport.equal(0, persistence.snapshot().size(), "resting limit orders are not trades");
+
+        // il market order consuma il livello migliore e poi parte del successivo
+        TestSupport.check(orderId(engine.submit("insertMarketOrder", "bid", 12, 0, 0, buyer).join()) >= 0, "a fillable market order is executed");
+        List<Order> trades = persistence.snapshot();
+        TestSupport.equal(3, trades.size(), "issued orders after the market order");
+        TestSupport.equal(ask, trades.get(0).getId(), "the best ask is filled first");
+        TestSupport.equal(10, trades.get(0).getInitialSize(), "size of the filled ask");
+        TestSupport.equal(12, trades.get(1).getInitialSize() + trades.get(2).getInitialSize(), "market order size over its pieces");
+        TestSupport.equal(100, trades.get(1).getPrice(), "first piece price");
+        TestSupport.equal(101, trades.get(2).getPrice(), "second piece price");
+
+        // restano 3 unità a 101: un market order più grande viene rifiutato senza eseguire nulla
+        TestSupport.equal(-1, orderId(engine.submit("insertMarketOrder", "bid", 50, 0, 0, buyer).join()), "unfillable market order");
+        TestSupport.equal(3, persistence.snapshot().size(), "a rejected market order issues nothing");
+
+        // un limit bid che incrocia viene eseguito al prezzo del libro
+        engine.submit("insertLimitOrder", "bid", 3, 105, 0, buyer).join();
+        trades = persistence.snapshot();
+        TestSupport.equal(5, trades.size(), "issued orders after the crossing limit order");
+        TestSupport.equal(101, trades.get(4).getPrice(), "crossing limit order price");
+        TestSupport.equal("limit", trades.get(4).getOrderType(), "crossing limit order type");
+    }
+
+    private static void cancelOrders(Path directory) throws Exception {
+        MatchingEngine engine = TestSupport.engine(SYMBOL, false, null, new TestSupport.MemoryPersistance(), directory, true);
+        User owner = new User("owner", "p");
+        User other = new User("other", "p");
+        int id = orderId(engine.submit("insertLimitOrder", "bid", 4, 90, 0, owner).join());
+
+        TestSupport.equal("101", responseCode(engine.submit("cancelOrder", null, 0, 0, id, other).join()), "cancel by another user");
+        TestSupport.equal("100", responseCode(engine.submit("cancelOrder", null, 0, 0, id, owner).join()), "cancel by the owner");
+        TestSupport.equal("101", responseCode(engine.submit("cancelOrder", null, 0, 0, id, owner).join()), "cancel of a cancelled order");
+        TestSupport.equal("101", responseCode(engine.submit("cancelOrder", null, 0, 0, 123456, owner).join()), "cancel of an unknown order");
+    }
+
+    private static void stopOrders(Path directory) throws Exception {
+        TestSupport.MemoryPersistance persistence = new TestSupport.MemoryPersistance();
+        MatchingEngine engine = TestSupport.engine(SYMBOL, false, null, persistence, directory, true);
+        User trader = new User("trader", "p");
+        User seller = new User("stopSeller", "p");
+
+        TestSupport.equal(-2, orderId(engine.submit("insertStopOrder", "bid", 2, 100, 0, trader).join()), "a stop order waits for its price");
+        TestSupport.equal(0, persistence.snapshot().size(), "a waiting stop order issues nothing");
+
+        // l'ask a 100 raggiunge il prezzo di attivazione: lo stop order viene eseguito come market order
+        // (l'ask, eseguito solo in parte, resta nel libro e non è ancora un ordine evaso)
+        engine.submit("insertLimitOrder", "ask", 5, 100, 0, seller).join();
+        List<Order> trades = persistence.snapshot();
+        TestSupport.equal(1, trades.size(), "issued orders after the stop order activation");
+        TestSupport.equal("stop", trades.get(0).getOrderType(), "type of the activated stop order");
+        TestSupport.equal(2, trades.get(0).getInitialSize(), "size of the activated stop order");
+        TestSupport.equal(100, trades.get(0).getPrice(), "price of the activated stop order");
+    }
+
+    private static void failedStore(Path directory) throws Exception {
+        TestSupport.MemoryPersistance persistence = new TestSupport.MemoryPersistance();
+        MatchingEngine engine = TestSupport.engine(SYMBOL, false, null, persistence, directory, true);
+        User seller = new User("failSeller", "p");
+        User buyer = new User("failBuyer", "p");
+        engine.submit("insertLimitOrder", "ask", 10, 100, 0, seller).join();
+
+        persistence.failing = true;
+        JsonObject response = engine.submit("insertMarketOrder", "bid", 1, 0, 0, buyer).join();
+        TestSupport.check(orderId(response) >= 0, "the order is executed even if the store fails");
+        TestSupport.check(response.has("errorMessage"), "the client is told that the issued orders were not stored");
+
+        // il motore continua a servire i comandi successivi
+        persistence.failing = false;
+        response = engine.submit("insertMarketOrder", "bid", 1, 0, 0, buyer).join();
+        TestSupport.check(orderId(response) >= 0 && !response.has("errorMessage"), "the engine keeps running after a failed store");
+        TestSupport.equal(1, persistence.snapshot().size(), "issued orders stored after recovery");
+    }
+
+    private static void auctionWithLargeSizes(Path directory) throws Exception {
+        TestSupport.MemoryPersistance persistence = new TestSupport.MemoryPersistance();
+        MatchingEngine engine = TestSupport.engine(SYMBOL, true, null, persistence, directory, true);
+        User buyer = new User("auctionBuyer", "p");
+        User seller = new User("auctionSeller", "p");
+
+        // la domanda totale supera Integer.MAX_VALUE: l'incrocio non deve andare in overflow
+        CompletableFuture<JsonObject> firstBid = engine.submit("insertLimitOrder", "bid", Integer.MAX_VALUE, 100, 0, buyer);
+        CompletableFuture<JsonObject> secondBid = engine.submit("insertLimitOrder", "bid", Integer.MAX_VALUE, 100, 0, buyer);
+        CompletableFuture<JsonObject> ask = engine.submit("insertLimitOrder", "ask", 10, 100, 0, seller);
+        TestSupport.check(orderId(firstBid.join()) >= 0 && orderId(secondBid.join()) >= 0 && orderId(ask.join()) >= 0,
+                "limit orders rest in the book until the auction");
+        engine.triggerAuction();
+        // i comandi sono eseguiti in ordine: quando la cancellazione ha risposta, l'asta è terminata
+        engine.submit("cancelOrder", null, 0, 0, 123456, seller).join();
+        List<Order> trades = persistence.snapshot();
+        TestSupport.equal(1, trades.size(), "issued orders after the auction");
+        TestSupport.equal("ask", trades.get(0).getType(), "the ask is filled by the auction");
+        TestSupport.equal(10, trades.get(0).getInitialSize(), "size filled by the auction");
+        TestSupport.equal(100, trades.get(0).getPrice(), "auction price");
+    }
+
+    private static void lateFillTimestamp(Path directory) throws Exception {
+        TestSupport.MemoryPersistance persistence = new TestSupport.MemoryPersistance();
+        MatchingEngine engine = TestSupport.engine(SYMBOL, false, null, persistence, directory, true);
+        User seller = new User("lateSeller", "p");
+        User buyer = new User("lateBuyer", "p");
+        engine.submit("insertLimitOrder", "ask", 5, 100, 0, seller).join();
+        engine.submit("insertLimitOrder", "ask", 5, 110, 0, seller).join();
+        engine.submit("insertMarketOrder", "bid", 5, 0, 0, buyer).join();
+        // l'ask a 110, inserito prima dello scambio precedente, viene evaso dopo: nello storico deve seguirlo
+        engine.submit("insertMarketOrder", "bid", 5, 0, 0, buyer).join();
+        List<Order> trades = persistence.snapshot();
+        TestSupport.equal(4, trades.size(), "issued orders after the late fill");
+        TestSupport.equal(trades.get(2).getTimestamp(), trades.get(3).getTimestamp(), "a resting order carries its execution time");
+        TestSupport.check(trades.get(2).getTimestamp() > trades.get(1).getTimestamp(), "a late fill is stamped after earlier trades");
+    }
+
+    private static int orderId(JsonObject response) {
+        return response.get("orderId").getAsInt();
+    }
+
+    private static String responseCode(JsonObject response) {
+        return response.get("response").getAsString();
+    }
+}
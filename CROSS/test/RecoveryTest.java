@@ -0,0 +1,226 @@
+import com.google.gson.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test del ripristino dopo un riavvio: snapshot e journal del libro di un motore, e rilettura degli ordini evasi
+ * memorizzati da ogni gestore della persistenza (json, journal e binario), anche dopo una scrittura interrotta.
+ */
+public class RecoveryTest {
+    private static final String SYMBOL = "BTC/USD";
+
+    public static void main(String[] args) throws Exception {
+        Path directory = TestSupport.temporaryDirectory("recovery-test");
+        bookSnapshotAndJournal(directory.resolve("book"));
+        failedBookJournal(directory.resolve("failed-book"));
+        jsonHistory(directory.resolve("json"));
+        journalHistory(directory.resolve("journal"));
+        failedImport(directory.resolve("import"));
+        binaryHistory(directory.resolve("binary"));
+        TestSupport.done("RecoveryTest");
+    }
+
+    private static void bookSnapshotAndJournal(Path directory) throws Exception {
+        User seller = new User("recoverySeller", "p");
+        User buyer = new User("recoveryBuyer", "p");
+        Map<String, User> users = new HashMap<>();
+        users.put(seller.getUsername(), seller);
+        users.put(buyer.getUsername(), buyer);
+
+        MatchingEngine engine = TestSupport.engine(SYMBOL, false, new RecordLog(directory, "book", 1 << 20),
+                new TestSupport.MemoryPersistance(), directory.resolve("history-1"), true);
+        int ask = orderId(engine.submit("insertLimitOrder", "ask", 10, 100, 0, seller).join());
+        int bid = orderId(engine.submit("insertLimitOrder", "bid", 3, 90, 0, buyer).join());
+        byte[] snapshot = engine.snapshot().join();
+        // modifiche successive allo snapshot, ripristinate dal journal del libro
+        int secondAsk = orderId(engine.submit("insertLimitOrder", "ask", 5, 101, 0, seller).join());
+        engine.submit("cancelOrder", null, 0, 0, bid, buyer).join();
+        engine.submit("insertMarketOrder", "bid", 4, 0, 0, buyer).join();
+        engine.stop();
+
+        TestSupport.MemoryPersistance persistence = new TestSupport.MemoryPersistance();
+        MatchingEngine restored = TestSupport.engine(SYMBOL, false, new RecordLog(directory, "book", 1 << 20), persistence,
+                directory.resolve("history-2"), false);
+        restored.restore(new DataInputStream(new ByteArrayInputStream(snapshot)), users);
+        TestSupport.check(restored.replayBookLog(users) > 0, "book changes after the snapshot are replayed");
+        TestSupport.start(restored);
+
+        TestSupport.equal("101", restored.submit("cancelOrder", null, 0, 0, bid, buyer).join().get("response").getAsString(),
+                "an order cancelled after the snapshot stays cancelled");
+        // restano 6 unità dell'ask a 100 e 5 a 101: un market order di 11 le consuma esattamente
+        TestSupport.check(orderId(restored.submit("insertMarketOrder", "bid", 11, 0, 0, buyer).join()) >= 0,
+                "the restored book fills a market order");
+        List<Order> trades = persistence.snapshot();
+        Order first = find(trades, ask);
+        Order second = find(trades, secondAsk);
+        TestSupport.check(first != null && first.getInitialSize() == 10 && first.getPrice() == 100,
+                "the ask from the snapshot keeps its initial size and price");
+        TestSupport.check(second != null && second.getInitialSize() == 5 && second.getPrice() == 101,
+                "the ask from the book journal is restored");
+        TestSupport.equal(-1, orderId(restored.submit("insertMarketOrder", "bid", 1, 0, 0, buyer).join()),
+                "no liquidity is left after the restored asks are filled");
+    }
+
+    private static void failedBookJournal(Path directory) throws Exception {
+        // il journal è un file al posto di una cartella: nessun segmento può essere aperto
+        Files.createDirectories(directory);
+        Path notADirectory = Files.createFile(directory.resolve("journal"));
+        MatchingEngine engine = TestSupport.engine(SYMBOL, false, new RecordLog(notADirectory, "book", 1 << 20),
+                new TestSupport.MemoryPersistance(), directory.resolve("history"), true);
+        User owner = new User("journalOwner", "p");
+        JsonObject response = engine.submit("insertLimitOrder", "ask", 1, 100, 0, owner).join();
+        TestSupport.check(orderId(response) >= 0 && response.has("errorMessage"),
+                "the client is told that a book change was not journaled");
+        response = engine.submit("insertLimitOrder", "ask", 1, 101, 0, owner).join();
+        TestSupport.check(response.has("errorMessage"), "later changes fail until a snapshot covers the incomplete journal");
+        engine.stop();
+    }
+
+    private static void jsonHistory(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        String file = directory.resolve("issuedOrders.json").toString();
+        JsonPersistanceManager manager = new JsonPersistanceManager(file, file, null, null);
+        List<Order> orders = orders(3);
+        manager.appendIssuedOrders(orders.subList(0, 2)).join();
+        manager.appendIssuedOrders(orders.subList(2, 3)).join();
+        manager.sync();
+        assertSame(orders, read(new JsonPersistanceManager(file, file, null, null)), "json history");
+
+        // un arresto durante l'aggiunta lascia il documento troncato: gli ordini completi restano leggibili
+        // e le aggiunte successive riprendono su un documento valido
+        try (FileChannel channel = FileChannel.open(Path.of(file), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 10);
+        }
+        manager = new JsonPersistanceManager(file, file, null, null);
+        TestSupport.equal(2, read(manager).size(), "complete orders read from a truncated json history");
+        manager.appendIssuedOrders(orders.subList(2, 3)).join();
+        assertSame(orders, read(new JsonPersistanceManager(file, file, null, null)), "repaired json history");
+    }
+
+    private static void journalHistory(Path directory) throws IOException {
+        String legacy = directory.resolve("missing.json").toString();
+        JournalPersistanceManager manager = new JournalPersistanceManager(directory.toString(), 1 << 20, legacy, null, null);
+        List<Order> orders = orders(3);
+        read(manager);
+        manager.appendIssuedOrders(orders.subList(0, 1)).join();
+        manager.appendIssuedOrders(orders.subList(1, 3)).join();
+        manager.sync();
+        JournalPersistanceManager reopened = new JournalPersistanceManager(directory.toString(), 1 << 20, legacy, null, null);
+        assertSame(orders, read(reopened), "journal history");
+
+        // la riscrittura completa sostituisce il journal, e le aggiunte successive proseguono nel nuovo journal
+        reopened.storeIssuedOrders(orders.subList(0, 1));
+        reopened.appendIssuedOrders(orders.subList(2, 3)).join();
+        reopened.sync();
+        assertSame(List.of(orders.get(0), orders.get(2)),
+                read(new JournalPersistanceManager(directory.toString(), 1 << 20, legacy, null, null)),
+                "rewritten journal history");
+
+        // un arresto tra le due rinomine della riscrittura lascia il nuovo journal nella cartella temporanea
+        Path temporary = directory.resolveSibling(directory.getFileName() + ".tmp");
+        new JournalPersistanceManager(temporary.toString(), 1 << 20, legacy, null, null).storeIssuedOrders(orders.subList(1, 2));
+        Files.move(directory, directory.resolveSibling(directory.getFileName() + ".old"));
+        assertSame(orders.subList(1, 2),
+                read(new JournalPersistanceManager(directory.toString(), 1 << 20, legacy, null, null)),
+                "journal history after an interrupted rewrite");
+    }
+
+    private static void failedImport(Path directory) throws IOException {
+        // lo storico json precedente non può essere importato, perché la cartella del journal è sotto un file
+        Files.createDirectories(directory);
+        String legacy = directory.resolve("issuedOrders.json").toString();
+        new JsonPersistanceManager(legacy, legacy, null, null).appendIssuedOrders(orders(2)).join();
+        Path notADirectory = Files.createFile(directory.resolve("file"));
+        try {
+            read(new JournalPersistanceManager(notADirectory.resolve("journal").toString(), 1 << 20, legacy, null, null));
+            TestSupport.check(false, "a failed import of the json history is reported");
+        } catch (UncheckedIOException e) {
+            // atteso: l'avvio viene interrotto
+        }
+    }
+
+    private static void binaryHistory(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve("issuedOrders.bin");
+        String legacy = directory.resolve("missing.json").toString();
+        BinaryPersistanceManager manager = new BinaryPersistanceManager(file.toString(), legacy, null, null);
+        List<Order> orders = orders(4);
+        manager.appendIssuedOrders(orders.subList(0, 3)).join();
+        manager.sync();
+
+        // un record scritto in parte viene scartato, e i record aggiunti dopo restano allineati
+        Files.write(file, new byte[BinaryPersistanceManager.RECORD_SIZE / 2], StandardOpenOption.APPEND);
+        manager = new BinaryPersistanceManager(file.toString(), legacy, null, null);
+        assertSame(orders.subList(0, 3), read(manager), "binary history with a partial record");
+        manager.appendIssuedOrders(orders.subList(3, 4)).join();
+        manager.sync();
+        assertSame(orders, read(new BinaryPersistanceManager(file.toString(), legacy, null, null)),
+                "binary history after an append");
+
+        // un simbolo che non entra nel record fa fallire la scrittura invece di essere troncato
+        Order longSymbol = new Order(200, "ask", "limit", 1, 1000, 1_700_000_000_000_000_100L, 10, "VERYLONGSYMBOL/USD");
+        TestSupport.check(manager.appendIssuedOrders(List.of(longSymbol)).isCompletedExceptionally(), "an order with a too long symbol is rejected");
+        assertSame(orders, read(new BinaryPersistanceManager(file.toString(), legacy, null, null)),
+                "binary history after a rejected append");
+
+        // la riscrittura completa sostituisce lo storico
+        manager.storeIssuedOrders(orders.subList(1, 2));
+        assertSame(orders.subList(1, 2), read(new BinaryPersistanceManager(file.toString(), legacy, null, null)),
+                "rewritten binary history");
+    }
+
+    /**
+     * Metodo per leggere in una lista gli ordini memorizzati da un gestore della persistenza
+     */
+    private static List<Order> read(PersistanceManager manager) {
+        List<Order> orders = new ArrayList<>();
+        manager.readOrders(orders::add);
+        return orders;
+    }
+
+    private static List<Order> orders(int count) {
+        List<Order> orders = new ArrayList<>();
+        String[] symbols = {"BTC/USD", "ETH/USD"};
+        for (int i = 0; i < count; i++) {
+            orders.add(new Order(100 + i, i % 2 == 0 ? "ask" : "bid", Arrays.asList("limit", "market", "stop").get(i % 3),
+                    1 + i, 1000 + i, 1_700_000_000_000_000_000L + i, i, symbols[i % 2]));
+        }
+        return orders;
+    }
+
+    private static void assertSame(List<Order> expected, List<Order> actual, String description) {
+        TestSupport.equal(expected.size(), actual.size(), description + " size");
+        for (int i = 0; i < Math.min(expected.size(), actual.size()); i++) {
+            TestSupport.equal(describe(expected.get(i)), describe(actual.get(i)), description + " order " + i);
+        }
+    }
+
+    private static String describe(Order order) {
+        return order.getId() + " " + order.getType() + " " + order.getOrderType() + " " + order.getInitialSize() + "@"
+                + order.getPrice() + " t=" + order.getTimestamp() + " s=" + order.getSequence() + " " + order.getSymbol();
+    }
+
+    private static Order find(List<Order> orders, int id) {
+        for (Order order : orders) {
+            if (order.getId() == id) {
+                return order;
+            }
+        }
+        return null;
+    }
+
+    private static int orderId(JsonObject response) {
+        return response.get("orderId").getAsInt();
+    }
+}
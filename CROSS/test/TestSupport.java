@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Classe di supporto ai test: verifiche, cartelle temporanee e un gestore della persistenza in memoria.
+ * I test sono programmi con un main che terminano con codice 1 se una verifica fallisce (vedi config/test.sh).
+ */
+public class TestSupport {
+    private static int failures = 0; // verifiche fallite nel test in esecuzione
+
+    private TestSupport() {
+    }
+
+    /**
+     * Metodo per verificare una condizione
+     * @param condition condizione attesa
+     * @param description descrizione della verifica, stampata se fallisce
+     */
+    static void check(boolean condition, String description) {
+        if (!condition) {
+            failures++;
+            System.err.println("[FAIL] " + description);
+        }
+    }
+
+    /**
+     * Metodo per verificare che un valore sia quello atteso
+     * @param expected valore atteso
+     * @param actual valore ottenuto
+     * @param description descrizione della verifica, stampata se fallisce
+     */
+    static void equal(Object expected, Object actual, String description) {
+        check(expected == null ? actual == null : expected.equals(actual), description + ": expected " + expected + ", got " + actual);
+    }
+
+    /**
+     * Metodo per terminare il test, con codice 1 se almeno una verifica è fallita
+     * @param test nome del test
+     */
+    static void done(String test) {
+        if (failures > 0) {
+            System.err.println(test + ": " + failures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println(test + ": OK");
+        System.exit(0);
+    }
+
+    static Path temporaryDirectory(String prefix) throws IOException {
+        Path directory = Files.createTempDirectory(prefix);
+        directory.toFile().deleteOnExit();
+        return directory;
+    }
+
+    /**
+     * Metodo per creare e avviare un motore di matching con store su heap
+     * @param symbol simbolo del libro
+     * @param auction true per la modalità asta
+     * @param bookLog journal del libro (null per disabilitarlo)
+     * @param persistence gestore della persistenza degli ordini evasi
+     * @param directory cartella delle partizioni dello storico
+     * @param start true per avviare il thread del motore
+     * @return motore creato
+     */
+    static MatchingEngine engine(String symbol, boolean auction, RecordLog bookLog, PersistanceManager persistence, Path directory,
+                                 boolean start) throws SocketException {
+        TradeHistory history = new TradeHistory(directory.toString(), 1000, new CandleService(new HashMap<>()));
+        history.open();
+        MatchingEngine engine = new MatchingEngine(symbol, 64, WaitStrategy.fromName("blocking"), new HeapOrderStore(16),
+                auction, bookLog, true, history, persistence, new ServerUDP(0));
+        if (start) {
+            start(engine);
+        }
+        return engine;
+    }
+
+    static void start(MatchingEngine engine) {
+        Thread engineThread = new Thread(engine, "MatchingEngine-" + engine.getSymbol());
+        engineThread.setDaemon(true);
+        engineThread.start();
+    }
+
+    /**
+     * Classe che memorizza gli ordini evasi in una lista; se failing è true le scritture falliscono
+     */
+    static class MemoryPersistance implements PersistanceManager {
+        final List<Order> orders = new ArrayList<>(); // ordini evasi memorizzati
+        volatile boolean failing = false; // true per simulare un errore di scrittura
+
+        @Override
+        public synchronized void storeIssuedOrders(Collection<Order> issuedOrders) {
+            orders.clear();
+            orders.addAll(issuedOrders);
+        }
+
+        @Override
+        public synchronized CompletableFuture<Void> appendIssuedOrders(Collection<Order> issuedOrders) {
+            if (failing) {
+                return CompletableFuture.failedFuture(new IOException("simulated write failure"));
+            }
+            orders.addAll(issuedOrders);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> storeUsers(Collection<User> users) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> appendUsers(Collection<User> users) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void sync() {
+        }
+
+        @Override
+        public synchronized void readOrders(Consumer<Order> reader) {
+            orders.forEach(reader);
+        }
+
+        @Override
+        public ConcurrentLinkedQueue<User> readUsers() {
+            return new ConcurrentLinkedQueue<>();
+        }
+
+        synchronized List<Order> snapshot() {
+            return new ArrayList<>(orders);
+        }
+    }
+}
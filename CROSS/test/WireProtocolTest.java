@@ -0,0 +1,129 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Test dei formati sul filo: frame del protocollo binario, conversione degli esiti in risposte json e id di
+ * correlazione delle richieste in pipeline.
+ */
+public class WireProtocolTest {
+
+    public static void main(String[] args) throws Exception {
+        binaryFrames();
+        binaryResponses();
+        invalidFrames();
+        correlationIds();
+        TestSupport.done("WireProtocolTest");
+    }
+
+    private static void binaryFrames() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(BinaryProtocol.newOrder(OrderStore.LIMIT, OrderStore.ASK, 7, 12345, "ETH/USD"));
+        stream.write(BinaryProtocol.cancel(42, "BTC/USD"));
+        stream.write(BinaryProtocol.json("getPriceHistory", "{\"month\":\"012025\"}"));
+        stream.write(BinaryProtocol.json("logout", null));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+
+        ByteBuffer frame = BinaryProtocol.readFrame(in);
+        TestSupport.equal(BinaryProtocol.NEW_ORDER, frame.get(), "new order frame type");
+        TestSupport.equal((byte) OrderStore.LIMIT, frame.get(), "new order type");
+        TestSupport.equal((byte) OrderStore.ASK, frame.get(), "new order side");
+        TestSupport.equal(7, frame.getInt(), "new order size");
+        TestSupport.equal(12345, frame.getInt(), "new order price");
+        TestSupport.equal("ETH/USD", BinaryProtocol.getString(frame), "new order symbol");
+        TestSupport.check(!frame.hasRemaining(), "new order frame fully read");
+
+        frame = BinaryProtocol.readFrame(in);
+        TestSupport.equal(BinaryProtocol.CANCEL, frame.get(), "cancel frame type");
+        TestSupport.equal(42, frame.getInt(), "cancel order id");
+        TestSupport.equal("BTC/USD", BinaryProtocol.getString(frame), "cancel symbol");
+
+        frame = BinaryProtocol.readFrame(in);
+        TestSupport.equal(BinaryProtocol.JSON, frame.get(), "json frame type");
+        TestSupport.equal("getPriceHistory", BinaryProtocol.getString(frame), "json frame action");
+        TestSupport.equal("{\"month\":\"012025\"}", BinaryProtocol.getString(frame), "json frame request");
+
+        frame = BinaryProtocol.readFrame(in);
+        frame.get();
+        TestSupport.equal("logout", BinaryProtocol.getString(frame), "json frame action without request");
+        TestSupport.equal("", BinaryProtocol.getString(frame), "json frame without request");
+
+        TestSupport.equal(null, BinaryProtocol.readFrame(in), "end of stream");
+        TestSupport.equal("insertStopOrder", BinaryProtocol.orderAction(OrderStore.STOP), "action of a stop order");
+        TestSupport.equal(null, BinaryProtocol.orderAction(99), "action of an invalid order type");
+    }
+
+    private static void binaryResponses() throws IOException {
+        JsonObject executed = BinaryProtocol.toJson(frame(BinaryProtocol.executionReport(17, BinaryProtocol.OK)), "BTC/USD");
+        TestSupport.equal("{\"orderId\":17}", executed.toString(), "execution report as json");
+        JsonObject unknown = BinaryProtocol.toJson(frame(BinaryProtocol.executionReport(-1, BinaryProtocol.UNKNOWN_SYMBOL)), "XYZ/USD");
+        TestSupport.equal(-1, unknown.get("orderId").getAsInt(), "rejected order id");
+        TestSupport.equal("Unknown symbol XYZ/USD.", unknown.get("errorMessage").getAsString(), "unknown symbol message");
+        JsonObject invalid = BinaryProtocol.toJson(frame(BinaryProtocol.executionReport(-1, BinaryProtocol.INVALID_ORDER)), "BTC/USD");
+        TestSupport.equal("Invalid order type or side.", invalid.get("errorMessage").getAsString(), "invalid order message");
+        JsonObject notStored = BinaryProtocol.toJson(frame(BinaryProtocol.executionReport(17, BinaryProtocol.ERROR)), "BTC/USD");
+        TestSupport.equal(17, notStored.get("orderId").getAsInt(), "id of an order executed but not stored");
+        TestSupport.check(notStored.has("errorMessage"), "an order executed but not stored carries an error");
+        TestSupport.check(BinaryProtocol.toJson(frame(BinaryProtocol.executionReport(-1, BinaryProtocol.ERROR)), "BTC/USD")
+                .has("errorMessage"), "a failed order carries an error");
+        TestSupport.equal("100", BinaryProtocol.toJson(frame(BinaryProtocol.cancelReport(BinaryProtocol.OK)), "BTC/USD")
+                .get("response").getAsString(), "successful cancel report");
+        TestSupport.equal("101", BinaryProtocol.toJson(frame(BinaryProtocol.cancelReport(BinaryProtocol.REJECTED)), "BTC/USD")
+                .get("response").getAsString(), "rejected cancel report");
+
+        byte[] json = "{\"response\":100}\n".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer response = frame(BinaryProtocol.jsonResponse(json, json.length - 1));
+        TestSupport.equal("{\"response\":100}", new String(response.array(), response.position(), response.remaining(), StandardCharsets.UTF_8),
+                "json response frame without the line terminator");
+    }
+
+    private static void invalidFrames() {
+        for (int length : new int[] {0, -5, BinaryProtocol.MAX_FRAME_SIZE + 1}) {
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(length);
+            try {
+                BinaryProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(header.array())));
+                TestSupport.check(false, "frame length " + length + " is rejected");
+            } catch (IOException e) {
+                // atteso
+            }
+        }
+    }
+
+    private static void correlationIds() throws IOException {
+        TestSupport.equal("insertLimitOrder", ServerTask.actionOf("insertLimitOrder 42"), "action with a correlation id");
+        TestSupport.equal("cancelOrder", ServerTask.actionOf("cancelOrder"), "action without a correlation id");
+        TestSupport.check(ServerTask.hasRequest("login 7"), "login with a correlation id carries a request");
+        TestSupport.check(!ServerTask.hasRequest("exit"), "exit carries no request");
+
+        byte[] correlated = ServerTask.withId("{\"orderId\":3}\n".getBytes(StandardCharsets.UTF_8), 42);
+        JsonObject response = JsonParser.parseString(new String(correlated, StandardCharsets.UTF_8)).getAsJsonObject();
+        TestSupport.equal(42L, response.get("id").getAsLong(), "correlation id in the response");
+        TestSupport.equal(3, response.get("orderId").getAsInt(), "response fields after the correlation id");
+        TestSupport.check(new String(correlated, StandardCharsets.UTF_8).endsWith("\n"), "the response line keeps its terminator");
+        TestSupport.equal("{\"id\":5}\n", new String(ServerTask.withId("{}\n".getBytes(StandardCharsets.UTF_8), 5), StandardCharsets.UTF_8),
+                "correlation id in an empty response");
+
+        // nel protocollo binario l'id precede il frame originale, senza la sua lunghezza
+        ByteBuffer frame = frame(BinaryProtocol.correlated(42, BinaryProtocol.executionReport(17, BinaryProtocol.OK)));
+        TestSupport.equal(42L, frame.getLong(), "correlation id of a frame");
+        ByteBuffer inner = frame.slice();
+        TestSupport.equal(BinaryProtocol.EXECUTION_REPORT, inner.get(), "type of the correlated frame");
+        TestSupport.equal("{\"orderId\":17}", BinaryProtocol.toJson(inner, "BTC/USD").toString(), "correlated execution report as json");
+    }
+
+    /**
+     * Metodo per leggere il contenuto di un frame codificato
+     * @param encoded frame con il prefisso di lunghezza
+     * @return contenuto del frame, posizionato dopo il tipo
+     */
+    private static ByteBuffer frame(byte[] encoded) throws IOException {
+        ByteBuffer frame = BinaryProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(encoded)));
+        frame.get();
+        return frame;
+    }
+}
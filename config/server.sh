@@ -6,8 +6,8 @@ LIB_DIR="../CROSS/lib"
 GSON_JAR="gson-2.11.0.jar"
 CLASSPATH="$SRC_DIR:$LIB_DIR/$GSON_JAR"
 
-# compilazione dei file del server
-javac -cp "$CLASSPATH" -d "$SRC_DIR" $SRC_DIR/ServerMain.java
+# compilazione dei file del server e del convertitore dello storico degli ordini evasi
+javac -cp "$CLASSPATH" -d "$SRC_DIR" $SRC_DIR/ServerMain.java $SRC_DIR/TradeHistoryConverter.java
 if [ $? -ne 0 ]; then
     echo "Errore durante la compilazione dei file server."
     exit 1
@@ -0,0 +1,25 @@
+#!/bin/bash
+
+# directory dei sorgenti, dei test e libreria
+SRC_DIR="../CROSS/src"
+TEST_DIR="../CROSS/test"
+LIB_DIR="../CROSS/lib"
+GSON_JAR="gson-2.11.0.jar"
+OUT_DIR=$(mktemp -d)
+CLASSPATH="$OUT_DIR:$LIB_DIR/$GSON_JAR"
+
+# compilazione di sorgenti e test, fuori dalla directory dei sorgenti
+javac -encoding UTF-8 -cp "$CLASSPATH" -d "$OUT_DIR" $SRC_DIR/*.java $TEST_DIR/*.java
+if [ $? -ne 0 ]; then
+    echo "Errore durante la compilazione dei test."
+    rm -rf "$OUT_DIR"
+    exit 1
+fi
+
+# esecuzione dei test: ognuno termina con codice 1 se una verifica fallisce
+FAILED=0
+for TEST in MatchingEngineTest RecoveryTest WireProtocolTest; do
+    timeout 60 java -cp "$CLASSPATH" $TEST || { echo "$TEST non superato."; FAILED=1; }
+done
+rm -rf "$OUT_DIR"
+exit $FAILED